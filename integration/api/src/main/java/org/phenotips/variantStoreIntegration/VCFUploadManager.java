@@ -42,6 +42,7 @@
 import org.xwiki.component.phase.Initializable;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * The main component meant to interact with the variant store and coordinate PhenoTips events and data.
@@ -57,10 +58,20 @@ public interface VCFUploadManager extends Initializable
      *
      * @param patientID A valid PhenoTips patient ID
      * @param filePath A VCF path to upload
-     * @throws Exception If there was an error while uploading the file.
+     * @throws Exception If there was an error while uploading the file, or the upload queue is full.
      */
     void uploadVCF(String patientID, String filePath) throws Exception;
 
+    /**
+     * Queues the patient's VCF file for a bulk upload, such as a backfill. It is uploaded after the uploads that were
+     * asked for interactively, taking turns with the uploads other users queued.
+     *
+     * @param patientID A valid PhenoTips patient ID
+     * @param filePath A VCF path to upload
+     * @throws Exception If the file can't be queued, e.g. because the upload queue is full.
+     */
+    void queueVCF(String patientID, String filePath) throws Exception;
+
     /**
      * Attempts to cancel the given patients VCF upload.
      *
@@ -69,7 +80,8 @@ public interface VCFUploadManager extends Initializable
     void cancelUpload(Patient patient);
 
     /**
-     * Removes the patients variants from the variant store.
+     * Removes the patients variants from the variant store. If the queue of upload and removal jobs is full, the
+     * removal isn't queued: that is logged, and the removal has to be asked for again later.
      *
      * @param patient A valid PhenoTips patient
      */
@@ -81,4 +93,12 @@ public interface VCFUploadManager extends Initializable
      */
     List<String> getUploadedPatients();
 
+    /**
+     * Get the state of the queue of upload and removal jobs: the number of jobs queued, running, completed and
+     * rejected, and the average and longest time the jobs waited to run, in milliseconds.
+     *
+     * @return the figures, by name
+     */
+    Map<String, Number> getQueueStatus();
+
 }
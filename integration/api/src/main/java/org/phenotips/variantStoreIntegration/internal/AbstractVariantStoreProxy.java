@@ -21,6 +21,7 @@
 import org.phenotips.variantstore.shared.VariantStoreException;
 
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +52,17 @@ public Future addIndividual(String id, boolean isPublic, Path file) throws Varia
         return this.variantStore.addIndividual(id, isPublic, file);
     }
 
+    @Override
+    public Future addIndividuals(Map<String, String> samples, boolean isPublic, Path file)
+        throws VariantStoreException {
+        return this.variantStore.addIndividuals(samples, isPublic, file);
+    }
+
+    @Override
+    public Future updateIndividual(String id, boolean isPublic, Path file) throws VariantStoreException {
+        return this.variantStore.updateIndividual(id, isPublic, file);
+    }
+
     @Override
     public Future removeIndividual(String id) throws VariantStoreException {
         return this.variantStore.removeIndividual(id);
@@ -82,11 +94,21 @@ public Set<String> getAllGenesForIndividual(String id) {
         return this.variantStore.getAllGenesForIndividual(id);
     }
 
+    @Override
+    public Map<String, Long> getGenesForIndividual(String id, int offset, int limit) {
+        return this.variantStore.getGenesForIndividual(id, offset, limit);
+    }
+
     @Override
     public Double getGeneScore(String id, String gene) {
         return this.variantStore.getGeneScore(id, gene);
     }
 
+    @Override
+    public Map<String, Double> getGeneScores(String id, Collection<String> genes) {
+        return this.variantStore.getGeneScores(id, genes);
+    }
+
     @Override
     public List<GAVariant> getTopHarmfullVariantsForGene(String id, String gene, Integer k) {
         return this.variantStore.getTopHarmfullVariantsForGene(id, gene, k);
@@ -26,6 +26,7 @@
 import org.phenotips.variantStoreIntegration.events.VCFRemovalCompleteEvent;
 import org.phenotips.variantStoreIntegration.events.VCFUploadCompleteEvent;
 import org.phenotips.variantStoreIntegration.internal.jobs.FutureManager;
+import org.phenotips.variantStoreIntegration.internal.jobs.JobScheduler;
 import org.phenotips.variantStoreIntegration.internal.jobs.VCFRemovalJob;
 import org.phenotips.variantStoreIntegration.internal.jobs.VCFUploadJob;
 import org.phenotips.variantstore.shared.VariantStoreException;
@@ -37,10 +38,11 @@
 import org.xwiki.observation.ObservationManager;
 
 import java.io.File;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -61,6 +63,12 @@
 @Singleton
 public class DefaultVCFUploadManager implements VCFUploadManager
 {
+    /** The number of upload and removal jobs run at once. */
+    private static final int WORKERS = 4;
+
+    /** The number of jobs that can wait to run before more are rejected. */
+    private static final int QUEUE_CAPACITY = 1000;
+
     @Inject
     private static PermissionsManager permissions;
 
@@ -87,7 +95,7 @@ public class DefaultVCFUploadManager implements VCFUploadManager
     @Inject
     private ComponentManager componentManager;
 
-    private ExecutorService executor;
+    private JobScheduler scheduler;
 
     private FutureManager currentUploads;
 
@@ -96,7 +104,7 @@ public class DefaultVCFUploadManager implements VCFUploadManager
     @Override
     public void initialize() throws InitializationException
     {
-        this.executor = Executors.newCachedThreadPool();
+        this.scheduler = new JobScheduler(WORKERS, QUEUE_CAPACITY);
 
         this.currentUploads = new FutureManager("currentUploads", new VCFUploadCompleteEvent(null));
         this.currentRemovals = new FutureManager("currentRemovals", new VCFRemovalCompleteEvent(null));
@@ -112,14 +120,30 @@ public void initialize() throws InitializationException
     @Override
     public void uploadVCF(String patientID, String filePath) throws Exception
     {
-        Patient patient = this.pr.getPatientById(patientID);
+        uploadVCF(patientID, filePath, JobScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.phenotips.variantStoreIntegration.VCFUploadManager#queueVCF(String, String)
+     */
+    @Override
+    public void queueVCF(String patientID, String filePath) throws Exception
+    {
+        uploadVCF(patientID, filePath, JobScheduler.Priority.BATCH);
+    }
+
+    private void uploadVCF(final String patientID, String filePath, JobScheduler.Priority priority) throws Exception
+    {
+        final Patient patient = this.pr.getPatientById(patientID);
 
         if (patient == null) {
             this.logger.warn("No patient found with the id: {}", patientID);
             throw new Exception("Could not find the patient with ID: " + patientID);
         }
 
-        File vcfFile = new File(filePath);
+        final File vcfFile = new File(filePath);
         if (!vcfFile.exists() || !vcfFile.isFile()) {
             this.logger.warn("Attempted to upload an invalid VCF file");
             throw new Exception("No file was found at: " + filePath);
@@ -133,20 +157,32 @@ public void uploadVCF(String patientID, String filePath) throws Exception
             return;
         }
 
-        boolean isPublic = DefaultVCFUploadManager.resolvePatientPermission(patient);
-
-        Future varStoreFuture = null;
-        try {
-            varStoreFuture = this.varStore.addIndividual(patientID, isPublic, vcfFile.toPath());
-            VCFUploadJob newUploadJob = new VCFUploadJob(patient, varStoreFuture, contextProvider,
-                this.observationManager);
-            ExecutionContextRunnable wrappedJob = new ExecutionContextRunnable(newUploadJob, componentManager);
-            this.currentUploads.add(patientID, this.executor.submit(wrappedJob));
-        } catch (VariantStoreException e) {
-            this.logger.warn("Variant store exception thrown when trying to upload a vcf for: {}", patientID);
-            e.printStackTrace();
-        }
-
+        final boolean isPublic = DefaultVCFUploadManager.resolvePatientPermission(patient);
+
+        // the upload only starts once the job gets a worker, so that queued jobs hold neither threads nor the store
+        Runnable upload = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Future varStoreFuture;
+                try {
+                    varStoreFuture = DefaultVCFUploadManager.this.varStore.addIndividual(patientID, isPublic,
+                        vcfFile.toPath());
+                } catch (VariantStoreException e) {
+                    DefaultVCFUploadManager.this.logger.warn(
+                        "Variant store exception thrown when trying to upload a vcf for: {}", patientID, e);
+                    DefaultVCFUploadManager.this.observationManager.notify(new VCFUploadCompleteEvent(patient),
+                        DefaultVCFUploadManager.this);
+                    return;
+                }
+                new VCFUploadJob(patient, varStoreFuture, DefaultVCFUploadManager.this.contextProvider,
+                    DefaultVCFUploadManager.this.observationManager).run();
+            }
+        };
+        ExecutionContextRunnable wrappedJob = new ExecutionContextRunnable(upload, this.componentManager);
+        // a full queue is passed on to the caller, who can try again later
+        this.currentUploads.add(patientID, this.scheduler.submit(wrappedJob, getCurrentUser(), priority));
     }
 
     /**
@@ -160,8 +196,8 @@ public void cancelUpload(Patient patient)
         String id = patient.getId();
 
         if (this.currentUploads.get(id) != null) {
-            // TODO: Canceling a Future doesn't actually cancel the running job, it effectively just sets a flag on it.
-            // The VariantStore should probably implement a way to check if a task is canceled, and undo it.
+            // Cancelling interrupts the job, which cancels the variant store upload; the store stops between batches
+            // and takes out what was written so far.
             this.currentUploads.get(id).cancel(true);
             this.currentUploads.remove(id);
         } else {
@@ -178,7 +214,7 @@ public void cancelUpload(Patient patient)
     @Override
     public void removeVCF(Patient patient)
     {
-        String id = patient.getId();
+        final String id = patient.getId();
         if (this.currentUploads.get(id) != null) {
             this.logger.warn("Tried to remove the VCF of {} while it was uploading", patient.toString());
             return;
@@ -187,16 +223,41 @@ public void removeVCF(Patient patient)
             return;
         }
 
-        Future varStoreFuture = null;
+        Runnable removal = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    new VCFRemovalJob(id, DefaultVCFUploadManager.this.varStore.removeIndividual(id)).run();
+                } catch (VariantStoreException e) {
+                    DefaultVCFUploadManager.this.logger.warn(
+                        "Variant store exception thrown when trying to remove a vcf for: {}", id, e);
+                }
+            }
+        };
         try {
-            varStoreFuture = this.varStore.removeIndividual(id);
-            VCFRemovalJob newRemovalJob = new VCFRemovalJob(id, varStoreFuture);
-            this.currentRemovals.add(id, this.executor.submit(newRemovalJob));
-        } catch (VariantStoreException e) {
-            this.logger.warn("Variant store exception thrown when trying to remove a vcf for: {}", patient.getId());
-            e.printStackTrace();
+            this.currentRemovals.add(id, this.scheduler.submit(removal, getCurrentUser(),
+                JobScheduler.Priority.INTERACTIVE));
+        } catch (RejectedExecutionException e) {
+            // unlike an upload, a removal has no status to hand back, so a full queue only leaves it to be asked again
+            this.logger.error("Could not queue the removal of the VCF of {}: {}", patient.toString(), e.getMessage());
         }
+    }
 
+    @Override
+    public Map<String, Number> getQueueStatus()
+    {
+        Map<String, Number> status = new LinkedHashMap<>();
+        status.put("queued", this.scheduler.getQueueDepth());
+        status.put("queuedInteractive", this.scheduler.getQueueDepth(JobScheduler.Priority.INTERACTIVE));
+        status.put("queuedBatch", this.scheduler.getQueueDepth(JobScheduler.Priority.BATCH));
+        status.put("running", this.scheduler.getRunning());
+        status.put("completed", this.scheduler.getCompleted());
+        status.put("rejected", this.scheduler.getRejected());
+        status.put("averageWait", this.scheduler.getAverageWait());
+        status.put("maxWait", this.scheduler.getMaxWait());
+        return status;
     }
 
     /**
@@ -209,6 +270,12 @@ public List<String> getUploadedPatients() {
         return this.varStore.getIndividuals();
     }
 
+    private String getCurrentUser()
+    {
+        XWikiContext context = this.contextProvider.get();
+        return context == null ? null : context.getUser();
+    }
+
     private static boolean resolvePatientPermission(Patient patient)
     {
 
@@ -0,0 +1,313 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantStoreIntegration.internal.jobs;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs upload and removal jobs on a fixed number of workers. Jobs wait in a bounded queue, interactive ones ahead of
+ * batch ones, and the jobs of each priority are taken from each user in turn, so that one user queueing a backfill
+ * doesn't hold up everybody else. A job that doesn't fit in the queue is rejected rather than queued; batch jobs may
+ * only fill part of it, so that interactive uploads still get in while a backfill is queued.
+ *
+ * @version $Id$
+ */
+public class JobScheduler
+{
+    /**
+     * How urgent a job is.
+     */
+    public enum Priority
+    {
+        /** Somebody is waiting for it, e.g. a single patient's upload. */
+        INTERACTIVE,
+        /** Part of a bulk operation, e.g. a backfill. */
+        BATCH
+    }
+
+    private final int capacity;
+    private final int batchCapacity;
+    private final ExecutorService workers;
+
+    // the queued jobs of each priority, by user, the next user to take a job from first
+    private final Map<Priority, Map<String, Deque<Job>>> queues = new EnumMap<>(Priority.class);
+    private int queued;
+    private boolean shutdown;
+
+    private int running;
+    private long completed;
+    private long rejected;
+    private long totalWait;
+    private long maxWait;
+
+    /**
+     * @param workers  the number of jobs run at once
+     * @param capacity the number of jobs that can wait to run; batch jobs can only take three quarters of them
+     */
+    public JobScheduler(int workers, int capacity)
+    {
+        if (workers <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("There must be at least one worker and room for one job");
+        }
+        this.capacity = capacity;
+        this.batchCapacity = Math.max(1, capacity * 3 / 4);
+        for (Priority priority : Priority.values()) {
+            this.queues.put(priority, new LinkedHashMap<String, Deque<Job>>());
+        }
+        this.workers = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            this.workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param job the job
+     * @param user the user the job is run for, or null for nobody in particular
+     * @param priority how urgent the job is
+     * @return the job's future; cancelling it takes the job out of the queue, or interrupts it if it is running
+     * @throws RejectedExecutionException if the queue is full, or the scheduler is shut down
+     */
+    public synchronized Future<?> submit(Runnable job, String user, Priority priority)
+    {
+        if (this.shutdown) {
+            throw new RejectedExecutionException("The job scheduler is shut down");
+        }
+        if (this.queued >= (priority == Priority.BATCH ? this.batchCapacity : this.capacity)) {
+            this.rejected++;
+            throw new RejectedExecutionException(String.format("Too many jobs queued (%d), try again later",
+                this.queued));
+        }
+        Job queuedJob = new Job(job, String.valueOf(user), priority);
+        Map<String, Deque<Job>> users = this.queues.get(priority);
+        Deque<Job> jobs = users.get(queuedJob.user);
+        if (jobs == null) {
+            jobs = new ArrayDeque<>();
+            users.put(queuedJob.user, jobs);
+        }
+        jobs.add(queuedJob);
+        this.queued++;
+        notify();
+        return queuedJob;
+    }
+
+    /**
+     * Stop taking jobs, cancel the queued ones, and interrupt the running ones.
+     */
+    public void shutdown()
+    {
+        synchronized (this) {
+            this.shutdown = true;
+            for (Map<String, Deque<Job>> users : this.queues.values()) {
+                for (Deque<Job> jobs : users.values()) {
+                    for (Job job : jobs) {
+                        job.cancelQueued();
+                    }
+                }
+                users.clear();
+            }
+            this.queued = 0;
+            notifyAll();
+        }
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * @return the number of jobs waiting to run
+     */
+    public synchronized int getQueueDepth()
+    {
+        return this.queued;
+    }
+
+    /**
+     * @param priority a priority
+     * @return the number of jobs of that priority waiting to run
+     */
+    public synchronized int getQueueDepth(Priority priority)
+    {
+        int depth = 0;
+        for (Deque<Job> jobs : this.queues.get(priority).values()) {
+            depth += jobs.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of jobs running
+     */
+    public synchronized int getRunning()
+    {
+        return this.running;
+    }
+
+    /**
+     * @return the number of jobs that ran to the end, successfully or not
+     */
+    public synchronized long getCompleted()
+    {
+        return this.completed;
+    }
+
+    /**
+     * @return the number of jobs turned away because the queue was full
+     */
+    public synchronized long getRejected()
+    {
+        return this.rejected;
+    }
+
+    /**
+     * @return the average time the jobs that were started waited in the queue, in milliseconds
+     */
+    public synchronized long getAverageWait()
+    {
+        long started = this.completed + this.running;
+        return started == 0 ? 0 : this.totalWait / started;
+    }
+
+    /**
+     * @return the longest time a job that was started waited in the queue, in milliseconds
+     */
+    public synchronized long getMaxWait()
+    {
+        return this.maxWait;
+    }
+
+    private void work()
+    {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                job = take();
+                while (job == null) {
+                    if (this.shutdown) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    job = take();
+                }
+                long wait = System.currentTimeMillis() - job.queuedAt;
+                this.totalWait += wait;
+                this.maxWait = Math.max(this.maxWait, wait);
+                this.running++;
+            }
+            try {
+                job.run();
+            } finally {
+                synchronized (this) {
+                    this.running--;
+                    this.completed++;
+                }
+                // a cancelled job may leave the interrupt behind
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Take the next job: the first one of the next user in turn, of the most urgent priority that has any.
+     *
+     * @return the job, or null if none is queued
+     */
+    private Job take()
+    {
+        for (Map<String, Deque<Job>> users : this.queues.values()) {
+            Iterator<Map.Entry<String, Deque<Job>>> it = users.entrySet().iterator();
+            if (!it.hasNext()) {
+                continue;
+            }
+            Map.Entry<String, Deque<Job>> next = it.next();
+            it.remove();
+            Job job = next.getValue().poll();
+            if (!next.getValue().isEmpty()) {
+                // the user's turn is over until every other user had one
+                users.put(next.getKey(), next.getValue());
+            }
+            this.queued--;
+            return job;
+        }
+        return null;
+    }
+
+    private synchronized void dequeue(Job job)
+    {
+        Map<String, Deque<Job>> users = this.queues.get(job.priority);
+        Deque<Job> jobs = users.get(job.user);
+        if (jobs != null && jobs.remove(job)) {
+            this.queued--;
+            if (jobs.isEmpty()) {
+                users.remove(job.user);
+            }
+        }
+    }
+
+    /**
+     * A queued job, which leaves the queue when it is cancelled.
+     */
+    private final class Job extends FutureTask<Object>
+    {
+        private final String user;
+        private final Priority priority;
+        private final long queuedAt = System.currentTimeMillis();
+
+        private Job(Runnable job, String user, Priority priority)
+        {
+            super(job, null);
+            this.user = user;
+            this.priority = priority;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                dequeue(this);
+            }
+            return cancelled;
+        }
+
+        private void cancelQueued()
+        {
+            super.cancel(false);
+        }
+    }
+}
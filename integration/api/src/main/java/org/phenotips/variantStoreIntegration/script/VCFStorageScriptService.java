@@ -29,6 +29,7 @@
 import org.xwiki.users.UserManager;
 
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -70,6 +71,23 @@ public class VCFStorageScriptService implements ScriptService
      * of the request.
      */
     public JSONObject upload(String patientID, String filePath) {
+        return upload(patientID, filePath, false);
+    }
+
+    /**
+     * Queue a patient's VCF for a bulk upload, such as a backfill, behind the uploads that were asked for one by one.
+     *
+     * @param patientID A PhenoTips patient ID.
+     * @param filePath  The path to where the patients VCF is stored
+     *
+     * @return A json object with key status representing the status of the intial request, as for
+     * {@link #upload(String, String)}
+     */
+    public JSONObject queue(String patientID, String filePath) {
+        return upload(patientID, filePath, true);
+    }
+
+    private JSONObject upload(String patientID, String filePath, boolean batch) {
         JSONObject response = new JSONObject();
 
         Patient patient = this.repository.getPatientById(patientID);
@@ -86,8 +104,15 @@ public JSONObject upload(String patientID, String filePath) {
             return response;
         }
         try {
-            this.uploadManager.uploadVCF(patientID, filePath);
+            if (batch) {
+                this.uploadManager.queueVCF(patientID, filePath);
+            } else {
+                this.uploadManager.uploadVCF(patientID, filePath);
+            }
             response.element(STATUS_STRING, 202);
+        } catch (RejectedExecutionException e) {
+            response.element(STATUS_STRING, 503);
+            response.element(MESSAGE, e.getMessage());
         } catch (Exception e) {
             response.element(STATUS_STRING, 500);
             response.element(MESSAGE, e.getMessage());
@@ -124,6 +149,14 @@ public int getVCFStatus(Patient patient) {
         return 0;
     }
 
+    /**
+     * @return the state of the queue of upload and removal jobs, as given by
+     * {@link VCFUploadManager#getQueueStatus()}
+     */
+    public JSONObject getQueueStatus() {
+        return JSONObject.fromObject(this.uploadManager.getQueueStatus());
+    }
+
     /**
      * Get a list of uploaded patients.
      *
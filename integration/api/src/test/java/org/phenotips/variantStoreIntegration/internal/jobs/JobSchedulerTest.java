@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantStoreIntegration.internal.jobs;
+
+import org.phenotips.variantStoreIntegration.internal.jobs.JobScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the {@link JobScheduler}. Each test holds up the only worker while it queues jobs, so that the order they
+ * run in only depends on the queue.
+ *
+ * @version $Id$
+ */
+public class JobSchedulerTest
+{
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private JobScheduler scheduler;
+
+    @After
+    public void tearDown()
+    {
+        this.release.countDown();
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Start a job that keeps the worker busy until {@link #release} is counted down.
+     */
+    private Future<?> holdWorker() throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<?> future = this.scheduler.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try {
+                    JobSchedulerTest.this.release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "holder", Priority.INTERACTIVE);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return future;
+    }
+
+    private Future<?> submit(final String name, String user, Priority priority)
+    {
+        return this.scheduler.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                JobSchedulerTest.this.ran.add(name);
+            }
+        }, user, priority);
+    }
+
+    private void runQueued(Future<?>... futures) throws Exception
+    {
+        this.release.countDown();
+        for (Future<?> future : futures) {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testInteractiveJobsRunBeforeBatchJobs() throws Exception
+    {
+        this.scheduler = new JobScheduler(1, 10);
+        holdWorker();
+
+        Future<?> first = submit("batch1", "alice", Priority.BATCH);
+        Future<?> second = submit("batch2", "bob", Priority.BATCH);
+        Future<?> urgent = submit("interactive", "carol", Priority.INTERACTIVE);
+        assertEquals(2, this.scheduler.getQueueDepth(Priority.BATCH));
+        assertEquals(1, this.scheduler.getQueueDepth(Priority.INTERACTIVE));
+
+        runQueued(first, second, urgent);
+        assertEquals(Arrays.asList("interactive", "batch1", "batch2"), this.ran);
+    }
+
+    @Test
+    public void testUsersTakeTurns() throws Exception
+    {
+        this.scheduler = new JobScheduler(1, 10);
+        holdWorker();
+
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(submit("alice1", "alice", Priority.BATCH));
+        futures.add(submit("alice2", "alice", Priority.BATCH));
+        futures.add(submit("alice3", "alice", Priority.BATCH));
+        futures.add(submit("bob1", "bob", Priority.BATCH));
+        futures.add(submit("carol1", "carol", Priority.BATCH));
+        futures.add(submit("bob2", "bob", Priority.BATCH));
+
+        runQueued(futures.toArray(new Future<?>[futures.size()]));
+        assertEquals(Arrays.asList("alice1", "bob1", "carol1", "alice2", "bob2", "alice3"), this.ran);
+    }
+
+    @Test
+    public void testBatchJobsOnlyFillThreeQuartersOfTheQueue() throws Exception
+    {
+        this.scheduler = new JobScheduler(1, 4);
+        holdWorker();
+
+        for (int i = 0; i < 3; i++) {
+            submit("batch" + i, "alice", Priority.BATCH);
+        }
+        try {
+            submit("batch3", "bob", Priority.BATCH);
+            fail("queued a batch job past three quarters of the queue");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(3, this.scheduler.getQueueDepth(Priority.BATCH));
+
+        // the rest is kept for interactive jobs
+        submit("interactive", "bob", Priority.INTERACTIVE);
+        assertEquals(4, this.scheduler.getQueueDepth());
+        assertEquals(1, this.scheduler.getRejected());
+    }
+
+    @Test
+    public void testJobsAreRejectedWhenTheQueueIsFull() throws Exception
+    {
+        this.scheduler = new JobScheduler(1, 2);
+        holdWorker();
+
+        submit("first", "alice", Priority.INTERACTIVE);
+        submit("second", "bob", Priority.INTERACTIVE);
+        try {
+            submit("third", "carol", Priority.INTERACTIVE);
+            fail("queued a job in a full queue");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(2, this.scheduler.getQueueDepth());
+        assertEquals(1, this.scheduler.getRejected());
+
+        this.scheduler.shutdown();
+        try {
+            submit("late", "alice", Priority.INTERACTIVE);
+            fail("queued a job after the scheduler was shut down");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(0, this.scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void testCancelledJobsLeaveTheQueue() throws Exception
+    {
+        this.scheduler = new JobScheduler(1, 1);
+        holdWorker();
+
+        Future<?> cancelled = submit("cancelled", "alice", Priority.INTERACTIVE);
+        assertTrue(cancelled.cancel(false));
+        assertEquals(0, this.scheduler.getQueueDepth());
+
+        // the cancelled job's place is free again
+        Future<?> next = submit("next", "alice", Priority.INTERACTIVE);
+        runQueued(next);
+        assertTrue(cancelled.isCancelled());
+        assertFalse(this.ran.contains("cancelled"));
+        assertEquals(Collections.singletonList("next"), this.ran);
+    }
+}
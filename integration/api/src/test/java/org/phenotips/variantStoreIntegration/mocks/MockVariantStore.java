@@ -21,6 +21,7 @@
 import org.phenotips.variantstore.shared.VariantStoreException;
 
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -71,6 +72,32 @@ public Future<Boolean> addIndividual(String id, boolean isPublic, Path file)
         return new FutureTask<Boolean>(task);
     }
 
+    /**
+     * @param samples the samples
+     * @param isPublic whether they are public
+     * @param file the file
+     * @return a task that never runs
+     */
+    @Override
+    public Future<Boolean> addIndividuals(Map<String, String> samples, boolean isPublic, Path file)
+    {
+        Callable<Boolean> task = new MockProcessingTask();
+        return new FutureTask<Boolean>(task);
+    }
+
+    /**
+     * @param id the individual
+     * @param isPublic whether it is public
+     * @param file the new file
+     * @return a task that never runs
+     */
+    @Override
+    public Future<Boolean> updateIndividual(String id, boolean isPublic, Path file)
+    {
+        Callable<Boolean> task = new MockProcessingTask();
+        return new FutureTask<Boolean>(task);
+    }
+
     /**
      * @param id w/e
      * @return w/e
@@ -106,6 +133,20 @@ public Set<String> getAllGenesForIndividual(String id) {
         return null;
     }
 
+    /**
+     * Get a page of the known genes for an individual, with the number of the individual's variants in each.
+     *
+     * @param id     the individual's id
+     * @param offset the number of genes to skip
+     * @param limit  the most genes to return, or a negative number for all of them
+     *
+     * @return the number of variants in each gene, by gene
+     */
+    @Override
+    public Map<String, Long> getGenesForIndividual(String id, int offset, int limit) {
+        return null;
+    }
+
     /**
      * Get the exomiser harmfulness score for a gene for an individual.
      *
@@ -119,6 +160,19 @@ public Double getGeneScore(String id, String gene) {
         return null;
     }
 
+    /**
+     * Get the exomiser harmfulness scores of several genes for an individual.
+     *
+     * @param id    the individual's id
+     * @param genes the genes
+     *
+     * @return the score of every gene
+     */
+    @Override
+    public Map<String, Double> getGeneScores(String id, Collection<String> genes) {
+        return null;
+    }
+
     /**
      * Get a list of at most k variants with a known gene of an individual,
      * sorted by harmfulness.
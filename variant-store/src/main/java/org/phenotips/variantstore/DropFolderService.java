@@ -0,0 +1,376 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore;
+
+import org.phenotips.variantstore.shared.Service;
+import org.phenotips.variantstore.shared.VariantStoreException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Watch a directory that a pipeline drops its results in, and bulk load the files into a store as they arrive. A file
+ * is only picked up once it hasn't changed for a while, so that one that is still being written isn't read half way.
+ * The files that are ready are loaded in batches, one batch at a time, and the outcome of each file is appended to a
+ * status log in the directory.
+ *
+ * The individual a file belongs to is given by its name, without the suffix files are expected to have. Files are
+ * left where they are; those that were already in the directory when the service started are loaded as well, which
+ * costs little for the ones that were loaded before, as the store recognizes files it already has.
+ *
+ * @version $Id$
+ */
+public class DropFolderService implements Service
+{
+    /**
+     * The suffix of the files that are picked up, if not specified.
+     */
+    public static final String DEFAULT_SUFFIX = ".variants.tsv";
+
+    /**
+     * How long a file must stay the same before it is picked up, in milliseconds, if not specified.
+     */
+    public static final long DEFAULT_SETTLE_TIME = 10000;
+
+    /**
+     * The most files loaded together, if not specified.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The name of the status log, in the watched directory.
+     */
+    public static final String STATUS_LOG = "ingest-status.tsv";
+
+    private static final String SEPARATOR = "\t";
+
+    private static Logger logger = LoggerFactory.getLogger(DropFolderService.class);
+
+    private final VariantStore store;
+    private String suffix = DEFAULT_SUFFIX;
+    private long settleTime = DEFAULT_SETTLE_TIME;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean isPublic;
+    private boolean optimize;
+
+    private Path path;
+    private Path statusLog;
+    private WatchService watcher;
+    private Thread thread;
+
+    // the files that haven't been picked up yet, and what they looked like when last seen
+    private Map<Path, Snapshot> waiting = new LinkedHashMap<>();
+    // the files that were picked up, as they were then
+    private Map<Path, Snapshot> loaded = new HashMap<>();
+    private long batches;
+
+    /**
+     * @param store the store to load the files into
+     */
+    public DropFolderService(VariantStore store) {
+        this.store = checkNotNull(store);
+    }
+
+    /**
+     * @param suffix the suffix of the files to pick up, which is taken off to get the id of the individual
+     */
+    public void setSuffix(String suffix) {
+        this.suffix = checkNotNull(suffix);
+    }
+
+    /**
+     * @param settleTime how long a file must stay the same before it is picked up, in milliseconds
+     */
+    public void setSettleTime(long settleTime) {
+        checkArgument(settleTime >= 0, "settle time must not be negative");
+        this.settleTime = settleTime;
+    }
+
+    /**
+     * @param batchSize the most files loaded together; the rest wait for the next batch
+     */
+    public void setBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param isPublic can the variants of the files be used for aggregate data
+     */
+    public void setPublic(boolean isPublic) {
+        this.isPublic = isPublic;
+    }
+
+    /**
+     * @param optimize whether to compact the db after each batch, which makes queries faster but takes a while
+     */
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * Start watching a directory. The store must be initialized already.
+     *
+     * @param path the directory to watch
+     * @throws VariantStoreException if the directory can't be watched
+     */
+    @Override
+    public void init(Path path) throws VariantStoreException {
+        checkState(thread == null, "already watching %s", this.path);
+        this.path = path;
+        this.statusLog = path.resolve(STATUS_LOG);
+        try {
+            Files.createDirectories(path);
+            watcher = FileSystems.getDefault().newWatchService();
+            path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new VariantStoreException("Unable to watch " + path, e);
+        }
+        // files dropped while nobody was watching
+        rescan();
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "drop-folder-" + path.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching " + path + " for " + suffix + " files");
+    }
+
+    /**
+     * Stop watching. A batch that is being loaded is interrupted, and its files are picked up again on the next start.
+     */
+    @Override
+    public void stop() {
+        if (thread == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            logger.warn("Error closing the watch on " + path, e);
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * @return the number of batches loaded so far
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    private void watch() {
+        // wake up often enough to notice files settling
+        long poll = Math.max(settleTime / 2, 10);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(poll, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan();
+                        } else {
+                            seen(path.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                Map<String, Path> batch = settled();
+                if (!batch.isEmpty()) {
+                    load(batch);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopped
+        }
+        logger.info("Stopped watching " + path);
+    }
+
+    private void rescan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                seen(file);
+            }
+        } catch (IOException e) {
+            logger.error("Error listing " + path, e);
+        }
+    }
+
+    private void seen(Path file) {
+        if (!file.getFileName().toString().endsWith(suffix) || !Files.isRegularFile(file)) {
+            return;
+        }
+        Snapshot snapshot = Snapshot.of(file);
+        if (snapshot != null && !snapshot.equals(loaded.get(file)) && !waiting.containsKey(file)) {
+            waiting.put(file, snapshot);
+        }
+    }
+
+    /**
+     * Take the files that haven't changed for the settle time, up to a batch of them.
+     *
+     * @return the files, by id
+     */
+    private Map<String, Path> settled() {
+        Map<String, Path> batch = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Snapshot>> it = waiting.entrySet().iterator();
+        while (it.hasNext() && batch.size() < batchSize) {
+            Map.Entry<Path, Snapshot> entry = it.next();
+            Snapshot current = Snapshot.of(entry.getKey());
+            if (current == null) {
+                // deleted before it settled
+                it.remove();
+            } else if (!current.equals(entry.getValue())) {
+                // still being written
+                entry.setValue(current);
+            } else if (now - entry.getValue().seen >= settleTime) {
+                it.remove();
+                loaded.put(entry.getKey(), current);
+                String name = entry.getKey().getFileName().toString();
+                batch.put(name.substring(0, name.length() - suffix.length()), entry.getKey());
+            }
+        }
+        return batch;
+    }
+
+    private void load(Map<String, Path> batch) {
+        Map<String, Exception> failed;
+        try {
+            failed = store.bulkLoad(batch, isPublic, optimize);
+        } catch (VariantStoreException e) {
+            logger.error("Error loading " + batch.size() + " files from " + path, e);
+            failed = new HashMap<>();
+            for (String id : batch.keySet()) {
+                failed.put(id, e);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // stopped half way: picked up again on the next start
+                return;
+            }
+        }
+        synchronized (this) {
+            batches++;
+        }
+
+        StringBuilder status = new StringBuilder();
+        for (Map.Entry<String, Path> entry : batch.entrySet()) {
+            Exception error = failed.get(entry.getKey());
+            if (error != null) {
+                // picked up again if it's dropped again
+                loaded.remove(entry.getValue());
+            }
+            status.append(System.currentTimeMillis()).append(SEPARATOR)
+                    .append(entry.getValue().getFileName()).append(SEPARATOR)
+                    .append(entry.getKey()).append(SEPARATOR)
+                    .append(error == null ? "OK" : "FAILED" + SEPARATOR + describe(error))
+                    .append(System.lineSeparator());
+        }
+        try {
+            Files.write(statusLog, Collections.singleton(status.toString().trim()), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("Unable to write to " + statusLog, e);
+        }
+    }
+
+    /**
+     * Describe why a file failed to load, on a single field of the status log.
+     *
+     * @param error the reason the file failed
+     * @return the error's message, or the name of the error if it has none, with tabs and line breaks turned to spaces
+     */
+    static String describe(Exception error) {
+        String message = error.getMessage();
+        if (message == null || message.trim().isEmpty()) {
+            message = error.getClass().getName();
+        }
+        return message.replaceAll("[\\t\\r\\n]+", " ").trim();
+    }
+
+    /**
+     * What a file looked like at some point.
+     */
+    private static final class Snapshot
+    {
+        private final long size;
+        private final long modified;
+        private final long seen = System.currentTimeMillis();
+
+        private Snapshot(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        private static Snapshot of(Path file) {
+            try {
+                return new Snapshot(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snapshot)) {
+                return false;
+            }
+            Snapshot other = (Snapshot) o;
+            return size == other.size && modified == other.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.valueOf(size).hashCode() + Long.valueOf(modified).hashCode();
+        }
+    }
+}
@@ -20,19 +20,38 @@
 import org.phenotips.variantstore.db.DatabaseController;
 import org.phenotips.variantstore.db.solr.SolrController;
 import org.phenotips.variantstore.input.InputManager;
+import org.phenotips.variantstore.input.VariantDiff;
+import org.phenotips.variantstore.input.VariantFilter;
+import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.VariantIterator;
+import org.phenotips.variantstore.input.VariantRecord;
 import org.phenotips.variantstore.input.vcf.VCFManager;
 import org.phenotips.variantstore.shared.VariantStoreException;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.ga4gh.GAVariant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.Futures;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * The Variant Store is capable of storing a large number of individuals genomic variants for further querying and
  * sorting.
@@ -42,9 +61,19 @@
 public class VariantStore implements VariantStoreInterface
 {
     private static Logger logger = LoggerFactory.getLogger(VariantStore.class);
+
+    /**
+     * The uploads of a bulk load that are queued at once, if not specified.
+     */
+    public static final int DEFAULT_BULK_LOAD_PENDING = 64;
+
     private Path path;
     private InputManager inputManager;
     private DatabaseController db;
+    private VariantFilter filter = VariantFilter.passOnly();
+    private int bulkLoadPending = DEFAULT_BULK_LOAD_PENDING;
+    // the last upload of each individual in this run
+    private Map<String, Future> uploads = new ConcurrentHashMap<>();
 
     /**
      * Use VCF and Solr by default.
@@ -71,26 +100,275 @@ public void init(Path path) throws VariantStoreException {
         this.path = path;
         db.init(this.path.resolve("db"));
         inputManager.init(this.path.resolve("tsv"));
+        resumeInterrupted();
+    }
+
+    /**
+     * Go on with the uploads that were cut short by the last stop. Only the store knows where their variants come
+     * from, so the uploads are picked up here rather than by the database. Uploads whose files are gone are taken out
+     * instead.
+     *
+     * @throws VariantStoreException if an upload can't be resumed or taken out
+     */
+    private void resumeInterrupted() throws VariantStoreException {
+        List<String> stored = inputManager.getAllIndividuals();
+        for (VariantHeader header : db.getInterruptedIndividuals()) {
+            if (!stored.containsAll(header.getIndividualIds())) {
+                logger.warn("The files of " + header.getIndividualIds() + " are gone, not resuming their upload");
+                for (String id : header.getIndividualIds()) {
+                    db.removeIndividual(id);
+                }
+                continue;
+            }
+            logger.info("Resuming the upload of " + header.getIndividualIds());
+            VariantIterator iterator;
+            if (header.getSamples() == null) {
+                iterator = inputManager.getIteratorForIndividual(header.getIndividualId(), header.isPublic(), filter);
+            } else {
+                iterator = inputManager.getIteratorForIndividuals(header.getSamples(), header.isPublic(), filter);
+            }
+            db.resumeIndividual(iterator);
+        }
     }
 
     @Override
     public void stop() {
         db.stop();
+        inputManager.stop();
+    }
+
+    /**
+     * Set the criteria variants must meet to be stored. Only the variants that passed all filters are stored by
+     * default. The filter only decides what is stored: removing an individual takes out whatever is stored for it,
+     * whichever filter it was added with. Uploads cut short by a stop are resumed by {@link #init(Path)} with the
+     * filter in place then, so the filter should be set before it.
+     *
+     * @param filter the variants to store
+     */
+    public void setFilter(VariantFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Allow uploaded files to be moved into the store when they can't be hard linked, instead of being copied. The
+     * caller then loses the file. Off by default.
+     *
+     * @param moveUploads whether uploaded files may be moved
+     */
+    public void setMoveUploads(boolean moveUploads) {
+        this.inputManager.setMoveAllowed(moveUploads);
+    }
+
+    /**
+     * Limit the uploads a bulk load queues at once. Each one holds its input file open, and the db only writes so many
+     * at a time anyway.
+     *
+     * @param bulkLoadPending the most uploads queued at once
+     */
+    public void setBulkLoadPending(int bulkLoadPending) {
+        checkArgument(bulkLoadPending > 0, "at least one upload must be queued");
+        this.bulkLoadPending = bulkLoadPending;
     }
 
     @Override
     public Future addIndividual(String id, boolean isPublic, Path file) throws VariantStoreException {
         logger.debug("Adding " + id + " from " + file.toString());
-        // copy file to file cache
-        inputManager.addIndividual(id, file);
+        // link, move or copy the file into the file cache
+        if (!inputManager.addIndividual(id, file)) {
+            Future upload = getUpload(Collections.singleton(id));
+            if (upload != null) {
+                logger.debug("The file of " + id + " is unchanged, not adding it again");
+                return upload;
+            }
+        }
 
-        return this.db.addIndividual(this.inputManager.getIteratorForIndividual(id, isPublic));
+        return track(Collections.singleton(id),
+                this.db.addIndividual(this.inputManager.getIteratorForIndividual(id, isPublic, filter)));
+    }
+
+    @Override
+    public Future addIndividuals(Map<String, String> samples, boolean isPublic, Path file)
+        throws VariantStoreException {
+        logger.debug("Adding " + samples.values() + " from " + file.toString());
+        // link, move or copy the file into the file cache
+        if (!inputManager.addIndividuals(samples, file)) {
+            Future upload = getUpload(samples.values());
+            if (upload != null) {
+                logger.debug("The file of " + samples.values() + " is unchanged, not adding it again");
+                return upload;
+            }
+        }
+
+        return track(samples.values(),
+                this.db.addIndividual(this.inputManager.getIteratorForIndividuals(samples, isPublic, filter)));
+    }
+
+    @Override
+    public Future updateIndividual(String id, boolean isPublic, Path file) throws VariantStoreException {
+        Future upload = getUpload(Collections.singleton(id));
+        if (upload != null && !upload.isDone()) {
+            // the difference is taken from the db, so an upload still under way has to be in first
+            logger.debug("Waiting for the upload of " + id + " to finish before updating it");
+            try {
+                upload.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VariantStoreException("Interrupted while waiting for the upload of " + id, e);
+            } catch (ExecutionException | CancellationException e) {
+                // taken out of the db, and added again below
+                logger.debug("The upload of " + id + " didn't finish, adding it again");
+            }
+            upload = getUpload(Collections.singleton(id));
+        }
+        // only an individual whose variants are all in the db can be brought up to date by the difference
+        if (!inputManager.getAllIndividuals().contains(id) || upload == null) {
+            return addIndividual(id, isPublic, file);
+        }
+        logger.debug("Updating " + id + " from " + file.toString());
+
+        // the stored variants are read from the db rather than from the stored file, which may be a link to the file
+        // given, and so already hold the new version
+        List<VariantRecord> before = db.getIndividualVariants(id);
+        if (!inputManager.addIndividual(id, file)) {
+            logger.debug("The file of " + id + " is unchanged, not updating it");
+            return getUpload(Collections.singleton(id));
+        }
+        VariantDiff diff = VariantDiff.compute(before, inputManager.getIteratorForIndividual(id, isPublic, filter));
+        return track(Collections.singleton(id), this.db.updateIndividual(diff));
+    }
+
+    /**
+     * Find what to return for individuals whose file is uploaded again unchanged: the upload of the file if it is
+     * still running, or a completed Future if the individuals are in the db. An upload that failed or was cancelled
+     * has been, or is being, taken out of the db, so the individuals are added again.
+     *
+     * @param ids the ids of the individuals
+     * @return the Future to return, or null if the individuals should be added again
+     */
+    private Future getUpload(Collection<String> ids) {
+        Future upload = null;
+        for (String id : ids) {
+            Future last = uploads.get(id);
+            if (last != null && (last.isCancelled() || failed(last))) {
+                return null;
+            }
+            if (last != null && !last.isDone()) {
+                upload = last;
+            } else if (!db.hasIndividual(id)) {
+                return null;
+            }
+        }
+        return upload == null ? Futures.immediateFuture(null) : upload;
+    }
+
+    private static boolean failed(Future upload) {
+        if (!upload.isDone()) {
+            return false;
+        }
+        try {
+            upload.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            // the upload is done, so get() doesn't wait
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * Remember the upload of some individuals, so that it can be found by {@link #getUpload(Collection)}.
+     *
+     * @param ids    the ids of the individuals
+     * @param upload the upload of their variants
+     * @return a Future that completes once the upload does, and the individuals' files are in the store
+     */
+    private Future track(Collection<String> ids, Future upload) {
+        List<Future<?>> copies = new ArrayList<>();
+        for (String id : ids) {
+            Future<?> copy = inputManager.getPendingCopy(id);
+            if (copy != null) {
+                copies.add(copy);
+            }
+        }
+        Future stored = copies.isEmpty() ? upload : new StoredUpload(upload, copies);
+        for (String id : ids) {
+            uploads.put(id, stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Add a large number of individuals at once, e.g. to load a whole cohort. The uploads run side by side, as many at
+     * once as the db allows, and the db is switched to bulk loading for the duration: the individuals' variants can
+     * only be queried once this returns. An individual that can't be added doesn't stop the others.
+     *
+     * @param files    the file of each individual, by id
+     * @param isPublic can the variants be used for aggregate data
+     * @param optimize whether to compact the db once all are in, which makes queries faster but takes a while
+     * @return the individuals that couldn't be added, with what went wrong; empty if all were added
+     * @throws VariantStoreException if the db can't switch in and out of bulk loading, or the load is interrupted
+     */
+    public Map<String, Exception> bulkLoad(Map<String, Path> files, boolean isPublic, boolean optimize)
+        throws VariantStoreException {
+        logger.info("Bulk loading " + files.size() + " individuals");
+        Map<String, Exception> failed = new LinkedHashMap<>();
+        // oldest first
+        Map<String, Future> pending = new LinkedHashMap<>();
+        db.beginBulkLoad();
+        try {
+            for (Map.Entry<String, Path> entry : files.entrySet()) {
+                if (pending.size() >= bulkLoadPending) {
+                    awaitOldest(pending, failed);
+                }
+                String id = entry.getKey();
+                try {
+                    if (!inputManager.addIndividual(id, entry.getValue())
+                            && getUpload(Collections.singleton(id)) != null) {
+                        // loaded before
+                        continue;
+                    }
+                    pending.put(id, track(Collections.singleton(id),
+                            db.addIndividual(inputManager.getIteratorForIndividual(id, isPublic, filter))));
+                } catch (VariantStoreException e) {
+                    logger.error("Error adding " + id + " from " + entry.getValue(), e);
+                    failed.put(id, e);
+                }
+            }
+            while (!pending.isEmpty()) {
+                awaitOldest(pending, failed);
+            }
+        } catch (InterruptedException e) {
+            for (Future future : pending.values()) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new VariantStoreException("Interrupted while bulk loading", e);
+        } finally {
+            db.endBulkLoad(optimize);
+        }
+        logger.info("Bulk loaded " + (files.size() - failed.size()) + " of " + files.size() + " individuals");
+        return failed;
+    }
+
+    private void awaitOldest(Map<String, Future> pending, Map<String, Exception> failed) throws InterruptedException {
+        Iterator<Map.Entry<String, Future>> it = pending.entrySet().iterator();
+        Map.Entry<String, Future> oldest = it.next();
+        it.remove();
+        try {
+            oldest.getValue().get();
+        } catch (ExecutionException e) {
+            logger.error("Error adding " + oldest.getKey(), e.getCause());
+            failed.put(oldest.getKey(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
     }
 
     @Override
     public Future removeIndividual(String id) throws VariantStoreException {
+        uploads.remove(id);
         this.inputManager.removeIndividual(id);
-        return this.db.removeIndividual(this.inputManager.getIteratorForIndividual(id));
+        return this.db.removeIndividual(id);
     }
 
     @Override
@@ -125,11 +403,21 @@ public Set<String> getAllGenesForIndividual(String id) {
         return this.db.getAllGenesForIndividual(id);
     }
 
+    @Override
+    public Map<String, Long> getGenesForIndividual(String id, int offset, int limit) {
+        return this.db.getGenesForIndividual(id, offset, limit);
+    }
+
     @Override
     public Double getGeneScore(String id, String gene) {
         return this.db.getGeneScore(id, gene);
     }
 
+    @Override
+    public Map<String, Double> getGeneScores(String id, Collection<String> genes) {
+        return this.db.getGeneScores(id, genes);
+    }
+
     @Override
     public List<GAVariant> getTopHarmfullVariantsForGene(String id, String gene, Integer k) {
         return this.db.getTopHarmfullVariantsForGene(id, gene, k);
@@ -162,4 +450,62 @@ public long getTotNumVariants() {
         return db.getTotNumVariants();
     }
 
+    /**
+     * An upload whose files are still being copied into the store. It only completes once they are in, so that the
+     * caller can let go of its files then. Cancelling it cancels the upload, not the copies.
+     */
+    private static final class StoredUpload implements Future<Object>
+    {
+        private final Future upload;
+        private final List<Future<?>> copies;
+
+        private StoredUpload(Future upload, List<Future<?>> copies) {
+            this.upload = upload;
+            this.copies = copies;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return upload.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return upload.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            if (!upload.isDone()) {
+                return false;
+            }
+            for (Future<?> copy : copies) {
+                if (!copy.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            Object result = upload.get();
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+            return result;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            Object result = upload.get(timeout, unit);
+            for (Future<?> copy : copies) {
+                copy.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return result;
+        }
+    }
+
 }
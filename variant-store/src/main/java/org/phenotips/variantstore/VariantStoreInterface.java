@@ -21,6 +21,7 @@
 import org.phenotips.variantstore.shared.VariantStoreException;
 
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,11 +44,44 @@ public interface VariantStoreInterface extends Service
      * @param file     the path to the file on the local filesystem where the data is stored.
      *
      * @return a Future that completes when the individual is fully inserted into the variant store, and is ready to be
-     * queried.
+     * queried. The file may be copied into the store in the background, and is read from until then; once the Future
+     * completes, the copy is done and the file can be deleted.
      * @throws VariantStoreException when an error occurs.
      */
     Future addIndividual(String id, boolean isPublic, Path file) throws VariantStoreException;
 
+    /**
+     * Add several individuals whose variants are stored in one file, one per sample, such as a family or cohort VCF.
+     * The file is read once, and the calls of all the individuals on a variant are stored together. Each individual
+     * can later be queried and removed on its own. This is an asynchronous operation.
+     *
+     * @param samples  the names of the samples in the file, mapped to the unique IDs of the individuals they belong to
+     * @param isPublic whether to include these individuals' data in aggregate queries.
+     * @param file     the path to the file on the local filesystem where the data is stored.
+     *
+     * @return a Future that completes when all the individuals are fully inserted into the variant store, and are
+     * ready to be queried. As with {@link #addIndividual(String, boolean, Path)}, the file can be deleted once the
+     * Future completes, but not before.
+     * @throws VariantStoreException when an error occurs.
+     */
+    Future addIndividuals(Map<String, String> samples, boolean isPublic, Path file) throws VariantStoreException;
+
+    /**
+     * Replace an individual's file with a new version, e.g. after Exomiser is run again with new phenotypes. Only the
+     * variants that were added, removed or changed are written, so this is much cheaper than removing the individual
+     * and adding it again. An individual that isn't in the store yet is added. If the individual is still being
+     * uploaded, this waits for the upload to finish first; the update itself is an asynchronous operation.
+     *
+     * @param id       the individual's ID
+     * @param isPublic whether to include this individual's data in aggregate queries.
+     * @param file     the path to the new file on the local filesystem.
+     *
+     * @return a Future that completes when the individual is up to date, and is ready to be queried. As with
+     * {@link #addIndividual(String, boolean, Path)}, the file can be deleted once the Future completes, but not before.
+     * @throws VariantStoreException when an error occurs.
+     */
+    Future updateIndividual(String id, boolean isPublic, Path file) throws VariantStoreException;
+
     /**
      * Remove any information associated with the specified individual from the variant store.
      *
@@ -110,6 +144,18 @@ Map<String, List<GAVariant>> getIndividualsWithGene(String geneSymbol,
      */
     Set<String> getAllGenesForIndividual(String id);
 
+    /**
+     * Get a page of the known genes for an individual, in alphabetical order, with the number of the individual's
+     * variants in each.
+     *
+     * @param id     the individual's id
+     * @param offset the number of genes to skip
+     * @param limit  the most genes to return, or a negative number for all of them
+     *
+     * @return the number of variants in each gene, by gene
+     */
+    Map<String, Long> getGenesForIndividual(String id, int offset, int limit);
+
     /**
      * Get the exomiser harmfulness score for a gene for an individual.
      *
@@ -120,6 +166,16 @@ Map<String, List<GAVariant>> getIndividualsWithGene(String geneSymbol,
      */
     Double getGeneScore(String id, String gene);
 
+    /**
+     * Get the exomiser harmfulness scores of several genes for an individual, e.g. a gene panel, in one go.
+     *
+     * @param id    the individual's id
+     * @param genes the genes
+     *
+     * @return the score of every gene, 0 for the genes the individual has no variants in
+     */
+    Map<String, Double> getGeneScores(String id, Collection<String> genes);
+
     /**
      * Get a list of at most k variants with a known gene of an individual, sorted by harmfulness.
      *
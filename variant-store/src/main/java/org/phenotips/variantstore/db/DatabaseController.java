@@ -17,9 +17,13 @@
  */
 package org.phenotips.variantstore.db;
 
+import org.phenotips.variantstore.input.VariantDiff;
+import org.phenotips.variantstore.input.VariantHeader;
 import org.phenotips.variantstore.input.VariantIterator;
+import org.phenotips.variantstore.input.VariantRecord;
 import org.phenotips.variantstore.shared.Service;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,7 +37,7 @@
 public interface DatabaseController extends Service
 {
     /**
-     * Add an individual to the database.
+     * Add an individual to the database. Cancelling the Future stops the upload, and takes out what it wrote.
      *
      * @param iterator the individual's VariantIterator
      * @return a Future that completes when the individual's variants are ready to be queried
@@ -43,14 +47,71 @@ public interface DatabaseController extends Service
     Future addIndividual(VariantIterator iterator) throws DatabaseException;
 
     /**
-     * Remove an individual from the db.
+     * Go on with an upload that was cut short by a stop, without writing again what it already wrote. If there is no
+     * such upload for the individuals, they are added from the start.
+     *
+     * @param iterator the variants the upload was reading, read the same way
+     * @return a Future that completes when the individual's variants are ready to be queried
+     * @throws DatabaseException if an error is encountered immediately.
+     *                           The Future throws exceptions if an error is encountered during insert.
+     */
+    Future resumeIndividual(VariantIterator iterator) throws DatabaseException;
+
+    /**
+     * Get the uploads that were cut short by the last stop, to be finished with
+     * {@link #resumeIndividual(VariantIterator)}. An upload is forgotten once any of its individuals is added again or
+     * removed.
+     *
+     * @return the headers the uploads were reading with
+     */
+    List<VariantHeader> getInterruptedIndividuals();
+
+    /**
+     * Get ready to add a large number of individuals, e.g. a whole cohort at once. Until {@link #endBulkLoad(boolean)},
+     * the db may trade the time it takes for the individuals added to be ready to be queried for speed.
+     *
+     * @throws DatabaseException if the db can't switch to bulk loading
+     */
+    void beginBulkLoad() throws DatabaseException;
+
+    /**
+     * Finish a bulk load started with {@link #beginBulkLoad()}: make the individuals added ready to be queried, and go
+     * back to normal.
+     *
+     * @param optimize whether to compact the db afterwards, which makes queries faster but takes a while
+     * @throws DatabaseException if the individuals can't be made ready to be queried
+     */
+    void endBulkLoad(boolean optimize) throws DatabaseException;
+
+    /**
+     * Remove an individual from the db. The individual's variants are found in the db itself, so the input file they
+     * came from isn't needed.
      *
      * @param id the id of the individual to remove.
      * @return a Future that completes when the individual's variants are no longer in the db.
      * @throws DatabaseException if an error is encountered immediately.
      *                           The Future throws exceptions if an error is encountred during insert.
      */
-    Future removeIndividual(VariantIterator id) throws DatabaseException;
+    Future removeIndividual(String id) throws DatabaseException;
+
+    /**
+     * Bring an individual up to date with a new version of its variants, writing only what changed.
+     *
+     * @param diff the difference between the stored variants and the new ones
+     * @return a Future that completes when the individual's new variants are ready to be queried
+     * @throws DatabaseException if an error is encountered. The Future throws exceptions if an error is encountered
+     *                           during the update, which may leave the individual half updated.
+     */
+    Future updateIndividual(VariantDiff diff) throws DatabaseException;
+
+    /**
+     * Read the variants stored for an individual, as a base for {@link VariantDiff#compute(List, VariantIterator)}.
+     *
+     * @param id the id of the individual
+     * @return the individual's variants, in {@link VariantDiff#ORDER}, each one once
+     * @throws DatabaseException if the variants can't be read
+     */
+    List<VariantRecord> getIndividualVariants(String id) throws DatabaseException;
 
     /**
      * Fetch all individuals that exhibit the given genes. Filter on variant effects, variant allele frequencies.
@@ -120,6 +181,13 @@ List<GAVariant> getTopHarmfulWithGene(String id,
      */
     long getTotNumVariants();
 
+    /**
+     * Check whether any variants of an individual are in the database.
+     * @param id the id of the individual
+     * @return true if the individual has variants in the database
+     */
+    boolean hasIndividual(String id);
+
     /**
      * Given an individual id, return all the genes stored for that individual.
      * @param id the individual's id
@@ -127,6 +195,18 @@ List<GAVariant> getTopHarmfulWithGene(String id,
      */
     Set<String> getAllGenesForIndividual(String id);
 
+    /**
+     * Get a page of the genes stored for an individual, in alphabetical order, with the number of the individual's
+     * variants in each.
+     *
+     * @param id     the individual's id
+     * @param offset the number of genes to skip
+     * @param limit  the most genes to return, or a negative number for all of them
+     *
+     * @return the number of variants in each gene, by gene
+     */
+    Map<String, Long> getGenesForIndividual(String id, int offset, int limit);
+
     /**
      * Get the exomiser harmfulness score for a gene for an individual.
      *
@@ -137,6 +217,16 @@ List<GAVariant> getTopHarmfulWithGene(String id,
      */
     Double getGeneScore(String id, String gene);
 
+    /**
+     * Get the exomiser harmfulness scores of several genes for an individual at once.
+     *
+     * @param id    the individual's id
+     * @param genes the genes
+     *
+     * @return the score of every gene, 0 for the genes the individual has no variants in
+     */
+    Map<String, Double> getGeneScores(String id, Collection<String> genes);
+
     /**
      * Get a list of top k harmfull genes for an individual, sorted by harmfulness.
      *
@@ -0,0 +1,258 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr;
+
+import org.phenotips.variantstore.db.DatabaseException;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Commits on behalf of every task writing to a solr server, so that tasks finishing at about the same time share a
+ * commit instead of each waiting for its own. Solr doesn't soft commit on its own; new searchers are only opened by
+ * the commits made here.
+ *
+ * A commit asked for while another is running waits for it, and is then made together with every other commit asked
+ * for in the meantime. Commits that don't need to be waited for are put off for a while, so that they can be grouped
+ * with more of them, and are held back altogether while a bulk load is running.
+ *
+ * @version $Id$
+ */
+public class CommitCoordinator
+{
+    /**
+     * How a task has its changes committed once it is done.
+     */
+    public enum Policy
+    {
+        /** Wait until the changes are committed and searchable. */
+        VISIBLE,
+        /** Ask for a commit, and return without waiting for it. */
+        ASYNC,
+        /** Hold back the commits that aren't waited for until the task is done, then commit like {@link #VISIBLE}. */
+        BULK
+    }
+
+    /**
+     * How long a commit that isn't waited for is put off, in milliseconds, if not specified.
+     */
+    public static final long DEFAULT_ASYNC_DELAY = 1000;
+
+    private static Logger logger = LoggerFactory.getLogger(CommitCoordinator.class);
+
+    private final SolrClient server;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private long asyncDelay = DEFAULT_ASYNC_DELAY;
+
+    // the commits asked for so far, and how many of them a finished commit covers
+    private long requested;
+    private long covered;
+    private boolean committing;
+    private boolean scheduled;
+    private int bulkLoads;
+
+    private long commits;
+    private long totalLatency;
+
+    /**
+     * @param server the solr server to commit to
+     */
+    public CommitCoordinator(SolrClient server) {
+        this.server = checkNotNull(server);
+    }
+
+    /**
+     * @param asyncDelay how long a commit that isn't waited for is put off, in milliseconds
+     */
+    public void setAsyncDelay(long asyncDelay) {
+        checkArgument(asyncDelay >= 0, "delay must not be negative");
+        this.asyncDelay = asyncDelay;
+    }
+
+    /**
+     * Commit everything written to solr so far, as the policy says.
+     *
+     * @param policy how to commit
+     * @return how long the caller was held up, in milliseconds
+     * @throws DatabaseException if the commit fails, or the wait is interrupted
+     */
+    public long commit(Policy policy) throws DatabaseException {
+        long start = System.currentTimeMillis();
+        long request;
+        synchronized (this) {
+            request = ++requested;
+        }
+        if (policy == Policy.ASYNC) {
+            schedule();
+        } else {
+            commitThrough(request);
+        }
+        long latency = System.currentTimeMillis() - start;
+        synchronized (this) {
+            totalLatency += latency;
+        }
+        return latency;
+    }
+
+    /**
+     * Wait for the commits asked for so far, making them right away if they were put off.
+     *
+     * @throws DatabaseException if the commit fails, or the wait is interrupted
+     */
+    public void flush() throws DatabaseException {
+        long request;
+        synchronized (this) {
+            request = requested;
+        }
+        commitThrough(request);
+    }
+
+    /**
+     * Hold back the commits that aren't waited for, until {@link #endBulkLoad()}.
+     */
+    public synchronized void beginBulkLoad() {
+        bulkLoads++;
+    }
+
+    /**
+     * Let the commits that were held back for a bulk load go ahead, once no other bulk load is running.
+     */
+    public synchronized void endBulkLoad() {
+        bulkLoads--;
+        if (bulkLoads == 0 && covered < requested) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return the number of commits made
+     */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return the number of commits asked for, which is at least the number made
+     */
+    public synchronized long getRequests() {
+        return requested;
+    }
+
+    /**
+     * @return the time callers spent in {@link #commit(Policy)}, in all, in milliseconds
+     */
+    public synchronized long getTotalLatency() {
+        return totalLatency;
+    }
+
+    /**
+     * Make the commits that were put off, and stop.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            flush();
+        } catch (DatabaseException e) {
+            logger.error("Error committing pending changes", e);
+        }
+    }
+
+    private synchronized void schedule() {
+        if (scheduled || scheduler.isShutdown()) {
+            return;
+        }
+        scheduled = true;
+        scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run() {
+                long request;
+                synchronized (CommitCoordinator.this) {
+                    scheduled = false;
+                    if (bulkLoads > 0) {
+                        // committed once the bulk loads are done
+                        return;
+                    }
+                    request = requested;
+                }
+                try {
+                    commitThrough(request);
+                } catch (DatabaseException e) {
+                    logger.error("Error committing to solr", e);
+                }
+            }
+        }, asyncDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait until a commit covers the given request, making the commit if none is running.
+     *
+     * @param request the request
+     * @throws DatabaseException if the commit fails, or the wait is interrupted
+     */
+    private void commitThrough(long request) throws DatabaseException {
+        while (true) {
+            long through;
+            synchronized (this) {
+                while (covered < request && committing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DatabaseException("Interrupted while waiting for a commit", e);
+                    }
+                }
+                if (covered >= request) {
+                    return;
+                }
+                committing = true;
+                through = requested;
+            }
+
+            long start = System.currentTimeMillis();
+            boolean committed = false;
+            try {
+                server.commit(true, true);
+                committed = true;
+            } catch (SolrServerException | IOException e) {
+                throw new DatabaseException("Error committing to solr", e);
+            } finally {
+                synchronized (this) {
+                    committing = false;
+                    if (committed) {
+                        logger.debug(String.format("Committed %d requests in %d ms", through - covered,
+                                System.currentTimeMillis() - start));
+                        covered = through;
+                        commits++;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
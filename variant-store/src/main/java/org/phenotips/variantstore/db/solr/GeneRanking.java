@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr;
+
+import org.phenotips.variantstore.input.VariantRecord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * An individual's genes, ranked by their Exomiser combined score. Exomiser gives one combined score per gene, so the
+ * ranking is built once as the individual's variants are read, and stored as a document of its own, instead of being
+ * worked out from the individual's calls on every query.
+ *
+ * A ranking is built by adding genes to it, which can be done from several threads at once, and read back from its
+ * document in rank order. It can also be built all at once from the individual's variants, or from the calls stored
+ * for the individual, when the variants going by are not all of them.
+ *
+ * @version $Id$
+ */
+public class GeneRanking
+{
+    // the highest score before ties are broken on the gene
+    private static final Comparator<Map.Entry<String, Float>> RANK = new Comparator<Map.Entry<String, Float>>()
+    {
+        @Override
+        public int compare(Map.Entry<String, Float> a, Map.Entry<String, Float> b) {
+            int byScore = Float.compare(b.getValue(), a.getValue());
+            return byScore != 0 ? byScore : a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    // the score of each gene
+    private final Map<String, Float> scores = new LinkedHashMap<>();
+    // whether the genes are in rank order already, as they are when read from a document
+    private boolean ranked;
+
+    /**
+     * Read a ranking back from its document.
+     *
+     * @param doc the document, with the ranked genes and their scores
+     * @return the ranking
+     */
+    public static GeneRanking fromDoc(SolrDocument doc) {
+        GeneRanking ranking = new GeneRanking();
+        Collection<Object> genes = doc.getFieldValues(VariantsSchema.RANKED_GENES);
+        Collection<Object> geneScores = doc.getFieldValues(VariantsSchema.RANKED_GENE_SCORES);
+        if (genes != null && geneScores != null) {
+            Iterator<Object> score = geneScores.iterator();
+            for (Object gene : genes) {
+                ranking.scores.put((String) gene, score.hasNext() ? ((Number) score.next()).floatValue() : 0F);
+            }
+        }
+        ranking.ranked = true;
+        return ranking;
+    }
+
+    /**
+     * Rank the genes of some variants.
+     *
+     * @param records all of the individual's variants
+     * @return the ranking
+     */
+    public static GeneRanking fromRecords(Collection<VariantRecord> records) {
+        GeneRanking ranking = new GeneRanking();
+        for (VariantRecord record : records) {
+            ranking.add(record.getGene(), record.getExomiserGeneCombinedScore());
+        }
+        return ranking;
+    }
+
+    /**
+     * Rank the genes of the calls stored for an individual. Only the calls that are committed are found.
+     *
+     * @param server    the solr server
+     * @param callsetId the individual
+     * @param pageSize  the number of calls to read at once
+     * @return the ranking
+     * @throws IOException         if solr can't be reached
+     * @throws SolrServerException if the calls can't be read
+     */
+    public static GeneRanking fromCalls(SolrClient server, String callsetId, int pageSize)
+        throws IOException, SolrServerException {
+        final GeneRanking ranking = new GeneRanking();
+        SolrQuery q = new SolrQuery(VariantsSchema.getCallsQuery(callsetId))
+                .setFields(VariantsSchema.HASH, VariantsSchema.GENE, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE)
+                .setRows(pageSize);
+        SolrUtils.processAllDocs(server, q, VariantsSchema.HASH, new Function<Collection<SolrDocument>, Boolean>()
+        {
+            @Override
+            public Boolean apply(Collection<SolrDocument> calls) {
+                for (SolrDocument call : calls) {
+                    Object score = call.getFieldValue(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE);
+                    ranking.add((String) call.getFieldValue(VariantsSchema.GENE),
+                            score == null ? Float.NaN : ((Number) score).floatValue());
+                }
+                return false;
+            }
+        });
+        return ranking;
+    }
+
+    /**
+     * Add a gene the individual has a variant in. A gene added more than once keeps its highest score.
+     *
+     * @param gene  the gene, or null for a variant outside of any gene, which is left out
+     * @param score the gene's Exomiser combined score, or NaN if there is none, which ranks like 0
+     */
+    public synchronized void add(String gene, float score) {
+        if (gene == null) {
+            return;
+        }
+        float value = Float.isNaN(score) ? 0F : score;
+        Float old = scores.get(gene);
+        if (old == null || old < value) {
+            scores.put(gene, value);
+            ranked = false;
+        }
+    }
+
+    /**
+     * Add every gene of another ranking.
+     *
+     * @param other the other ranking
+     */
+    public synchronized void addAll(GeneRanking other) {
+        for (Map.Entry<String, Float> entry : other.scores.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Get the top genes, reading no further into a ranking read from a document than needed.
+     *
+     * @param k the number of genes
+     * @return the k genes with the highest scores, highest first
+     */
+    public synchronized List<String> getTop(int k) {
+        List<String> top = new ArrayList<>(Math.max(0, Math.min(k, scores.size())));
+        for (Map.Entry<String, Float> entry : ranked()) {
+            if (top.size() >= k) {
+                break;
+            }
+            top.add(entry.getKey());
+        }
+        return top;
+    }
+
+    /**
+     * @param gene a gene
+     * @return the gene's score, or 0 if the individual has no variant in it
+     */
+    public synchronized double getScore(String gene) {
+        Float score = scores.get(gene);
+        return score == null ? 0D : score.doubleValue();
+    }
+
+    /**
+     * @return the number of genes ranked
+     */
+    public synchronized int size() {
+        return scores.size();
+    }
+
+    /**
+     * Build the document the ranking is stored as.
+     *
+     * @param callsetId the individual the ranking belongs to
+     * @return the document, which replaces any earlier ranking of the individual
+     */
+    public synchronized SolrInputDocument toDoc(String callsetId) {
+        List<String> genes = new ArrayList<>(scores.size());
+        List<Float> geneScores = new ArrayList<>(scores.size());
+        for (Map.Entry<String, Float> entry : ranked()) {
+            genes.add(entry.getKey());
+            geneScores.add(entry.getValue());
+        }
+
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(VariantsSchema.HASH, VariantsSchema.getGeneRankingId(callsetId));
+        doc.setField(VariantsSchema.TYPE, VariantsSchema.TYPE_GENE_RANKING);
+        doc.setField(VariantsSchema.CALLSET_ID, callsetId);
+        doc.setField(VariantsSchema.RANKED_GENES, genes);
+        doc.setField(VariantsSchema.RANKED_GENE_SCORES, geneScores);
+        return doc;
+    }
+
+    private Collection<Map.Entry<String, Float>> ranked() {
+        if (ranked) {
+            return scores.entrySet();
+        }
+        List<Map.Entry<String, Float>> entries = new ArrayList<>(scores.entrySet());
+        Collections.sort(entries, RANK);
+        return entries;
+    }
+}
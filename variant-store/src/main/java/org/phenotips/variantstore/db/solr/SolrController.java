@@ -19,47 +19,78 @@
 
 import org.phenotips.variantstore.db.AbstractDatabaseController;
 import org.phenotips.variantstore.db.DatabaseException;
+import org.phenotips.variantstore.db.solr.tasks.AbstractIndividualTask;
 import org.phenotips.variantstore.db.solr.tasks.AddIndividualTask;
+import org.phenotips.variantstore.db.solr.tasks.Checkpoint;
+import org.phenotips.variantstore.db.solr.tasks.PipelineStage;
 import org.phenotips.variantstore.db.solr.tasks.RemoveIndividualTask;
+import org.phenotips.variantstore.input.RecordIterator;
+import org.phenotips.variantstore.input.VariantDiff;
+import org.phenotips.variantstore.input.VariantFilter;
+import org.phenotips.variantstore.input.VariantHeader;
 import org.phenotips.variantstore.input.VariantIterator;
+import org.phenotips.variantstore.input.VariantRecord;
 import org.phenotips.variantstore.shared.ResourceManager;
-import static org.phenotips.variantstore.db.solr.SolrVariantUtils.documentListToMapList;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.Group;
 import org.apache.solr.client.solrj.response.GroupCommand;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.GroupParams;
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.util.RefCounted;
 import org.ga4gh.GAVariant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.Striped;
+
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Manages an embedded instance of solr.
@@ -77,13 +108,74 @@ public class SolrController extends AbstractDatabaseController
      */
     public static final String DB_FREQUENCY_FIELD = "PhenomeCentral";
 
+    private static final String[] CALL_FIELDS =
+            VariantsSchema.CALL_FIELDS.toArray(new String[VariantsSchema.CALL_FIELDS.size()]);
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
-    // ensure that insertion and deletions are done synchronously, one task at a time
-    private ExecutorService executor = Executors.newFixedThreadPool(1);
+    /**
+     * The number of insertion and deletion tasks that run at once, if none is specified.
+     */
+    public static final int DEFAULT_WRITERS = 1;
+
+    /**
+     * The least time between two saves of the progress of an upload, in milliseconds, if none is specified.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+    /**
+     * The memory solr buffers documents in during a bulk load, in MB, if none is specified.
+     */
+    public static final double DEFAULT_BULK_RAM_BUFFER_MB = 512;
+
+    private static final String CORE = "variants";
+
+    // the version of the layout of the documents, bumped whenever a change to the schema or the configuration needs
+    // the documents to be written again; installed with the configuration, and checked against the bundled one
+    private static final String SCHEMA_VERSION_FILE = CORE + "/conf/schema.version";
+
+    // updates to the same variant document are kept apart by locking on the variant's hash
+    private static final int LOCK_STRIPES_PER_WRITER = 4;
+
+    // where the index of variant hashes is kept between runs
+    private static final String HASH_INDEX_FILE = "variants.hashes";
+
+    // where the progress of unfinished uploads is kept
+    private static final String CHECKPOINT_DIR = "uploads";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final int STOP_TIMEOUT_MINUTES = 5;
+
+    private ExecutorService executor;
+    private Striped<Lock> locks;
+    private int writers = DEFAULT_WRITERS;
 
     private CoreContainer cores;
     private SolrClient server;
+    private VariantHashIndex hashIndex;
+    private CommitCoordinator commits;
+    private CommitCoordinator.Policy commitPolicy = CommitCoordinator.Policy.VISIBLE;
+
+    private double bulkRamBufferSizeMB = DEFAULT_BULK_RAM_BUFFER_MB;
+    // the number of bulk loads running, and the buffer size to go back to once they are done
+    private int bulkLoads;
+    private double ramBufferSizeMB;
+
+    private int batchSize = AddIndividualTask.DEFAULT_BATCH_SIZE;
+    private int transformThreads = 1;
+    private int writeThreads = 1;
+    private int readers = 1;
+    private long regionSize;
+    private int queueCapacity = AbstractIndividualTask.DEFAULT_QUEUE_CAPACITY;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    // uploads that are interrupted while stopping are resumed on the next start, instead of being rolled back
+    private volatile boolean stopping;
+    // uploads cut short by the last stop, by the ids of their individuals
+    private Map<String, Checkpoint> interrupted = new ConcurrentHashMap<>();
+
+    private Set<AbstractIndividualTask<?, ?>> running =
+            Collections.newSetFromMap(new ConcurrentHashMap<AbstractIndividualTask<?, ?>, Boolean>());
 
     /**
      * Create a SolrController, that will store it's files and configuration in a directory inside of rootPath.
@@ -102,36 +194,623 @@ public void init(Path path) throws DatabaseException {
         super.init(path);
 
         ResourceManager.copyResourcesToPath(this.getStoragePathSuffix(), this.path);
+        checkSchemaVersion();
+
+        executor = Executors.newFixedThreadPool(writers);
+        locks = Striped.lock(writers * LOCK_STRIPES_PER_WRITER);
 
         // Spin Solr up
         logger.debug(String.valueOf(this.path));
         cores = new CoreContainer(this.path.toString());
         cores.load();
-        server = new EmbeddedSolrServer(cores, "variants");
+        server = new EmbeddedSolrServer(cores, CORE);
+        commits = new CommitCoordinator(server);
+
+        hashIndex = loadHashIndex();
+        loadCheckpoints();
+    }
+
+    /**
+     * Make sure the store was set up for the documents this version writes. The configuration is only installed along
+     * with a new store, so a store set up by an older version keeps the older schema, which would silently leave out
+     * the fields it doesn't know of; such a store has to be rebuilt before it can be used.
+     *
+     * @throws DatabaseException if the store was set up by another version, or the versions can't be read
+     */
+    private void checkSchemaVersion() throws DatabaseException {
+        String expected;
+        try (InputStream in = SolrController.class.getResourceAsStream("/solr/" + SCHEMA_VERSION_FILE)) {
+            if (in == null) {
+                throw new DatabaseException("The schema version isn't bundled with the variant store");
+            }
+            expected = IOUtils.toString(in, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new DatabaseException("Error reading the bundled schema version", e);
+        }
+
+        Path file = this.path.resolve(SCHEMA_VERSION_FILE);
+        // stores set up before the version was recorded are at version 1
+        String installed = "1";
+        try {
+            if (Files.exists(file)) {
+                installed = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            }
+        } catch (IOException e) {
+            throw new DatabaseException(String.format("Error reading the schema version of %s", this.path), e);
+        }
+
+        if (!expected.equals(installed)) {
+            throw new DatabaseException(String.format("The variant store in %s was set up with version %s of the "
+                    + "schema, but version %s is needed: move it aside and add the individuals again",
+                    this.path, installed, expected));
+        }
+    }
+
+    /**
+     * Read the progress of the uploads that didn't finish before the last stop. The uploads that were cancelled or
+     * failed are rolled back; the others wait for {@link #resumeIndividual(VariantIterator)}.
+     *
+     * @throws DatabaseException if the checkpoints can't be listed
+     */
+    private void loadCheckpoints() throws DatabaseException {
+        Path dir = this.path.resolve(CHECKPOINT_DIR);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + CHECKPOINT_SUFFIX)) {
+            for (Path file : files) {
+                Checkpoint checkpoint;
+                try {
+                    checkpoint = Checkpoint.readFrom(file);
+                } catch (IOException e) {
+                    logger.warn(String.format("Ignoring the unreadable checkpoint %s", file), e);
+                    continue;
+                }
+                if (checkpoint.getState() == Checkpoint.State.ROLLBACK) {
+                    rollBack(checkpoint);
+                } else {
+                    logger.info(String.format("The upload of %s was interrupted",
+                            checkpoint.getHeader().getIndividualId()));
+                    interrupted.put(checkpoint.getHeader().getIndividualId(), checkpoint);
+                }
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Error reading the progress of unfinished uploads", e);
+        }
+    }
+
+    private Path getCheckpointFile(VariantHeader header) {
+        try {
+            return this.path.resolve(CHECKPOINT_DIR)
+                    .resolve(URLEncoder.encode(header.getIndividualId(), "UTF-8") + CHECKPOINT_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            // every JVM supports UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load the index of variant hashes saved by {@link #stop()}, or build it from solr if there is none or it has
+     * gone stale or can't be read. The saved index is deleted once read: if we don't get to stop cleanly, it would
+     * miss the variants added in the meantime.
+     *
+     * @return the index
+     * @throws DatabaseException if the index has to be built, and solr can't be read
+     */
+    private VariantHashIndex loadHashIndex() throws DatabaseException {
+        Path file = this.path.resolve(HASH_INDEX_FILE);
+        try {
+            if (Files.exists(file)) {
+                VariantHashIndex index;
+                try {
+                    index = VariantHashIndex.readFrom(file);
+                } finally {
+                    Files.delete(file);
+                }
+                if (!index.needsRebuild()) {
+                    return index;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to read the variant hash index, rebuilding it", e);
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            VariantHashIndex index = VariantHashIndex.build(server);
+            logger.info(String.format("Built the variant hash index from %d variants in %d ms",
+                    index.getInsertions(), System.currentTimeMillis() - start));
+            return index;
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Error building the variant hash index", e);
+        }
     }
 
     @Override
     public void stop() {
+        stopping = true;
         executor.shutdownNow();
+        try {
+            // interrupted uploads save their progress on the way out
+            if (!executor.awaitTermination(STOP_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn("Gave up waiting for uploads and removals to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commits.stop();
+        try {
+            hashIndex.writeTo(this.path.resolve(HASH_INDEX_FILE));
+        } catch (IOException e) {
+            logger.error("Unable to save the variant hash index, it will be rebuilt on the next start", e);
+        }
         cores.shutdown();
     }
 
+    /**
+     * Set the number of variants that are read, merged and written to solr at once when adding an individual.
+     *
+     * @param batchSize the number of variants per batch
+     */
+    public void setBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the number of individuals that can be added or removed at the same time. Must be called before {@link
+     * #init(Path)}.
+     *
+     * @param writers the number of concurrent insertion and deletion tasks
+     */
+    public void setWriters(int writers) {
+        checkArgument(writers > 0, "the number of writers must be positive");
+        checkState(executor == null, "the number of writers must be set before the controller is initialized");
+        this.writers = writers;
+    }
+
+    /**
+     * Set the number of threads each upload or removal uses for every stage of its pipeline. Parsing uses one, unless
+     * an upload is read in parts, see {@link #setReaders(int, long)}.
+     *
+     * @param transformThreads the number of threads hashing variants and building documents
+     * @param writeThreads     the number of threads reading from and writing to solr
+     */
+    public void setStageThreads(int transformThreads, int writeThreads) {
+        checkArgument(transformThreads > 0 && writeThreads > 0, "every stage needs at least one thread");
+        this.transformThreads = transformThreads;
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * Set the number of threads that read an upload whose file can be split into parts, like an indexed VCF. Each
+     * thread reads one part at a time, and the parts are written to solr as they are read.
+     *
+     * @param readers    the number of threads reading an upload
+     * @param regionSize the number of bases in each part of the file, or 0 for a part per chromosome
+     */
+    public void setReaders(int readers, long regionSize) {
+        checkArgument(readers > 0, "there must be at least one reader");
+        checkArgument(regionSize >= 0, "region size must not be negative");
+        this.readers = readers;
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Set how often an upload saves its progress, so that it can go on from there if it is cut short by a stop.
+     *
+     * @param checkpointInterval the least time between two saves, in milliseconds
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        checkArgument(checkpointInterval >= 0, "checkpoint interval must not be negative");
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Set how uploads and removals have their changes committed once they are done. They wait until their changes
+     * can be searched by default.
+     *
+     * @param commitPolicy the policy
+     */
+    public void setCommitPolicy(CommitCoordinator.Policy commitPolicy) {
+        this.commitPolicy = checkNotNull(commitPolicy);
+    }
+
+    /**
+     * Set the memory solr buffers documents in during a bulk load.
+     *
+     * @param bulkRamBufferSizeMB the size of the buffer, in MB
+     */
+    public void setBulkRamBufferSizeMB(double bulkRamBufferSizeMB) {
+        checkArgument(bulkRamBufferSizeMB > 0, "buffer size must be positive");
+        this.bulkRamBufferSizeMB = bulkRamBufferSizeMB;
+    }
+
+    /**
+     * Get the coordinator that groups the commits of uploads and removals, e.g. to see how many commits were made.
+     *
+     * @return the coordinator, or null before {@link #init(Path)}
+     */
+    public CommitCoordinator getCommitCoordinator() {
+        return commits;
+    }
+
+    /**
+     * Set the number of batches that can wait between two stages of an upload or removal.
+     *
+     * @param queueCapacity the capacity of the queues between stages
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        checkArgument(queueCapacity > 0, "queue capacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Get the pipeline counters of every upload and removal currently running.
+     *
+     * @return the parse, transform and write stages, by individual id
+     */
+    public Map<String, List<PipelineStage>> getRunningStages() {
+        Map<String, List<PipelineStage>> stages = new HashMap<>();
+        for (AbstractIndividualTask<?, ?> task : running) {
+            stages.put(task.getCallsetId(), task.getStages());
+        }
+        return stages;
+    }
+
     @Override
     public Future addIndividual(final VariantIterator iterator) {
-        FutureTask task = new FutureTask<>(new AddIndividualTask(server, iterator));
+        VariantHeader header = iterator.getHeader();
+        // a new upload replaces what was left of an earlier one
+        forget(header.getIndividualIds());
+        return submitUpload(iterator, new Checkpoint(getCheckpointFile(header), header));
+    }
 
-        executor.submit(task);
+    @Override
+    public Future resumeIndividual(VariantIterator iterator) {
+        Checkpoint checkpoint = interrupted.remove(iterator.getHeader().getIndividualId());
+        if (checkpoint == null) {
+            return addIndividual(iterator);
+        }
+        return submitUpload(iterator, checkpoint);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Solr stops making new searchers until the bulk load ends, which then commits once for every upload and removal
+     * in between. Solr also buffers more documents in memory before writing them out. The update log is kept, since
+     * the version checks that let uploads of variants in common run side by side depend on it.
+     */
+    @Override
+    public synchronized void beginBulkLoad() throws DatabaseException {
+        if (bulkLoads == 0) {
+            ramBufferSizeMB = setRamBufferSize(bulkRamBufferSizeMB);
+            commits.beginBulkLoad();
+            logger.info(String.format("Bulk loading, with a buffer of %.0f MB", bulkRamBufferSizeMB));
+        }
+        bulkLoads++;
+    }
 
-        return task;
+    @Override
+    public void endBulkLoad(boolean optimize) throws DatabaseException {
+        synchronized (this) {
+            checkState(bulkLoads > 0, "not bulk loading");
+            bulkLoads--;
+            if (bulkLoads > 0) {
+                return;
+            }
+            setRamBufferSize(ramBufferSizeMB);
+            commits.endBulkLoad();
+        }
+        long latency = commits.commit(CommitCoordinator.Policy.VISIBLE);
+        logger.info(String.format("Committed the bulk load in %d ms", latency));
+        if (optimize) {
+            long start = System.currentTimeMillis();
+            try {
+                server.optimize(true, true);
+            } catch (SolrServerException | IOException e) {
+                throw new DatabaseException("Error optimizing the index", e);
+            }
+            logger.info(String.format("Optimized the index in %d ms", System.currentTimeMillis() - start));
+        }
+    }
+
+    private synchronized boolean isBulkLoading() {
+        return bulkLoads > 0;
+    }
+
+    /**
+     * Change the memory solr buffers documents in before writing them out, while it runs.
+     *
+     * @param sizeMB the size of the buffer, in MB
+     * @return the size it had before
+     * @throws DatabaseException if the buffer can't be changed
+     */
+    private double setRamBufferSize(double sizeMB) throws DatabaseException {
+        SolrCore core = cores.getCore(CORE);
+        try {
+            RefCounted<IndexWriter> writer = core.getSolrCoreState().getIndexWriter(core);
+            try {
+                LiveIndexWriterConfig config = writer.get().getConfig();
+                double old = config.getRAMBufferSizeMB();
+                config.setRAMBufferSizeMB(sizeMB);
+                return old;
+            } finally {
+                writer.decref();
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to change the indexing buffer of solr", e);
+        } finally {
+            core.close();
+        }
+    }
+
+    @Override
+    public List<VariantHeader> getInterruptedIndividuals() {
+        List<VariantHeader> headers = new ArrayList<>();
+        for (Checkpoint checkpoint : interrupted.values()) {
+            headers.add(checkpoint.getHeader());
+        }
+        return headers;
+    }
+
+    private Future submitUpload(VariantIterator iterator, Checkpoint checkpoint) {
+        AddIndividualTask task = new AddIndividualTask(server, iterator, batchSize, locks);
+        task.setReaders(readers, regionSize);
+        checkpoint.setInterval(checkpointInterval);
+        task.setCheckpoint(checkpoint);
+        return submit(task, checkpoint);
+    }
+
+    @Override
+    public Future removeIndividual(String id) throws DatabaseException {
+        forget(Collections.singleton(id));
+        return submit(new RemoveIndividualTask(server, id, batchSize, locks), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The individual is first taken out of the variants that are gone or changed, then added to the ones that are new
+     * or changed. Updates aren't checkpointed: one cut short leaves the individual half updated, until it is added
+     * again.
+     */
+    @Override
+    public Future updateIndividual(VariantDiff diff) {
+        String id = diff.getHeader().getIndividualId();
+        forget(Collections.singleton(id));
+        logger.info(String.format("Updating %s: %s", id, diff));
+
+        List<String> hashes = new ArrayList<>(diff.getRemoved().size());
+        for (VariantRecord record : diff.getRemoved()) {
+            hashes.add(SolrVariantUtils.getHash(record));
+        }
+        final List<AbstractIndividualTask<?, ?>> tasks = new ArrayList<>();
+        tasks.add(new RemoveIndividualTask(server, id, hashes, batchSize, locks));
+        AddIndividualTask add = new AddIndividualTask(server, diff.getAdditions(), batchSize, locks);
+        // the removal deletes the gene ranking, which the additions alone can't build again
+        add.setRanking(GeneRanking.fromRecords(diff.getRecords()));
+        tasks.add(add);
+
+        FutureTask future = new FutureTask<>(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                for (AbstractIndividualTask<?, ?> task : tasks) {
+                    configure(task);
+                    running.add(task);
+                    try {
+                        task.call();
+                    } finally {
+                        running.remove(task);
+                    }
+                }
+                return null;
+            }
+        });
+        executor.submit(future);
+        return future;
     }
 
     @Override
-    public Future removeIndividual(VariantIterator iterator) throws DatabaseException {
-        FutureTask task = new FutureTask<>(new RemoveIndividualTask(server, iterator));
+    public List<VariantRecord> getIndividualVariants(String id) throws DatabaseException {
+        final List<VariantRecord> records = new ArrayList<>();
+        SolrQuery q = new SolrQuery(VariantsSchema.getCallsQuery(id))
+                .setFields(CALL_FIELDS)
+                .setRows(batchSize);
+        try {
+            // the individual's calls are found by searching, which only sees what is committed
+            commits.flush();
+            SolrUtils.processAllDocs(server, q, VariantsSchema.HASH, new Function<Collection<SolrDocument>, Boolean>()
+            {
+                @Override
+                public Boolean apply(Collection<SolrDocument> calls) {
+                    for (SolrDocument call : calls) {
+                        records.add(SolrVariantUtils.docToRecord(call));
+                    }
+                    return false;
+                }
+            });
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Error reading the individual's variants from Solr", e);
+        }
+        // a variant has a single call document per individual
+        Collections.sort(records, VariantDiff.ORDER);
+        return records;
+    }
+
+    /**
+     * Drop the interrupted uploads of any of the given individuals.
+     *
+     * @param ids the ids of the individuals
+     */
+    private void forget(Collection<String> ids) {
+        Iterator<Checkpoint> it = interrupted.values().iterator();
+        while (it.hasNext()) {
+            Checkpoint checkpoint = it.next();
+            if (!Collections.disjoint(checkpoint.getHeader().getIndividualIds(), ids)) {
+                it.remove();
+                try {
+                    checkpoint.delete();
+                } catch (IOException e) {
+                    logger.warn(String.format("Unable to delete the progress of %s",
+                            checkpoint.getHeader().getIndividualId()), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record which of the individuals of an upload already have calls, and keep a copy of their calls, so that
+     * rolling back the upload can put them back. Only done before the upload first writes anything.
+     *
+     * @param checkpoint the upload's checkpoint
+     * @throws DatabaseException if the calls can't be read or kept
+     */
+    private void keepStored(Checkpoint checkpoint) throws DatabaseException {
+        Set<String> stored = findStored(checkpoint.getHeader().getIndividualIds());
+        for (String id : stored) {
+            try {
+                checkpoint.saveCalls(id, getIndividualVariants(id));
+            } catch (IOException e) {
+                throw new DatabaseException("Unable to keep the calls of " + id, e);
+            }
+        }
+        checkpoint.setStored(stored);
+    }
+
+    /**
+     * Find which individuals already have calls. An individual whose upload finished has a gene ranking document, or
+     * had it deleted because its calls were committed already, so a realtime get of the rankings followed by a search
+     * finds it even if its last upload is not committed yet.
+     *
+     * @param ids the ids of the individuals
+     * @return the individuals that have calls
+     * @throws DatabaseException if solr can't be read
+     */
+    private Set<String> findStored(Collection<String> ids) throws DatabaseException {
+        Set<String> stored = new HashSet<>();
+        List<String> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(VariantsSchema.getGeneRankingId(id));
+        }
+        try {
+            for (SolrDocument doc : SolrUtils.getByIds(server, keys,
+                    Collections.singletonList(VariantsSchema.CALLSET_ID))) {
+                stored.add((String) doc.getFieldValue(VariantsSchema.CALLSET_ID));
+            }
+            for (String id : ids) {
+                if (!stored.contains(id)) {
+                    SolrQuery q = new SolrQuery()
+                            .setQuery(VariantsSchema.getCallsQuery(id))
+                            .setRows(0);
+                    if (server.query(q).getResults().getNumFound() > 0) {
+                        stored.add(id);
+                    }
+                }
+            }
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Error looking up the stored calls of " + ids, e);
+        }
+        return stored;
+    }
+
+    /**
+     * Take out what an upload wrote, in the background. Every individual of the upload is taken out, then the ones
+     * that had calls before the upload get the copy of them kept by its checkpoint back. An upload whose checkpoint
+     * doesn't tell which individuals had calls before is taken out entirely. Until all that is done, the checkpoint
+     * stays marked for rollback, so that a stop in the meantime has it rolled back on the next start.
+     *
+     * @param checkpoint the upload's checkpoint
+     */
+    private void rollBack(final Checkpoint checkpoint) {
+        final VariantHeader header = checkpoint.getHeader();
+        logger.info(String.format("Rolling back the upload of %s", header.getIndividualId()));
+        checkpoint.setState(Checkpoint.State.ROLLBACK);
+        try {
+            checkpoint.save();
+        } catch (IOException e) {
+            logger.warn(String.format("Unable to mark the upload of %s for rollback", header.getIndividualId()), e);
+        }
+
+        executor.submit(new Runnable()
+        {
+            @Override
+            public void run() {
+                try {
+                    // what the upload wrote has to be searchable to be found and taken out
+                    commits.commit(CommitCoordinator.Policy.VISIBLE);
+                    for (String id : header.getIndividualIds()) {
+                        RemoveIndividualTask task = new RemoveIndividualTask(server, id, batchSize, locks);
+                        configure(task);
+                        task.call();
+                    }
 
-        executor.submit(task);
+                    Set<String> stored = checkpoint.getStored();
+                    if (stored != null && !stored.isEmpty()) {
+                        // the removals have to be searchable too, or the calls put back look like an addition
+                        commits.commit(CommitCoordinator.Policy.VISIBLE);
+                        for (String id : stored) {
+                            logger.info(String.format("Putting back the calls %s had before the upload", id));
+                            AddIndividualTask task = new AddIndividualTask(server,
+                                    new RecordIterator(new VariantHeader(id, header.isPublic()), new VariantFilter(),
+                                            checkpoint.readCalls(id).iterator()), batchSize, locks);
+                            configure(task);
+                            task.call();
+                        }
+                    }
+                    checkpoint.delete();
+                } catch (Exception e) {
+                    logger.error(String.format("Error rolling back the upload of %s", header.getIndividualId()), e);
+                }
+            }
+        });
+    }
 
-        return task;
+    private void configure(AbstractIndividualTask<?, ?> task) {
+        // during a bulk load, the commits of tasks are held back until it ends
+        task.setCommitPolicy(commits, isBulkLoading() ? CommitCoordinator.Policy.ASYNC : commitPolicy);
+        task.setStageThreads(transformThreads, writeThreads);
+        task.setQueueCapacity(queueCapacity);
+        task.setHashIndex(hashIndex);
+    }
+
+    /**
+     * Run a task on the executor. An upload that is cancelled or fails is rolled back, unless it was interrupted by a
+     * stop, in which case it can be resumed on the next start.
+     *
+     * @param task       the task
+     * @param checkpoint the checkpoint of an upload, or null
+     * @return the task's future
+     */
+    private Future submit(final AbstractIndividualTask<?, ?> task, final Checkpoint checkpoint) {
+        configure(task);
+
+        FutureTask future = new FutureTask<>(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                running.add(task);
+                try {
+                    if (checkpoint != null && checkpoint.getStored() == null) {
+                        keepStored(checkpoint);
+                    }
+                    return task.call();
+                } catch (Exception e) {
+                    if (checkpoint != null && !stopping) {
+                        rollBack(checkpoint);
+                    }
+                    throw e;
+                } finally {
+                    running.remove(task);
+                }
+            }
+        });
+
+        executor.submit(future);
+
+        return future;
     }
 
     @Override
@@ -144,31 +823,25 @@ public List<GAVariant> getTopHarmfullVariants(String id, int n) {
 
         logger.debug(String.format("Searching for id:%s n:%s", id, n));
 
-        String queryString = String.format("%s:PASS",
-                VariantsSchema.getCallsetsFieldName(id, VariantsSchema.FILTER));
+        String queryString = String.format("%s AND %s:PASS", VariantsSchema.getCallsQuery(id), VariantsSchema.FILTER);
 
         logger.debug("Query string: " + queryString);
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
                 .setRows(n)
-                .setSort(VariantsSchema.getCallsetsFieldName(id, VariantsSchema.EXOMISER_VARIANT_SCORE),
-                        SolrQuery.ORDER.desc);
+                .setSort(VariantsSchema.EXOMISER_VARIANT_SCORE, SolrQuery.ORDER.desc);
 
         QueryResponse resp;
 
         try {
-            resp = server.query(q);
+            resp = queryCalls(q);
         } catch (SolrServerException | IOException e) {
             logger.error("Error getting individuals ", e);
             return list;
         }
-        // Filter the variants further, to pull out each individual's variant.
-        List<Map<String, GAVariant>> mapList = documentListToMapList(resp.getResults());
-        for (Map<String, GAVariant> map : mapList) {
-            if (map.containsKey(id)) {
-                list.add(map.get(id));
-            }
+        for (SolrDocument doc : resp.getResults()) {
+            list.add(SolrVariantUtils.docToVariant(doc));
         }
 
         return list;
@@ -197,6 +870,8 @@ public int beacon(String chr, long pos, String allele) {
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
+                .setFilterQueries(VariantsSchema.getVariantsQuery())
+                .setFields(VariantsSchema.AC_TOT)
                 .setRows(1);
 
         QueryResponse resp;
@@ -216,7 +891,7 @@ public int beacon(String chr, long pos, String allele) {
 
     @Override
     public long getTotNumVariants() {
-        String queryString = "*:*";
+        String queryString = VariantsSchema.getVariantsQuery();
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
@@ -233,6 +908,20 @@ public long getTotNumVariants() {
         return resp.getResults().getNumFound();
     }
 
+    @Override
+    public boolean hasIndividual(String id) {
+        SolrQuery q = new SolrQuery()
+                .setQuery(VariantsSchema.getCallsQuery(id))
+                .setRows(0);
+
+        try {
+            return server.query(q).getResults().getNumFound() > 0;
+        } catch (SolrServerException | IOException e) {
+            logger.error("Error looking up individual " + id, e);
+            return false;
+        }
+    }
+
     /**
      * Given an individual id, return all the genes stored for that individual.
      *
@@ -242,44 +931,94 @@ public long getTotNumVariants() {
      */
     @Override
     public Set<String> getAllGenesForIndividual(String id) {
+        return new HashSet<>(getGenesForIndividual(id, 0, -1).keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The genes are faceted on, so they come straight from the index without reading any of the calls.
+     */
+    @Override
+    public Map<String, Long> getGenesForIndividual(String id, int offset, int limit) {
         checkArgument(!id.isEmpty());
-        logger.debug("getAllGenesForIndividual(" + id + ")");
+        checkArgument(offset >= 0, "offset must not be negative");
+        logger.debug(String.format("getGenesForIndividual(%s, %d, %d)", id, offset, limit));
 
-        final Set<String> set = new HashSet<>();
+        Map<String, Long> genes = new LinkedHashMap<>();
 
-        String queryString = String.format("%s:%s ", VariantsSchema.CALLSET_IDS, id);
+        SolrQuery q = new SolrQuery()
+                .setQuery(VariantsSchema.getCallsQuery(id))
+                .setRows(0)
+                .setFacet(true)
+                .addFacetField(VariantsSchema.GENE)
+                .setFacetMinCount(1)
+                .setFacetLimit(limit < 0 ? -1 : limit)
+                .setFacetSort(FacetParams.FACET_SORT_INDEX);
+        q.set(FacetParams.FACET_OFFSET, offset);
+
+        QueryResponse resp;
+        try {
+            resp = server.query(q);
+        } catch (SolrServerException | IOException e) {
+            logger.error("GenesForIndividual Solr Exception", e);
+            return genes;
+        }
 
-        SolrQuery q = new SolrQuery().setQuery(queryString);
-        // sort on unique
+        FacetField field = resp.getFacetField(VariantsSchema.GENE);
+        if (field != null && field.getValues() != null) {
+            for (FacetField.Count count : field.getValues()) {
+                genes.put(count.getName(), count.getCount());
+            }
+        }
+        return genes;
+    }
 
+    /**
+     * Read an individual's gene ranking, which holds every gene it has a variant in, with the gene's score.
+     *
+     * @param id the individual
+     * @return the ranking, or null if the individual has none, e.g. since it was stored by an older version
+     */
+    GeneRanking getGeneRanking(String id) {
+        SolrQuery q = new SolrQuery()
+                .setQuery(String.format("%s:%s", VariantsSchema.HASH,
+                        ClientUtils.escapeQueryChars(VariantsSchema.getGeneRankingId(id))))
+                .setFields(VariantsSchema.RANKED_GENES, VariantsSchema.RANKED_GENE_SCORES)
+                .setRows(1);
+
+        QueryResponse resp;
         try {
-            SolrUtils.processAllDocs(server, q, VariantsSchema.HASH, new Function<Collection<SolrDocument>, Boolean>()
-            {
-                @Override
-                public Boolean apply(Collection<SolrDocument> solrDocuments) {
-                    for (SolrDocument doc : solrDocuments) {
-                        set.add((String) doc.get(VariantsSchema.GENE));
-                    }
-                    return false;
-                }
-            });
+            resp = server.query(q);
         } catch (SolrServerException | IOException e) {
-            logger.error("AllGenesForIndividual Solr Exception", e);
-            return set;
+            logger.error("GeneRanking Solr Exception", e);
+            return null;
         }
 
-        return set;
+        SolrDocumentList results = resp.getResults();
+        return results.isEmpty() ? null : GeneRanking.fromDoc(results.get(0));
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The score is read from the individual's gene ranking, if it has one, and from its calls in the gene otherwise.
+     */
     @Override
     public Double getGeneScore(String id, String gene) {
         logger.debug(String.format("getGeneScore(%s, %s)", id, gene));
-        String queryString = String.format("%s:%s AND %s:%s",
-                VariantsSchema.CALLSET_IDS, id,
-                VariantsSchema.GENE, gene);
+        GeneRanking ranking = getGeneRanking(id);
+        if (ranking != null) {
+            return ranking.getScore(gene);
+        }
+
+        String queryString = String.format("%s AND %s:%s",
+                VariantsSchema.getCallsQuery(id),
+                VariantsSchema.GENE, ClientUtils.escapeQueryChars(gene));
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
+                .setFields(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE)
                 .setRows(1);
 
         QueryResponse resp;
@@ -295,8 +1034,7 @@ public Double getGeneScore(String id, String gene) {
             return 0D;
         }
 
-        Float result = (Float) results.get(0).get(VariantsSchema.getCallsetsFieldName(
-                id, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE));
+        Float result = (Float) results.get(0).get(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE);
 
         if (result != null) {
             return result.doubleValue();
@@ -305,19 +1043,86 @@ public Double getGeneScore(String id, String gene) {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The scores are read from the individual's gene ranking, if it has one. Otherwise, the individual's calls in the
+     * genes are grouped by gene, and the score is read from the first call of each.
+     */
+    @Override
+    public Map<String, Double> getGeneScores(String id, Collection<String> genes) {
+        checkNotNull(genes);
+        logger.debug(String.format("getGeneScores(%s, %d genes)", id, genes.size()));
+
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String gene : genes) {
+            scores.put(gene, 0D);
+        }
+        if (scores.isEmpty()) {
+            return scores;
+        }
+        GeneRanking ranking = getGeneRanking(id);
+        if (ranking != null) {
+            for (Map.Entry<String, Double> entry : scores.entrySet()) {
+                entry.setValue(ranking.getScore(entry.getKey()));
+            }
+            return scores;
+        }
+
+        // the terms parser takes the genes as they are, without a clause per gene
+        SolrQuery q = new SolrQuery()
+                .setQuery(VariantsSchema.getCallsQuery(id))
+                .setFilterQueries(String.format("{!terms f=%s}%s", VariantsSchema.GENE,
+                        StringUtils.join(scores.keySet(), ',')))
+                .setFields(VariantsSchema.GENE, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE)
+                .setRows(scores.size())
+                .setParam(GroupParams.GROUP, true)
+                .setParam(GroupParams.GROUP_FIELD, VariantsSchema.GENE)
+                .setParam(GroupParams.GROUP_LIMIT, "1");
+
+        QueryResponse resp;
+        try {
+            resp = server.query(q);
+        } catch (SolrServerException | IOException e) {
+            logger.error("GeneScores Solr Exception", e);
+            return scores;
+        }
+
+        for (GroupCommand command : resp.getGroupResponse().getValues()) {
+            for (Group group : command.getValues()) {
+                SolrDocumentList results = group.getResult();
+                Object score = results.isEmpty() ? null
+                        : results.get(0).get(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE);
+                if (group.getGroupValue() != null && score != null) {
+                    scores.put(group.getGroupValue(), ((Number) score).doubleValue());
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The genes are read from the individual's gene ranking, if it has one. Otherwise, the individual's calls are
+     * grouped by gene, and the groups sorted by score.
+     */
     @Override
     public List<String> getTopGenesForIndividual(String id, Integer k) {
         logger.debug(String.format("getTopGenesForIndividual(%s, %d)", id, k));
+        GeneRanking ranking = getGeneRanking(id);
+        if (ranking != null) {
+            return ranking.getTop(k);
+        }
         final List<String> list = new LinkedList<>();
 
-        String queryString = String.format("%s:%s", VariantsSchema.CALLSET_IDS, id);
+        String queryString = VariantsSchema.getCallsQuery(id);
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
+                .setFields(VariantsSchema.GENE)
                 .setRows(k)
-                .setSort(
-                        VariantsSchema.getCallsetsFieldName(id, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE),
-                        SolrQuery.ORDER.desc)
+                .setSort(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE, SolrQuery.ORDER.desc)
                 .setParam(GroupParams.GROUP, true)
                 .setParam(GroupParams.GROUP_FIELD, VariantsSchema.GENE);
 
@@ -343,27 +1148,25 @@ public List<GAVariant> getTopHarmfullVariantsForGene(String id, String gene, Int
         logger.debug(String.format("getTopHarmfullVariantsForGene(%s, %s, %d)", id, gene, k));
         final List<GAVariant> list = new LinkedList<>();
 
-        String queryString = String.format("%s:%s AND  %s:%s",
-                VariantsSchema.CALLSET_IDS, id,
-                VariantsSchema.GENE, gene);
+        String queryString = String.format("%s AND %s:%s",
+                VariantsSchema.getCallsQuery(id),
+                VariantsSchema.GENE, ClientUtils.escapeQueryChars(gene));
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
                 .setRows(k)
-                .setSort(
-                        VariantsSchema.getCallsetsFieldName(id, VariantsSchema.EXOMISER_VARIANT_SCORE),
-                        SolrQuery.ORDER.desc);
+                .setSort(VariantsSchema.EXOMISER_VARIANT_SCORE, SolrQuery.ORDER.desc);
 
         QueryResponse resp;
         try {
-            resp = server.query(q);
+            resp = queryCalls(q);
         } catch (SolrServerException | IOException e) {
             logger.error("Caught Solr Exception", e);
             return list;
         }
 
         for (SolrDocument doc : resp.getResults()) {
-            list.add(SolrVariantUtils.docToVariant(doc, id));
+            list.add(SolrVariantUtils.docToVariant(doc));
         }
 
         return list;
@@ -408,8 +1211,8 @@ public List<GAVariant> getTopHarmfulWithGene(String id,
                 ClientUtils.escapeQueryChars(String.valueOf(alleleFrequencies.get(EXAC_FREQUENCY_FIELD)))
         );
 
-        String queryString = String.format("s:%s AND %s:%s AND (%s) AND (%s)",
-                VariantsSchema.CALLSET_IDS, ClientUtils.escapeQueryChars(id),
+        String queryString = String.format("%s AND %s:%s AND (%s) AND (%s)",
+                VariantsSchema.getCallsQuery(id),
                 VariantsSchema.GENE, ClientUtils.escapeQueryChars(gene),
                 effectQuery,
                 exacQuery
@@ -422,16 +1225,13 @@ public List<GAVariant> getTopHarmfulWithGene(String id,
         QueryResponse resp = null;
 
         try {
-            resp = server.query(q);
+            resp = queryCalls(q);
         } catch (SolrServerException | IOException e) {
             logger.error("Error getting individuals with variants", e);
             return list;
         }
-        Map<String, List<GAVariant>> map = SolrVariantUtils.variantListToCallsetMap(
-                SolrVariantUtils.documentListToMapList(resp.getResults()));
-
-        if (map.containsKey(id)) {
-            list = map.get(id);
+        for (SolrDocument doc : resp.getResults()) {
+            list.add(SolrVariantUtils.docToVariant(doc));
         }
         return list;
     }
@@ -485,24 +1285,29 @@ public Map<String, List<GAVariant>> getIndividualsWithGene(String gene,
                 ClientUtils.escapeQueryChars(String.valueOf(alleleFrequencies.get(EXAC_FREQUENCY_FIELD)))
         );
 
-        String queryString = String.format("%s:[* TO %s] AND %s:%s AND (%s) AND (%s)",
-                VariantsSchema.AC_TOT, copiesSum,
+        String queryString = String.format("%s:%s AND %s:%s AND (%s) AND (%s)",
+                VariantsSchema.TYPE, VariantsSchema.TYPE_CALL,
                 VariantsSchema.GENE, ClientUtils.escapeQueryChars(gene),
                 effectQuery,
                 exacQuery
         );
+        // the total count is only on the variant's document
+        String frequencyQuery = String.format("{!join from=%s to=%s}%s AND %s:[* TO %s]",
+                VariantsSchema.HASH, VariantsSchema.VARIANT,
+                VariantsSchema.getVariantsQuery(),
+                VariantsSchema.AC_TOT, copiesSum);
 
         SolrQuery q = new SolrQuery()
                 .setQuery(queryString)
-                .setFilterQueries(queryString);
+                .setFilterQueries(frequencyQuery);
 
         q.setRows(300);
 
         QueryResponse resp;
 
         try {
-            resp = server.query(q);
-            map = SolrVariantUtils.variantListToCallsetMap(SolrVariantUtils.documentListToMapList(resp.getResults()));
+            resp = queryCalls(q);
+            map = SolrVariantUtils.callsToCallsetMap(resp.getResults());
         } catch (SolrServerException | IOException e) {
             logger.error("Error getting individals with variant", e);
         }
@@ -517,5 +1322,15 @@ public Map<String, List<GAVariant>> getIndividualsWithVariant(String chr, int po
         return map;
     }
 
-
+    /**
+     * Run a query for call documents, fetching only the fields of the calls themselves.
+     *
+     * @param q the query
+     * @return the response
+     * @throws SolrServerException if solr fails to run the query
+     * @throws IOException         if solr can't be reached
+     */
+    QueryResponse queryCalls(SolrQuery q) throws SolrServerException, IOException {
+        return server.query(q.setFields(CALL_FIELDS));
+    }
 }
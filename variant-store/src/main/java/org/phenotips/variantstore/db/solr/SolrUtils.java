@@ -19,14 +19,20 @@
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.function.Function;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.StrUtils;
 
 /**
  * A general utils class to help working with Solr.
@@ -39,6 +45,49 @@ private SolrUtils() {
         throw new AssertionError();
     }
 
+    /**
+     * Fetch many documents by their unique key in a single realtime get. Documents that don't exist are left out of
+     * the result.
+     *
+     * @param server the solr db
+     * @param ids    the unique keys of the documents to fetch
+     * @return the documents that were found
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public static SolrDocumentList getByIds(SolrClient server, List<String> ids)
+        throws IOException, SolrServerException {
+        return getByIds(server, ids, null);
+    }
+
+    /**
+     * Fetch many documents by their unique key in a single realtime get, returning only the given fields. Documents
+     * that don't exist are left out of the result.
+     *
+     * @param server the solr db
+     * @param ids    the unique keys of the documents to fetch
+     * @param fields the fields to return, or null for all of them
+     * @return the documents that were found
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public static SolrDocumentList getByIds(SolrClient server, List<String> ids, List<String> fields)
+        throws IOException, SolrServerException {
+        if (ids.isEmpty()) {
+            return new SolrDocumentList();
+        }
+
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("ids", StrUtils.join(ids, ','));
+        if (fields != null) {
+            params.set(CommonParams.FL, StrUtils.join(fields, ','));
+        }
+
+        QueryRequest request = new QueryRequest(params);
+        request.setPath("/get");
+        return request.process(server).getResults();
+    }
+
     /**
      * Loop over all the documents returned by the query. This method queries the DB multiple times. Every time we get
      * data back, we pass it onto a processor, and stop processing data if the processor tells us it's had enough.
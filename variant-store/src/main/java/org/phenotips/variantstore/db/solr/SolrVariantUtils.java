@@ -17,20 +17,22 @@
  */
 package org.phenotips.variantstore.db.solr;
 
+import org.phenotips.variantstore.input.VariantRecord;
 import org.phenotips.variantstore.shared.GACallInfoFields;
 import org.phenotips.variantstore.shared.GAVariantInfoFields;
 import static org.phenotips.variantstore.shared.VariantUtils.addInfo;
-import static org.phenotips.variantstore.shared.VariantUtils.getInfo;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.update.processor.Lookup3Signature;
 import org.ga4gh.GACall;
@@ -41,79 +43,45 @@
  */
 public final class SolrVariantUtils
 {
+    private static final String ADD = "add";
+    private static final String INC = "inc";
+    private static final String REMOVE = "remove";
+    private static final String SET = "set";
+
     private SolrVariantUtils() {
         throw new AssertionError();
     }
 
     /**
-     * Collect all the individuals into their own maps.
+     * Collect the calls of every individual.
      *
-     * @param mapList a list of maps of individual to variant.
+     * @param calls call documents
      *
      * @return a map of callSetId to list of variants
      */
-    public static Map<String, List<GAVariant>> variantListToCallsetMap(List<Map<String, GAVariant>> mapList) {
+    public static Map<String, List<GAVariant>> callsToCallsetMap(Collection<SolrDocument> calls) {
         Map<String, List<GAVariant>> callsetMap = new HashMap<>();
-        for (Map<String, GAVariant> map : mapList) {
-            for (String key : map.keySet()) {
-                if (!callsetMap.containsKey(key)) {
-                    callsetMap.put(key, new ArrayList<GAVariant>());
-                }
-                callsetMap.get(key).add(map.get(key));
+        for (SolrDocument call : calls) {
+            String callsetId = (String) call.get(VariantsSchema.CALLSET_ID);
+            if (!callsetMap.containsKey(callsetId)) {
+                callsetMap.put(callsetId, new ArrayList<GAVariant>());
             }
+            callsetMap.get(callsetId).add(docToVariant(call));
         }
 
         return callsetMap;
     }
 
     /**
-     * Add the documents in a SolrDocumentList to a list of GAVariants.
-     *
-     * @param documentList the SolrDocumentList
-     *
-     * @return the list of GAVariants
-     */
-    public static List<Map<String, GAVariant>> documentListToMapList(SolrDocumentList documentList) {
-        List<Map<String, GAVariant>> list = new ArrayList<>();
-
-        for (SolrDocument doc : documentList) {
-            Map<String, GAVariant> variantMap = docToVariantMap(doc);
-
-            list.add(variantMap);
-        }
-
-        return list;
-    }
-
-    /**
-     * Get all the individual variants out of a doc.
-     *
-     * @param doc the doc
-     *
-     * @return a map of callsetid to variant
-     */
-    public static Map<String, GAVariant> docToVariantMap(SolrDocument doc) {
-        Map<String, GAVariant> map = new HashMap<>();
-
-        for (String callsetId : (List<String>) doc.get(VariantsSchema.CALLSET_IDS)) {
-            map.put(callsetId, docToVariant(doc, callsetId));
-        }
-
-        return map;
-    }
-
-    /**
-     * Turn a SolrDocument to a GAVariant.
+     * Turn a call document into a GAVariant, with the call as its only one.
      *
-     * @param doc       the SolrDocument
-     * @param callsetId the id of the callset
+     * @param doc the call document
      *
      * @return a new GAVariant
      */
-    public static GAVariant docToVariant(SolrDocument doc, String callsetId) {
+    public static GAVariant docToVariant(SolrDocument doc) {
         GAVariant variant = new GAVariant();
 
-        // TODO: Whole function needs to be newed, should be doc to list<Variant>
         variant.setReferenceName(doc.get(VariantsSchema.CHROM).toString());
         variant.setReferenceBases(doc.get(VariantsSchema.REF).toString());
         variant.setStart(Long.valueOf(doc.get(VariantsSchema.START).toString()));
@@ -128,22 +96,19 @@ public static GAVariant docToVariant(SolrDocument doc, String callsetId) {
         }
 
         GACall call = new GACall();
-        addInfo(call, GACallInfoFields.QUALITY,
-                getCallsetField(doc, callsetId, VariantsSchema.QUAL));
-        addInfo(call, GACallInfoFields.FILTER,
-                getCallsetField(doc, callsetId, VariantsSchema.FILTER));
-        addInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE,
-                getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_VARIANT_SCORE));
-        addInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE,
-                getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_PHENO_SCORE));
+        call.setCallSetId((String) doc.get(VariantsSchema.CALLSET_ID));
+        addInfo(call, GACallInfoFields.QUALITY, doc.get(VariantsSchema.QUAL));
+        addInfo(call, GACallInfoFields.FILTER, doc.get(VariantsSchema.FILTER));
+        addInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE, doc.get(VariantsSchema.EXOMISER_VARIANT_SCORE));
+        addInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE, doc.get(VariantsSchema.EXOMISER_GENE_PHENO_SCORE));
         addInfo(call, GACallInfoFields.EXOMISER_GENE_VARIANT_SCORE,
-                getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_VARIANT_SCORE));
+                doc.get(VariantsSchema.EXOMISER_GENE_VARIANT_SCORE));
         addInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE,
-                getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE));
+                doc.get(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE));
         variant.setCalls(Collections.singletonList(call));
 
-        variant.setAlternateBases(Collections.singletonList(doc.get(VariantsSchema.ALT).toString()));
-        if ((int) getCallsetField(doc, callsetId, VariantsSchema.AC) == 2) {
+        Object copies = doc.get(VariantsSchema.AC);
+        if (copies != null && ((Number) copies).intValue() == 2) {
             call.setGenotype(Arrays.asList(1, 1));
         } else {
             call.setGenotype(Arrays.asList(0, 1));
@@ -153,119 +118,45 @@ public static GAVariant docToVariant(SolrDocument doc, String callsetId) {
     }
 
     /**
-     * Get the value of a field on the doc thats unique to a callset (i.e. not
-     * share by two callsets). For example, a variant quality indicator would be
-     * specific to an individual's read.
-     *
-     * @param doc       the doc to add a field do
-     * @param callsetId the callset this field belongs to
-     * @param fieldName the name of the field
-     *
-     * @return the value of the field
-     */
-    public static Object getCallsetField(SolrDocument doc, String callsetId, String fieldName) {
-        return doc.get(VariantsSchema.getCallsetsFieldName(callsetId, fieldName));
-    }
-
-    /**
-     * Turn a GAVariant into a SolrDocument.
+     * Turn a call document back into the record it was built from by {@link #recordToCallDoc}. Only what is stored
+     * comes back: the first alternate allele, and a genotype with as many copies of it as the call had.
      *
-     * @param variant the GAVariant
+     * @param doc the call document
      *
-     * @return the SolrDocument
+     * @return a new record
      */
-    public static SolrDocument variantToDoc(GAVariant variant) {
-        SolrDocument doc = new SolrDocument();
-
-        doc.setField(VariantsSchema.HASH, getHash(variant));
-        doc.setField(VariantsSchema.CHROM, variant.getReferenceName());
-        doc.setField(VariantsSchema.START, variant.getStart());
-        doc.setField(VariantsSchema.END, variant.getStart() + variant.getReferenceBases().length());
-        doc.setField(VariantsSchema.REF, variant.getReferenceBases());
-        doc.setField(VariantsSchema.REF_LENGTH, variant.getReferenceBases().length());
-        doc.setField(VariantsSchema.ALT, variant.getAlternateBases().get(0));
-        doc.setField(VariantsSchema.ALT_LENGHT, variant.getAlternateBases().get(0).length());
-        doc.setField(VariantsSchema.LENGTH, Math.max((int) doc.get(VariantsSchema.REF_LENGTH),
-                (int) doc.get(VariantsSchema.ALT_LENGHT)));
-
-        doc.setField(VariantsSchema.GENE, getInfo(variant, GAVariantInfoFields.GENE));
-        doc.setField(VariantsSchema.GENE_EFFECT, getInfo(variant, GAVariantInfoFields.GENE_EFFECT));
-
-        doc.setField(VariantsSchema.EXAC_AF, safeValueOf(getInfo(variant, GAVariantInfoFields.EXAC_AF)));
-
-        doc.setField(VariantsSchema.AC_TOT, 0);
-        doc.setField(VariantsSchema.GT_HET, 0);
-        doc.setField(VariantsSchema.GT_HOM, 0);
-        return doc;
+    public static VariantRecord docToRecord(SolrDocument doc) {
+        VariantRecord record = new VariantRecord();
+
+        record.setReferenceName((String) doc.getFieldValue(VariantsSchema.CHROM));
+        record.setStart(((Number) doc.getFieldValue(VariantsSchema.START)).longValue());
+        record.setEnd(((Number) doc.getFieldValue(VariantsSchema.END)).longValue());
+        record.setReferenceBases((String) doc.getFieldValue(VariantsSchema.REF));
+        record.setAlternateBases((String) doc.getFieldValue(VariantsSchema.ALT));
+        record.setGene((String) doc.getFieldValue(VariantsSchema.GENE));
+        record.setGeneEffect((String) doc.getFieldValue(VariantsSchema.GENE_EFFECT));
+        record.setExacAlleleFrequency(unboxed(doc.getFieldValue(VariantsSchema.EXAC_AF)));
+
+        record.setCallSetId((String) doc.getFieldValue(VariantsSchema.CALLSET_ID));
+        Object copies = doc.getFieldValue(VariantsSchema.AC);
+        int count = copies == null ? 0 : ((Number) copies).intValue();
+        record.setGenotype((byte) (count > 1 ? 1 : 0), (byte) (count > 0 ? 1 : 0));
+        record.setQuality(unboxed(doc.getFieldValue(VariantsSchema.QUAL)));
+        record.setFilter((String) doc.getFieldValue(VariantsSchema.FILTER));
+        record.setExomiserVariantScore(unboxed(doc.getFieldValue(VariantsSchema.EXOMISER_VARIANT_SCORE)));
+        record.setExomiserGenePhenoScore(unboxed(doc.getFieldValue(VariantsSchema.EXOMISER_GENE_PHENO_SCORE)));
+        record.setExomiserGeneVariantScore(unboxed(doc.getFieldValue(VariantsSchema.EXOMISER_GENE_VARIANT_SCORE)));
+        record.setExomiserGeneCombinedScore(unboxed(doc.getFieldValue(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE)));
+
+        return record;
     }
 
-    /**
-     * Add callset-specific fields from a variant to an existing document.
-     *
-     * @param doc       The existing document
-     * @param variant   the variant
-     * @param callsetId the id of the callset
-     * @param isPublic  whether these variants can be used in an aggregate
-     *                  search.
-     */
-    public static void addVariantToDoc(SolrDocument doc, GAVariant variant, String callsetId, boolean isPublic) {
-        doc.setField(VariantsSchema.CALLSET_IDS, callsetId);
-
-        GACall call = variant.getCalls().get(0);
-        int copies = 0;
-        for (int i : call.getGenotype()) {
-            if (i == 1) {
-                copies++;
-            }
+    private static float unboxed(Object value) {
+        if (value == null) {
+            return Float.NaN;
         }
-        doc.setField(VariantsSchema.AC_TOT, (int) doc.getFieldValue(VariantsSchema.AC_TOT) + copies);
-        if (copies == 1) {
-            doc.setField(VariantsSchema.AC_TOT, (int) doc.getFieldValue(VariantsSchema.GT_HET) + 1);
-        } else if (copies == 2) {
-            doc.setField(VariantsSchema.AC_TOT, (int) doc.getFieldValue(VariantsSchema.GT_HOM) + 1);
-        }
-
-        setCallsetField(doc, callsetId, VariantsSchema.PUBLIC, isPublic);
-        setCallsetField(doc, callsetId, VariantsSchema.AC, copies);
-        setCallsetField(doc, callsetId, VariantsSchema.QUAL, getInfo(call, GACallInfoFields.QUALITY));
-        setCallsetField(doc, callsetId, VariantsSchema.FILTER, getInfo(call, GACallInfoFields.FILTER));
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_VARIANT_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE)));
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_PHENO_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE)));
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_VARIANT_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_GENE_VARIANT_SCORE)));
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE)));
-    }
-
-    /**
-     * Set a field on the doc thats unique to a callset (i.e. not share by two
-     * callsets). For example, a variant quality indicator would be specific to
-     * an individual's read.
-     *
-     * @param doc       the doc to add a field do
-     * @param callsetId the callset this field belongs to
-     * @param fieldName the name of the field
-     * @param value     the value
-     */
-    static void setCallsetField(SolrDocument doc, String callsetId, String fieldName, Object value) {
-        doc.setField(VariantsSchema.getCallsetsFieldName(callsetId, fieldName), value);
-    }
-
-    /**
-     * Avoid NullPointerExceptions when parsing doubles.
-     *
-     * @param s the string
-     *
-     * @return a double or null
-     */
-    private static Double safeValueOf(String s) {
-        if (s == null) {
-            return null;
-        }
-
-        return Double.valueOf(s);
+        // the ExAC frequency is stored as a string
+        return value instanceof Number ? ((Number) value).floatValue() : Float.parseFloat(value.toString());
     }
 
     /**
@@ -285,6 +176,24 @@ public static String getHash(GAVariant variant) {
         return byteArrayToString(signatureBuilder.getSignature());
     }
 
+    /**
+     * Make variant signature from chr + pos + ref + alt. Gives the same signature as {@link #getHash(GAVariant)} for
+     * the same variant.
+     *
+     * @param record the variant
+     *
+     * @return the signature
+     */
+    public static String getHash(VariantRecord record) {
+        Lookup3Signature signatureBuilder = new Lookup3Signature();
+        signatureBuilder.add(record.getReferenceName());
+        signatureBuilder.add(Long.toString(record.getStart()));
+        signatureBuilder.add(record.getReferenceBases());
+        signatureBuilder.add(record.getFirstAlternateBases());
+
+        return byteArrayToString(signatureBuilder.getSignature());
+    }
+
     /**
      * Turns bytes[] into a hex String. Copied from {@link
      * org.apache.solr.update.processor.SignatureUpdateProcessorFactory}.
@@ -307,56 +216,233 @@ private static String byteArrayToString(byte[] bytes) {
     }
 
     /**
-     * Remove a variant from a document. The call set ID must be provided to
-     * specify which callset to remove the variant from.
+     * Build an atomic update that adds a callset to an existing variant document. Only the fields that change are
+     * sent: the callset is added to the callset list, and the aggregate counts are incremented. The callset's own
+     * fields go in its call document, built by {@link #recordToCallDoc}.
      *
-     * @param doc       the SolrDocument
-     * @param variant   the GAVatriant to remove
-     * @param callsetId the callsetId that the variant belongs to
-     * @param isPublic  whether the variant was public
+     * @param record    the variant
+     * @param hash      the hash of the variant, as given by {@link #getHash(VariantRecord)}
+     * @param callsetId the id of the callset
+     *
+     * @return the atomic update
      */
-    public static void removeVariantFromDoc(SolrDocument doc, GAVariant variant, String callsetId, boolean isPublic) {
+    public static SolrInputDocument recordToAtomicAdd(VariantRecord record, String hash, String callsetId) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(VariantsSchema.HASH, hash);
 
-        removeMultiFieldValue(doc, VariantsSchema.CALLSET_IDS, callsetId);
+        int copies = record.getCopies();
 
-        GACall call = variant.getCalls().get(0);
-        int copies = 0;
-        for (int i : call.getGenotype()) {
-            if (i == 1) {
-                copies--;
-            }
+        doc.setField(VariantsSchema.CALLSET_IDS, atomic(ADD, callsetId));
+        doc.setField(VariantsSchema.AC_TOT, atomic(INC, copies));
+        if (copies == 1) {
+            doc.setField(VariantsSchema.GT_HET, atomic(INC, 1));
+        } else if (copies == 2) {
+            doc.setField(VariantsSchema.GT_HOM, atomic(INC, 1));
+        }
+
+        return doc;
+    }
+
+    /**
+     * Build the full document for a variant that isn't stored yet, carried by a single callset. Missing values are
+     * left out. The callset's own fields go in its call document, built by {@link #recordToCallDoc}.
+     *
+     * @param record    the variant
+     * @param hash      the hash of the variant, as given by {@link #getHash(VariantRecord)}
+     * @param callsetId the id of the callset
+     *
+     * @return the document
+     */
+    public static SolrInputDocument recordToDoc(VariantRecord record, String hash, String callsetId) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(VariantsSchema.HASH, hash);
+        doc.setField(VariantsSchema.TYPE, VariantsSchema.TYPE_VARIANT);
+        setVariantFields(doc, record);
+
+        int copies = record.getCopies();
+        doc.setField(VariantsSchema.CALLSET_IDS, callsetId);
+        doc.setField(VariantsSchema.AC_TOT, copies);
+        doc.setField(VariantsSchema.GT_HET, copies == 1 ? 1 : 0);
+        doc.setField(VariantsSchema.GT_HOM, copies == 2 ? 1 : 0);
+
+        return doc;
+    }
+
+    /**
+     * Build the call document of a callset on a variant. Missing values are left out.
+     *
+     * @param record    the variant, with the callset's call
+     * @param hash      the hash of the variant, as given by {@link #getHash(VariantRecord)}
+     * @param callsetId the id of the callset
+     * @param isPublic  whether these variants can be used in an aggregate search.
+     *
+     * @return the document
+     */
+    public static SolrInputDocument recordToCallDoc(VariantRecord record, String hash, String callsetId,
+            boolean isPublic) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(VariantsSchema.HASH, VariantsSchema.getCallId(hash, callsetId));
+        doc.setField(VariantsSchema.TYPE, VariantsSchema.TYPE_CALL);
+        doc.setField(VariantsSchema.VARIANT, hash);
+        doc.setField(VariantsSchema.CALLSET_ID, callsetId);
+        setVariantFields(doc, record);
+
+        doc.setField(VariantsSchema.PUBLIC, isPublic);
+        doc.setField(VariantsSchema.AC, record.getCopies());
+        setIfPresent(doc, VariantsSchema.QUAL, VariantRecord.boxed(record.getQuality()));
+        setIfPresent(doc, VariantsSchema.FILTER, record.getFilter());
+        setIfPresent(doc, VariantsSchema.EXOMISER_VARIANT_SCORE, VariantRecord.boxed(record.getExomiserVariantScore()));
+        setIfPresent(doc, VariantsSchema.EXOMISER_GENE_PHENO_SCORE,
+                VariantRecord.boxed(record.getExomiserGenePhenoScore()));
+        setIfPresent(doc, VariantsSchema.EXOMISER_GENE_VARIANT_SCORE,
+                VariantRecord.boxed(record.getExomiserGeneVariantScore()));
+        setIfPresent(doc, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE,
+                VariantRecord.boxed(record.getExomiserGeneCombinedScore()));
+
+        return doc;
+    }
+
+    private static void setVariantFields(SolrInputDocument doc, VariantRecord record) {
+        String ref = record.getReferenceBases();
+        String alt = record.getFirstAlternateBases();
+
+        doc.setField(VariantsSchema.CHROM, record.getReferenceName());
+        doc.setField(VariantsSchema.START, record.getStart());
+        doc.setField(VariantsSchema.END, record.getStart() + ref.length());
+        doc.setField(VariantsSchema.REF, ref);
+        doc.setField(VariantsSchema.REF_LENGTH, ref.length());
+        doc.setField(VariantsSchema.ALT, alt);
+        doc.setField(VariantsSchema.ALT_LENGHT, alt.length());
+        doc.setField(VariantsSchema.LENGTH, Math.max(ref.length(), alt.length()));
+
+        setIfPresent(doc, VariantsSchema.GENE, record.getGene());
+        setIfPresent(doc, VariantsSchema.GENE_EFFECT, record.getGeneEffect());
+        setIfPresent(doc, VariantsSchema.EXAC_AF, VariantRecord.boxed(record.getExacAlleleFrequency()));
+    }
+
+    private static void setIfPresent(SolrInputDocument doc, String field, Object value) {
+        if (value != null) {
+            doc.setField(field, value);
         }
-        doc.setField(VariantsSchema.AC_TOT, (int) doc.getFieldValue(VariantsSchema.AC_TOT) - copies);
+    }
+
+    /**
+     * Build an atomic update that removes a callset from a variant document. The callset is taken out of the callset
+     * list, and the aggregate counts are decremented. The callset's call document is deleted separately.
+     *
+     * @param hash      the hash of the variant document
+     * @param callsetId the id of the callset to remove
+     * @param copies    the number of copies of the alt allele that the callset had
+     *
+     * @return the atomic update
+     */
+    public static SolrInputDocument callsetToAtomicRemove(String hash, String callsetId, int copies) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField(VariantsSchema.HASH, hash);
+
+        doc.setField(VariantsSchema.CALLSET_IDS, atomic(REMOVE, callsetId));
+        doc.setField(VariantsSchema.AC_TOT, atomic(INC, -copies));
         if (copies == 1) {
-            doc.setField(VariantsSchema.AC_TOT, (int) doc.getFieldValue(VariantsSchema.GT_HET) - 1);
+            doc.setField(VariantsSchema.GT_HET, atomic(INC, -1));
         } else if (copies == 2) {
-            doc.setField(VariantsSchema.AC_TOT, (int) doc.getFieldValue(VariantsSchema.GT_HOM) - 1);
+            doc.setField(VariantsSchema.GT_HOM, atomic(INC, -1));
         }
 
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.PUBLIC, isPublic);
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.AC, copies);
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.QUAL, getInfo(call, GACallInfoFields.QUALITY));
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.FILTER, getInfo(call, GACallInfoFields.FILTER));
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.EXOMISER_VARIANT_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE)));
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.EXOMISER_GENE_PHENO_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE)));
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.EXOMISER_GENE_VARIANT_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_GENE_VARIANT_SCORE)));
-        removeCallsetFieldValue(doc, callsetId, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE,
-                safeValueOf(getInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE)));
+        return doc;
     }
 
-    private static void removeMultiFieldValue(SolrDocument doc, String key, Object value) {
-        // clone array, sometimes it's unmodifiable
-        List<Object> values = new ArrayList<>(doc.getFieldValues(key));
-        values.remove(value);
-        doc.setField(key, values);
+    /**
+     * Apply an atomic update that adds a callset, as built by {@link #recordToAtomicAdd}, to a whole document that
+     * hasn't been written yet. Used to put several callsets on a new variant in a single write.
+     *
+     * @param doc    the new document
+     * @param update the atomic update
+     */
+    public static void applyAtomicAdd(SolrInputDocument doc, SolrInputDocument update) {
+        for (SolrInputField field : update) {
+            if (!(field.getValue() instanceof Map)) {
+                // the unique key
+                continue;
+            }
+            String name = field.getName();
+            Map.Entry<String, Object> operation = getOperation(field);
+
+            switch (operation.getKey()) {
+                case ADD:
+                    doc.addField(name, operation.getValue());
+                    break;
+                case INC:
+                    Object current = doc.getFieldValue(name);
+                    int value = current == null ? 0 : ((Number) current).intValue();
+                    doc.setField(name, value + ((Number) operation.getValue()).intValue());
+                    break;
+                case SET:
+                    if (operation.getValue() == null) {
+                        doc.removeField(name);
+                    } else {
+                        doc.setField(name, operation.getValue());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Can't apply %s to a new document",
+                            operation.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Fold an atomic update that adds a callset into another one, so that several callsets are added to an existing
+     * variant in a single write. Values added are collected, increments are summed, and values set are kept.
+     *
+     * @param target the atomic update to fold into
+     * @param update the atomic update to fold in
+     */
+    public static void mergeAtomicAdd(SolrInputDocument target, SolrInputDocument update) {
+        for (SolrInputField field : update) {
+            if (!(field.getValue() instanceof Map)) {
+                // the unique key
+                continue;
+            }
+            String name = field.getName();
+            Map.Entry<String, Object> operation = getOperation(field);
+            SolrInputField existing = target.getField(name);
+            if (existing == null) {
+                target.setField(name, field.getValue());
+                continue;
+            }
+
+            Object value = getOperation(existing).getValue();
+            switch (operation.getKey()) {
+                case ADD:
+                    List<Object> values = new ArrayList<>();
+                    addValues(values, value);
+                    addValues(values, operation.getValue());
+                    target.setField(name, atomic(ADD, values));
+                    break;
+                case INC:
+                    target.setField(name, atomic(INC,
+                            ((Number) value).intValue() + ((Number) operation.getValue()).intValue()));
+                    break;
+                default:
+                    target.setField(name, field.getValue());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map.Entry<String, Object> getOperation(SolrInputField field) {
+        return ((Map<String, Object>) field.getValue()).entrySet().iterator().next();
+    }
+
+    private static void addValues(List<Object> values, Object value) {
+        if (value instanceof Collection) {
+            values.addAll((Collection<?>) value);
+        } else {
+            values.add(value);
+        }
     }
 
-    private static void removeCallsetFieldValue(SolrDocument doc, String callsetId, String fieldName, Object value) {
-        doc.removeFields(VariantsSchema.getCallsetsFieldName(callsetId, fieldName));
-        // since callset fields are copied to multivalued fields, we need to remove that too.
-        removeMultiFieldValue(doc, fieldName, value);
+    private static Map<String, Object> atomic(String operation, Object value) {
+        return Collections.singletonMap(operation, value);
     }
 }
@@ -0,0 +1,282 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.function.Function;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A Bloom filter over the hashes of every variant document in solr. A hash the index has never seen is known not to be
+ * in solr, so adding that variant needs no lookup. A hash the index has seen might or might not be in solr.
+ *
+ * Documents that are deleted stay in the filter, as false positives, until the index is rebuilt; {@link
+ * #needsRebuild()} tells when there are too many of them, or when more hashes went in than the filter was sized for.
+ *
+ * The filter is a plain bitset, so that it can be saved and read back as it is. Each hash sets k bits, picked from
+ * the two halves of its 128 bit murmur3 hash, the way Guava's own BloomFilter does.
+ *
+ * @version $Id$
+ */
+public class VariantHashIndex
+{
+    /**
+     * The fewest hashes an index is sized for.
+     */
+    public static final int MIN_CAPACITY = 1 << 20;
+
+    /**
+     * The rate of false positives when the index holds as many hashes as it was sized for.
+     */
+    public static final double FALSE_POSITIVE_RATE = 0.01;
+
+    // how much bigger than the current number of documents a rebuilt index is
+    private static final int HEADROOM = 2;
+    // the fraction of deleted hashes above which the index should be rebuilt
+    private static final double STALE_LIMIT = 0.2;
+
+    private static final int PAGE_SIZE = 10000;
+
+    // written first in a saved index, to tell it apart from anything else
+    private static final int FORMAT = 0x56484932;
+
+    private static final HashFunction HASHING = Hashing.murmur3_128();
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final int capacity;
+    private long insertions;
+    private long removals;
+
+    /**
+     * Create an empty index.
+     *
+     * @param capacity the number of hashes to size the index for
+     */
+    public VariantHashIndex(int capacity) {
+        // the optimal size and number of hashes for the capacity and false positive rate
+        this(new long[(int) ((bitsFor(capacity) + Long.SIZE - 1) / Long.SIZE)],
+                Math.max(1, (int) Math.round((double) bitsFor(capacity) / Math.max(1, capacity) * Math.log(2))),
+                capacity, 0, 0);
+    }
+
+    private VariantHashIndex(long[] bits, int hashCount, int capacity, long insertions, long removals) {
+        this.bits = bits;
+        this.bitCount = (long) bits.length * Long.SIZE;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+        this.insertions = insertions;
+        this.removals = removals;
+    }
+
+    private static long bitsFor(int capacity) {
+        return Math.max(Long.SIZE,
+                (long) (-Math.max(1, capacity) * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2))));
+    }
+
+    /**
+     * Build an index of every variant document in solr.
+     *
+     * @param server the solr server
+     * @return the index
+     * @throws IOException         if solr can't be reached
+     * @throws SolrServerException if the documents can't be read
+     */
+    public static VariantHashIndex build(SolrClient server) throws IOException, SolrServerException {
+        SolrQuery variants = new SolrQuery(VariantsSchema.getVariantsQuery());
+        long count = server.query(variants.setRows(0)).getResults().getNumFound();
+        final VariantHashIndex index =
+                new VariantHashIndex((int) Math.min(Integer.MAX_VALUE, Math.max(MIN_CAPACITY, count * HEADROOM)));
+
+        SolrQuery q = new SolrQuery(VariantsSchema.getVariantsQuery())
+                .setFields(VariantsSchema.HASH)
+                .setRows(PAGE_SIZE);
+        SolrUtils.processAllDocs(server, q, VariantsSchema.HASH, new Function<Collection<SolrDocument>, Boolean>()
+        {
+            @Override
+            public Boolean apply(Collection<SolrDocument> solrDocuments) {
+                for (SolrDocument doc : solrDocuments) {
+                    index.put((String) doc.getFieldValue(VariantsSchema.HASH));
+                }
+                return false;
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Read an index written by {@link #writeTo(Path)}.
+     *
+     * @param file the file
+     * @return the index
+     * @throws IOException if the file can't be read, or doesn't hold an index
+     */
+    public static VariantHashIndex readFrom(Path file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT) {
+                throw new IOException(String.format("%s does not hold a variant hash index", file));
+            }
+            int capacity = in.readInt();
+            long insertions = in.readLong();
+            long removals = in.readLong();
+            int hashCount = in.readInt();
+            int length = in.readInt();
+            if (hashCount <= 0 || length <= 0) {
+                throw new IOException(String.format("%s does not hold a variant hash index", file));
+            }
+            long[] bits = new long[length];
+            for (int i = 0; i < length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new VariantHashIndex(bits, hashCount, capacity, insertions, removals);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the index to a file.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void writeTo(Path file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        try {
+            out.writeInt(FORMAT);
+            out.writeInt(capacity);
+            out.writeLong(insertions);
+            out.writeLong(removals);
+            out.writeInt(hashCount);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Check whether a variant might be in solr.
+     *
+     * @param hash the hash of the variant
+     * @return false if the variant is certainly not in solr
+     */
+    public synchronized boolean mightContain(String hash) {
+        long[] halves = halves(hash);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = bitFor(halves, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that a variant was written to solr.
+     *
+     * @param hash the hash of the variant
+     */
+    public synchronized void put(String hash) {
+        long[] halves = halves(hash);
+        boolean changed = false;
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = bitFor(halves, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                changed = true;
+            }
+        }
+        // a hash that sets no new bit may be in the index already, and isn't counted again
+        if (changed) {
+            insertions++;
+        }
+    }
+
+    private static long[] halves(String hash) {
+        ByteBuffer bytes = ByteBuffer.wrap(HASHING.hashString(hash, StandardCharsets.UTF_8).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        return new long[] { bytes.getLong(), bytes.getLong() };
+    }
+
+    // the i-th bit of a hash, by combining the two halves of its murmur3 hash
+    private long bitFor(long[] halves, int i) {
+        return ((halves[0] + i * halves[1]) & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * Record that a variant was deleted from solr. Its hash can't be taken out of the filter, so it only counts
+     * towards the index needing a rebuild.
+     *
+     * @param hash the hash of the variant
+     */
+    public synchronized void remove(String hash) {
+        removals++;
+    }
+
+    /**
+     * @return whether the index holds more hashes than it was sized for, or too many hashes of deleted variants
+     */
+    public synchronized boolean needsRebuild() {
+        return insertions > capacity || removals > insertions * STALE_LIMIT;
+    }
+
+    /**
+     * @return the number of hashes the index was sized for
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of hashes put in the index
+     */
+    public synchronized long getInsertions() {
+        return insertions;
+    }
+
+    /**
+     * @return the number of hashes of deleted variants still in the index
+     */
+    public synchronized long getRemovals() {
+        return removals;
+    }
+}
@@ -17,13 +17,21 @@
  */
 package org.phenotips.variantstore.db.solr;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+
 /**
  * @version $Id$
  */
 public final class VariantsSchema
 {
-    //  a hash of chrom, pos, ref, alt
+    //  the unique key: a hash of chrom, pos, ref, alt, or the key of a call (see getCallId)
     public static final String HASH = "hash";
+    //  solr's internal document version, used for optimistic concurrency
+    public static final String VERSION = "_version_";
 
     public static final String CHROM = "chrom";
     //  start = pos - 1 (0-indexed)
@@ -49,9 +57,19 @@
     //  Multi-valued callset ids (individuals)
     public static final String CALLSET_IDS = "callset_ids";
 
-    //  Fields with a separate value per-callset
-    //  Each of these fields has a corresponding field
-    //    that maps onto that callset's value, generated by getCallsetsFieldName
+    //  The kind of a document: a variant, or one callset's call on a variant
+    public static final String TYPE = "type";
+    public static final String TYPE_VARIANT = "variant";
+    public static final String TYPE_CALL = "call";
+    public static final String TYPE_GENE_RANKING = "gene_ranking";
+
+    //  Calls are documents of their own, keyed by the variant's hash and the callset, and linked to the variant's
+    //  document by its hash. They repeat the variant's fields, so that a callset's calls can be searched and sorted
+    //  without a join.
+    public static final String VARIANT = "variant";
+    public static final String CALLSET_ID = "callset_id";
+
+    //  Fields with a separate value per-callset, on the call documents
     public static final String PUBLIC = "is_public";
     public static final String AC = "ac";
     public static final String QUAL = "qual";
@@ -62,18 +80,60 @@
     // TODO this is the important score. sort on it
     public static final String EXOMISER_GENE_COMBINED_SCORE = "exomiser_gene_combined_score";
 
+    //  A callset's genes, highest Exomiser combined score first, with the score of each, on a document of their own
+    //  per callset (see getGeneRankingId)
+    public static final String RANKED_GENES = "ranked_genes";
+    public static final String RANKED_GENE_SCORES = "ranked_gene_scores";
+
+    //  All of the per-callset fields above
+    public static final List<String> CALLSET_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            PUBLIC, AC, QUAL, FILTER,
+            EXOMISER_VARIANT_SCORE, EXOMISER_GENE_VARIANT_SCORE, EXOMISER_GENE_PHENO_SCORE,
+            EXOMISER_GENE_COMBINED_SCORE));
+
+    //  The fields a call is read back from, to ask for instead of whole documents
+    public static final List<String> CALL_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            CALLSET_ID, CHROM, START, END, REF, ALT, GENE, GENE_EFFECT, EXAC_AF,
+            AC, QUAL, FILTER,
+            EXOMISER_VARIANT_SCORE, EXOMISER_GENE_VARIANT_SCORE, EXOMISER_GENE_PHENO_SCORE,
+            EXOMISER_GENE_COMBINED_SCORE));
+
     private VariantsSchema() {
         throw new AssertionError();
     }
 
     /**
-     * Create the field name for an individual.
-     * @param individual the individual
-     * @param fieldName the name of the field to access for that individual.
-     * @return the individual's field name
+     * Create the unique key of a callset's call on a variant.
+     * @param hash the hash of the variant
+     * @param callsetId the callset
+     * @return the key of the call's document
+     */
+    public static String getCallId(String hash, String callsetId) {
+        return hash + "__" + callsetId;
+    }
+
+    /**
+     * Create the unique key of a callset's gene ranking. It ends like the keys of the callset's calls, but can't be
+     * taken for one, since variant hashes are hexadecimal.
+     * @param callsetId the callset
+     * @return the key of the ranking's document
      */
-    public static String getCallsetsFieldName(String individual, String fieldName) {
-        return individual + "__" + fieldName;
+    public static String getGeneRankingId(String callsetId) {
+        return getCallId(TYPE_GENE_RANKING, callsetId);
     }
 
+    /**
+     * @param callsetId the callset
+     * @return a query for the callset's calls
+     */
+    public static String getCallsQuery(String callsetId) {
+        return String.format("%s:%s AND %s:%s", TYPE, TYPE_CALL, CALLSET_ID, ClientUtils.escapeQueryChars(callsetId));
+    }
+
+    /**
+     * @return a query for the variant documents, without the calls
+     */
+    public static String getVariantsQuery() {
+        return String.format("%s:%s", TYPE, TYPE_VARIANT);
+    }
 }
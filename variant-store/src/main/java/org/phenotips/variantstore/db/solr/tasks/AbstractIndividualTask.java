@@ -0,0 +1,812 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr.tasks;
+
+import org.phenotips.variantstore.db.DatabaseException;
+import org.phenotips.variantstore.db.solr.CommitCoordinator;
+import org.phenotips.variantstore.db.solr.SolrUtils;
+import org.phenotips.variantstore.db.solr.VariantHashIndex;
+import org.phenotips.variantstore.db.solr.VariantsSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Striped;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Apply changes for an individual to solr, one batch of variants at a time. For every batch, the existing documents
+ * are fetched with one realtime get, and the changes are written back with one update request. Every write carries
+ * the version of the document it was computed from, so that a concurrent change to the same document makes solr
+ * reject the write instead of silently losing an update; the batch is then fetched and computed again.
+ *
+ * Several tasks can run at once. Each batch is split up by the lock stripe of the variants' hashes, and a stripe is
+ * only written while holding its lock, so two tasks never work on the same document at the same time. Stripes that
+ * are free are written first, and a task only waits for a lock once every stripe it has left is taken.
+ *
+ * Within a task, the work is split into three stages connected by bounded queues: parse reads the batches of variants
+ * from wherever the task gets them, transform hashes them and builds everything that doesn't depend on solr, and write
+ * fetches the existing documents and writes the changes. Parsing runs on one thread per reader, since a source like an
+ * iterator can only be read by one thread; a task whose input can be split into parts gets several readers. The other
+ * two stages can use several threads too. A stage that gets ahead blocks once its output queue is full.
+ *
+ * A task can be cancelled by interrupting the thread running it. Every stage checks for interruption between batches,
+ * and the task only returns once all of them have stopped, so that nothing is written after it is cancelled.
+ *
+ * @param <R> the form of a variant as read by the parse stage
+ * @param <T> the prepared form of a variant, as handed from the transform stage to the write stage
+ * @version $Id$
+ */
+public abstract class AbstractIndividualTask<R, T> implements Callable<Object>
+{
+    /**
+     * The number of variants processed per batch, if none is specified.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * The number of batches that can wait between two stages, if none is specified.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /**
+     * The number of times a batch is retried after a version conflict before giving up.
+     */
+    public static final int MAX_RETRIES = 10;
+
+    /**
+     * The version to write a document with when it must not exist yet.
+     */
+    protected static final long VERSION_MUST_NOT_EXIST = -1L;
+
+    /**
+     * The http status solr uses to report a version conflict.
+     */
+    private static final int CONFLICT = 409;
+
+    protected final SolrClient server;
+    protected final int batchSize;
+    private final String callsetId;
+    private final Striped<Lock> locks;
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+    private int transformThreads = 1;
+    private int writeThreads = 1;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    // markers for the end of the stream, compared by identity
+    private final List<R> endOfBatches = new ArrayList<>();
+    private final Prepared<R, T> endOfPrepared = new Prepared<>(null, null);
+
+    private volatile List<PipelineStage> stages = new ArrayList<>();
+
+    /**
+     * The number of variants whose documents were found in solr.
+     */
+    private final AtomicInteger hashCollisions = new AtomicInteger();
+
+    /**
+     * The number of variants whose documents were not found in solr.
+     */
+    private final AtomicInteger hashMisses = new AtomicInteger();
+
+    /**
+     * The number of variants that weren't looked up in solr, because they were known to be new.
+     */
+    private final AtomicInteger skippedLookups = new AtomicInteger();
+
+    protected VariantHashIndex hashIndex;
+
+    private CommitCoordinator commits;
+    private CommitCoordinator.Policy commitPolicy = CommitCoordinator.Policy.VISIBLE;
+    private volatile long commitLatency;
+
+    /**
+     * Initialize the task.
+     *
+     * @param server    the SolrServer to run the task on
+     * @param callsetId the id of the callset the task works on
+     * @param batchSize the number of variants to read and write at once
+     * @param locks     the locks shared by every task that writes to this server, keyed on variant hash
+     */
+    public AbstractIndividualTask(SolrClient server, String callsetId, int batchSize, Striped<Lock> locks) {
+        checkArgument(batchSize > 0, "batch size must be positive");
+        this.server = server;
+        this.callsetId = checkNotNull(callsetId);
+        this.batchSize = batchSize;
+        this.locks = checkNotNull(locks);
+    }
+
+    /**
+     * Set the number of threads working on each stage of the pipeline.
+     *
+     * @param transformThreads the number of threads hashing variants and building documents
+     * @param writeThreads     the number of threads reading from and writing to solr
+     */
+    public void setStageThreads(int transformThreads, int writeThreads) {
+        checkArgument(transformThreads > 0 && writeThreads > 0, "every stage needs at least one thread");
+        this.transformThreads = transformThreads;
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * Set the number of batches that can wait between two stages before the earlier one blocks.
+     *
+     * @param queueCapacity the capacity of the queues between stages
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        checkArgument(queueCapacity > 0, "queue capacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Set the index of the variants in solr, to keep up to date with the variants written. Tasks may also use it to
+     * skip looking up variants that can't be in solr.
+     *
+     * @param hashIndex the index, or null if there is none
+     */
+    public void setHashIndex(VariantHashIndex hashIndex) {
+        this.hashIndex = hashIndex;
+    }
+
+    /**
+     * Commit through a coordinator shared with the other tasks writing to this server, instead of on its own.
+     *
+     * @param commits the coordinator
+     * @param policy  how to commit the task's changes
+     */
+    public void setCommitPolicy(CommitCoordinator commits, CommitCoordinator.Policy policy) {
+        this.commits = checkNotNull(commits);
+        this.commitPolicy = checkNotNull(policy);
+    }
+
+    /**
+     * @return how long the task waited for its changes to be committed, in milliseconds
+     */
+    public long getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * @return the number of variants so far that were known to be new, and not looked up in solr
+     */
+    public int getSkippedLookups() {
+        return skippedLookups.get();
+    }
+
+    /**
+     * Get the counters for the parse, transform and write stages, in that order. They are empty until the task
+     * starts running.
+     *
+     * @return the stages
+     */
+    public List<PipelineStage> getStages() {
+        return stages;
+    }
+
+    @Override
+    public Object call() throws Exception {
+        final BlockingQueue<List<R>> parsed = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Prepared<R, T>> prepared = new ArrayBlockingQueue<>(queueCapacity);
+        final int readers = openReaders();
+        final PipelineStage parse = new PipelineStage("parse", readers, null);
+        final PipelineStage transform = new PipelineStage("transform", transformThreads, parsed);
+        final PipelineStage write = new PipelineStage("write", writeThreads, prepared);
+        stages = Arrays.asList(parse, transform, write);
+
+        long startTime = System.currentTimeMillis();
+        hashCollisions.set(0);
+        hashMisses.set(0);
+        skippedLookups.set(0);
+
+        int threads = readers + transformThreads + writeThreads;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<Object> running = new ExecutorCompletionService<>(pool);
+        final AtomicInteger readersLeft = new AtomicInteger(readers);
+        final AtomicInteger transformersLeft = new AtomicInteger(transformThreads);
+        final boolean bulkLoad = commits != null && commitPolicy == CommitCoordinator.Policy.BULK;
+        if (bulkLoad) {
+            commits.beginBulkLoad();
+        }
+        try {
+            for (int i = 0; i < readers; i++) {
+                final int reader = i;
+                running.submit(new Callable<Object>()
+                {
+                    @Override
+                    public Object call() throws Exception {
+                        parse(parse, reader, parsed, readersLeft);
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < transformThreads; i++) {
+                running.submit(new Callable<Object>()
+                {
+                    @Override
+                    public Object call() throws Exception {
+                        transform(transform, parsed, prepared, transformersLeft);
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < writeThreads; i++) {
+                running.submit(new Callable<Object>()
+                {
+                    @Override
+                    public Object call() throws Exception {
+                        write(write, prepared);
+                        return null;
+                    }
+                });
+            }
+
+            // wait for every stage, and bail out on the first one that fails
+            for (int i = 0; i < threads; i++) {
+                running.take().get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+            awaitStages(pool);
+            if (bulkLoad) {
+                commits.endBulkLoad();
+            }
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        long count = parse.getItems();
+        logger.debug("csv: Hash Collisions: " + hashCollisions.get());
+        logger.debug("csv: Hash Misses: " + hashMisses.get());
+        logger.info(String.format("%s %d variants for %s in %d ms (%.1f variants/sec, batch size %d)",
+                getAction(), count, callsetId, elapsed, count * 1000.0 / elapsed,
+                batchSize));
+        int lookups = hashCollisions.get() + hashMisses.get();
+        logger.info(String.format("Skipped %d of %d lookups (%.1f%%)", skippedLookups.get(), lookups,
+                lookups == 0 ? 0 : skippedLookups.get() * 100.0 / lookups));
+        for (PipelineStage stage : stages) {
+            logger.info(stage.toString());
+        }
+
+        finish();
+
+        // commit once at the end, so that the changes are available for querying
+        commitLatency = commit();
+        logger.info(String.format("Committed %s in %d ms (%s)", callsetId, commitLatency, commitPolicy));
+        return null;
+    }
+
+    private long commit() throws DatabaseException {
+        if (commits == null) {
+            long start = System.currentTimeMillis();
+            try {
+                server.commit(true, true);
+            } catch (SolrServerException | IOException e) {
+                throw new DatabaseException("Error committing to solr", e);
+            }
+            return System.currentTimeMillis() - start;
+        }
+        // a bulk load waits for its commit like any other
+        return commits.commit(commitPolicy == CommitCoordinator.Policy.ASYNC
+                ? CommitCoordinator.Policy.ASYNC : CommitCoordinator.Policy.VISIBLE);
+    }
+
+    /**
+     * Wait for the commits that other tasks asked for without waiting, so that their changes can be searched.
+     *
+     * @throws DatabaseException if the commit fails
+     */
+    protected void awaitPendingCommits() throws DatabaseException {
+        if (commits != null) {
+            commits.flush();
+        }
+    }
+
+    /**
+     * Wait for the stages to stop, even if the task itself was interrupted.
+     *
+     * @param pool the threads running the stages
+     */
+    private void awaitStages(ExecutorService pool) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn(String.format("Still waiting for the work on %s to stop", callsetId));
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The parse stage: read the batches of variants.
+     *
+     * @param stage       the stage's counters
+     * @param reader      the number of the reader this thread runs
+     * @param output      where to put the batches
+     * @param readersLeft the number of readers that haven't reached the end of their input
+     * @throws InterruptedException if the task is cancelled
+     * @throws DatabaseException    if the variants can't be read
+     */
+    private void parse(PipelineStage stage, int reader, BlockingQueue<List<R>> output, AtomicInteger readersLeft)
+        throws InterruptedException, DatabaseException {
+        while (true) {
+            checkInterrupted();
+            long start = System.nanoTime();
+            List<R> batch = readBatch(reader);
+            if (batch == null) {
+                break;
+            }
+            stage.recordWork(batch.size(), System.nanoTime() - start);
+            put(stage, output, batch);
+        }
+
+        // the last one out tells the transformers
+        if (readersLeft.decrementAndGet() == 0) {
+            for (int i = 0; i < transformThreads; i++) {
+                put(stage, output, endOfBatches);
+            }
+        }
+    }
+
+    /**
+     * The transform stage: hash every variant, prepare it, and split the batch up by lock stripe.
+     *
+     * @param stage            the stage's counters
+     * @param input            where to take batches from
+     * @param output           where to put the split batches
+     * @param transformersLeft the number of transform threads that haven't reached the end of the stream
+     * @throws InterruptedException if the task is cancelled
+     */
+    private void transform(PipelineStage stage, BlockingQueue<List<R>> input,
+                           BlockingQueue<Prepared<R, T>> output, AtomicInteger transformersLeft)
+        throws InterruptedException {
+        while (true) {
+            List<R> batch = take(stage, input);
+            if (batch == endOfBatches) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            Map<Lock, Stripe<T>> stripes = new LinkedHashMap<>();
+            for (R variant : batch) {
+                String hash = getHash(variant);
+                Lock lock = locks.get(hash);
+                Stripe<T> stripe = stripes.get(lock);
+                if (stripe == null) {
+                    stripe = new Stripe<>();
+                    stripes.put(lock, stripe);
+                }
+                stripe.variants.add(prepare(variant, hash));
+                stripe.hashes.add(hash);
+            }
+            stage.recordWork(batch.size(), System.nanoTime() - start);
+            put(stage, output, new Prepared<>(batch, stripes));
+        }
+
+        // the last one out tells the writers
+        if (transformersLeft.decrementAndGet() == 0) {
+            for (int i = 0; i < writeThreads; i++) {
+                put(stage, output, endOfPrepared);
+            }
+        }
+    }
+
+    /**
+     * The write stage: write every stripe of every batch while holding its lock.
+     *
+     * @param stage the stage's counters
+     * @param input where to take split batches from
+     * @throws InterruptedException if the task is cancelled
+     * @throws DatabaseException    if solr fails, or a batch keeps conflicting with other writers
+     */
+    private void write(PipelineStage stage, BlockingQueue<Prepared<R, T>> input)
+        throws InterruptedException, DatabaseException {
+        while (true) {
+            Prepared<R, T> batch = take(stage, input);
+            if (batch == endOfPrepared) {
+                return;
+            }
+            checkInterrupted();
+
+            long start = System.nanoTime();
+            int count = 0;
+            for (Stripe<T> stripe : batch.stripes.values()) {
+                count += stripe.hashes.size();
+            }
+            processBatch(batch.stripes);
+            completed(batch.source);
+            stage.recordWork(count, System.nanoTime() - start);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private <E> void put(PipelineStage stage, BlockingQueue<E> queue, E item) throws InterruptedException {
+        long start = System.nanoTime();
+        queue.put(item);
+        stage.recordBlocked(System.nanoTime() - start);
+    }
+
+    private <E> E take(PipelineStage stage, BlockingQueue<E> queue) throws InterruptedException {
+        long start = System.nanoTime();
+        E item = queue.take();
+        stage.recordBlocked(System.nanoTime() - start);
+        return item;
+    }
+
+    /**
+     * Write every stripe of the batch while holding its lock.
+     *
+     * @param stripes the batch, split up by lock
+     * @throws DatabaseException if solr fails, or the batch keeps conflicting with other writers
+     */
+    private void processBatch(Map<Lock, Stripe<T>> stripes) throws DatabaseException {
+        while (!stripes.isEmpty()) {
+            boolean progress = false;
+            Iterator<Map.Entry<Lock, Stripe<T>>> it = stripes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Lock, Stripe<T>> entry = it.next();
+                if (entry.getKey().tryLock()) {
+                    try {
+                        processStripe(entry.getValue().variants, entry.getValue().hashes);
+                    } finally {
+                        entry.getKey().unlock();
+                    }
+                    it.remove();
+                    progress = true;
+                }
+            }
+
+            if (!progress) {
+                // everything left is held by some other task, wait for the first one
+                Map.Entry<Lock, Stripe<T>> entry = stripes.entrySet().iterator().next();
+                entry.getKey().lock();
+                try {
+                    processStripe(entry.getValue().variants, entry.getValue().hashes);
+                } finally {
+                    entry.getKey().unlock();
+                }
+                stripes.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Fetch the existing docs for every variant in the stripe, compute the changes, and write them. If some document
+     * changed in between, start over.
+     *
+     * @param batch  the prepared variants
+     * @param hashes the hash of each variant, in the same order
+     * @throws DatabaseException if solr fails, or the batch keeps conflicting with other writers
+     */
+    private void processStripe(List<T> batch, List<String> hashes) throws DatabaseException {
+        List<String> uniqueHashes = new ArrayList<>(new LinkedHashSet<>(hashes));
+
+        for (int attempt = 0;; attempt++) {
+            // what is already known is only trusted until it runs into a conflict
+            Map<String, SolrDocument> existing = attempt == 0 ? getKnownDocuments(batch)
+                    : new HashMap<String, SolrDocument>();
+            List<String> unknown = new ArrayList<>(uniqueHashes.size());
+            for (String hash : uniqueHashes) {
+                if (!existing.containsKey(hash)) {
+                    unknown.add(hash);
+                }
+            }
+            List<String> lookups = getLookups(unknown, attempt);
+            existing.putAll(fetch(lookups));
+            UpdateRequest request = buildUpdate(batch, hashes, existing);
+
+            try {
+                if (!isEmpty(request)) {
+                    send(request);
+                    // still under the stripe's lock, so the next writer of these variants sees the change
+                    written(request);
+                }
+                hashCollisions.addAndGet(existing.size());
+                hashMisses.addAndGet(uniqueHashes.size() - existing.size());
+                skippedLookups.addAndGet(uniqueHashes.size() - lookups.size());
+                return;
+            } catch (SolrException e) {
+                if (e.code() != CONFLICT || attempt >= MAX_RETRIES) {
+                    throw new DatabaseException("Error writing variants to Solr", e);
+                }
+                // Whatever made it in before the conflict is recognized as already applied on the next attempt.
+                logger.debug("Version conflict while writing variants, retrying", e);
+            } catch (SolrServerException | IOException e) {
+                throw new DatabaseException("Error writing variants to Solr", e);
+            }
+        }
+    }
+
+    /**
+     * Fetch the existing documents for the given hashes.
+     *
+     * @param hashes the hashes to look up
+     * @return the documents that were found, by hash
+     * @throws DatabaseException if solr fails
+     */
+    private Map<String, SolrDocument> fetch(List<String> hashes) throws DatabaseException {
+        Map<String, SolrDocument> existing = new HashMap<>();
+        if (hashes.isEmpty()) {
+            return existing;
+        }
+        try {
+            for (SolrDocument doc : SolrUtils.getByIds(server, hashes, getFetchFields())) {
+                existing.put((String) doc.getFieldValue(VariantsSchema.HASH), doc);
+            }
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Failed to check for existing variants", e);
+        }
+        return existing;
+    }
+
+    /**
+     * Send the changes to solr. Solr can't read documents and deletes from the same request body, so a request with
+     * both is sent as two, the documents first.
+     *
+     * @param request the changes
+     * @throws SolrServerException if solr fails
+     * @throws IOException         if solr can't be reached
+     */
+    private void send(UpdateRequest request) throws SolrServerException, IOException {
+        Map<String, Map<String, Object>> deletes = request.getDeleteByIdMap();
+        if (request.getDocuments() == null || request.getDocuments().isEmpty() || deletes == null
+                || deletes.isEmpty()) {
+            request.process(server);
+            return;
+        }
+
+        UpdateRequest documents = new UpdateRequest();
+        documents.add(request.getDocuments());
+        documents.process(server);
+
+        UpdateRequest deleted = new UpdateRequest();
+        for (Map.Entry<String, Map<String, Object>> delete : deletes.entrySet()) {
+            Object version = delete.getValue() == null ? null : delete.getValue().get(UpdateRequest.VER);
+            if (version == null) {
+                deleted.deleteById(delete.getKey());
+            } else {
+                deleted.deleteById(delete.getKey(), (Long) version);
+            }
+        }
+        deleted.process(server);
+    }
+
+    private static boolean isEmpty(UpdateRequest request) {
+        return (request.getDocuments() == null || request.getDocuments().isEmpty())
+                && (request.getDeleteById() == null || request.getDeleteById().isEmpty());
+    }
+
+    /**
+     * A batch as it was read, and split up by lock stripe.
+     *
+     * @param <R> the form of a variant as read
+     * @param <T> the prepared form of a variant
+     */
+    private static final class Prepared<R, T>
+    {
+        private final List<R> source;
+        private final Map<Lock, Stripe<T>> stripes;
+
+        private Prepared(List<R> source, Map<Lock, Stripe<T>> stripes) {
+            this.source = source;
+            this.stripes = stripes;
+        }
+    }
+
+    /**
+     * The part of a batch that falls under one lock.
+     *
+     * @param <T> the prepared form of a variant
+     */
+    private static final class Stripe<T>
+    {
+        private final List<T> variants = new ArrayList<>();
+        private final List<String> hashes = new ArrayList<>();
+    }
+
+    /**
+     * Get the id of the callset this task works on.
+     *
+     * @return the callset id
+     */
+    public String getCallsetId() {
+        return callsetId;
+    }
+
+    /**
+     * Get a field list that includes the unique key and the version of each document, plus the given fields.
+     *
+     * @param fields the other fields needed
+     * @return the field list
+     */
+    protected static List<String> withKeyFields(String... fields) {
+        List<String> list = new ArrayList<>(fields.length + 2);
+        list.add(VariantsSchema.HASH);
+        list.add(VariantsSchema.VERSION);
+        for (String field : fields) {
+            list.add(field);
+        }
+        return list;
+    }
+
+    /**
+     * Get the version of a fetched document.
+     *
+     * @param doc the document
+     * @return its version
+     */
+    protected static Long getVersion(SolrDocument doc) {
+        return (Long) doc.getFieldValue(VariantsSchema.VERSION);
+    }
+
+    /**
+     * Get ready to read the variants, and tell how many threads can read them at once. Called once, when the task
+     * starts. There is a single reader by default.
+     *
+     * @return the number of readers, each of which {@link #readBatch(int)} is called for on its own thread
+     * @throws DatabaseException if the variants can't be read
+     */
+    protected int openReaders() throws DatabaseException {
+        return 1;
+    }
+
+    /**
+     * Get the documents of a stripe's variants that the task already has, from the same place it read the variants.
+     * These are used instead of fetching the documents, until a write runs into a conflict. None are known by default.
+     *
+     * @param batch the prepared variants of the stripe
+     * @return the known documents, by hash
+     */
+    protected Map<String, SolrDocument> getKnownDocuments(List<T> batch) {
+        return new HashMap<>();
+    }
+
+    /**
+     * Pick the variants of a stripe whose documents must be fetched; the others are taken not to exist. Every variant
+     * is looked up by default.
+     *
+     * @param hashes  the hashes of the variants in the stripe whose documents aren't known, without duplicates
+     * @param attempt the number of earlier attempts at writing the stripe, that ran into a conflict
+     * @return the hashes to look up
+     */
+    protected List<String> getLookups(List<String> hashes, int attempt) {
+        return hashes;
+    }
+
+    /**
+     * Called once the changes of a stripe are in solr, while its lock is still held. Does nothing by default.
+     *
+     * @param request the changes that were written
+     */
+    protected void written(UpdateRequest request) {
+    }
+
+    /**
+     * Called once every variant of a batch is in solr. Batches may complete in another order than they were read.
+     * Does nothing by default.
+     *
+     * @param batch the batch, as returned by {@link #readBatch(int)}
+     */
+    protected void completed(List<R> batch) {
+    }
+
+    /**
+     * Called once every batch is in solr, before the changes are committed, to write anything that depends on all of
+     * them. Does nothing by default.
+     *
+     * @throws DatabaseException if the writes fail
+     */
+    protected void finish() throws DatabaseException {
+    }
+
+    /**
+     * Get the fields needed from the existing documents to compute the changes.
+     *
+     * @return the field list, or null for every field
+     */
+    protected abstract List<String> getFetchFields();
+
+    /**
+     * Read the next batch of variants. Runs in the parse stage, on one thread per reader.
+     *
+     * @param reader the reader, from 0 to the number returned by {@link #openReaders()}, exclusive
+     * @return the batch, or null once there are no variants left for this reader
+     * @throws DatabaseException if the variants can't be read
+     */
+    protected abstract List<R> readBatch(int reader) throws DatabaseException;
+
+    /**
+     * Get the hash of a variant, which is the unique key of its document. Runs in the transform stage, on any number
+     * of threads at once.
+     *
+     * @param variant the variant
+     * @return the hash
+     */
+    protected abstract String getHash(R variant);
+
+    /**
+     * Do all the work for a variant that doesn't depend on what is already in solr. Runs in the transform stage, on
+     * any number of threads at once.
+     *
+     * @param variant the variant
+     * @param hash    the variant's hash
+     * @return what {@link #buildUpdate(List, List, Map)} needs to know about the variant
+     */
+    protected abstract T prepare(R variant, String hash);
+
+    /**
+     * Compute the changes that apply this batch to solr. Must be safe to call again with freshly fetched documents
+     * after part of an earlier attempt has been applied.
+     *
+     * @param batch    the prepared variants
+     * @param hashes   the hash of each variant in the batch, in the same order
+     * @param existing the existing documents, by hash
+     * @return the update request
+     */
+    protected abstract UpdateRequest buildUpdate(List<T> batch, List<String> hashes,
+                                                 Map<String, SolrDocument> existing);
+
+    /**
+     * Describe what this task does to the variants, for logging.
+     *
+     * @return e.g. "Added"
+     */
+    protected abstract String getAction();
+}
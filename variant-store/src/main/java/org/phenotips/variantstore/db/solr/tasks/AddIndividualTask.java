@@ -18,33 +18,78 @@
 package org.phenotips.variantstore.db.solr.tasks;
 
 import org.phenotips.variantstore.db.DatabaseException;
+import org.phenotips.variantstore.db.solr.GeneRanking;
+import org.phenotips.variantstore.db.solr.SolrUtils;
 import org.phenotips.variantstore.db.solr.SolrVariantUtils;
+import org.phenotips.variantstore.db.solr.VariantsSchema;
+import org.phenotips.variantstore.input.VariantFilter;
 import org.phenotips.variantstore.input.VariantIterator;
-import org.phenotips.variantstore.shared.GACallInfoFields;
-import org.phenotips.variantstore.shared.VariantUtils;
+import org.phenotips.variantstore.input.VariantRecord;
 
 import java.io.IOException;
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
-import org.ga4gh.GAVariant;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Striped;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
+ * Add an individual's variants to solr. Variants are processed in batches: the existing documents for a whole batch
+ * are fetched with one realtime get, and the batch is written back with one update. Every call gets a document of its
+ * own; variants that are new to solr are written as whole documents, and variants that are already there only get an
+ * atomic update of their callset list and counts. When the variants of several individuals are read together, the
+ * calls of all of them on a variant go into the same write.
+ *
+ * An input that can be split, like an indexed VCF, can be read by several threads at once, each taking the next part
+ * of the input once it is done with its own.
+ *
+ * With a {@link Checkpoint}, the task records how far it got into each part as batches are written, and a task given
+ * a checkpoint that already has progress goes on from there.
+ *
+ * The genes of each individual are ranked by their Exomiser combined score as the variants go by, and the ranking is
+ * written along with the last batch. The ranking starts from the one the individual already has; an upload that is
+ * resumed, or that adds to calls the individual has without a ranking, starts it from the stored calls instead, so
+ * that it always holds all of the individual's genes. An update, which only adds some of the individual's variants,
+ * is given the ranking of all of them.
+ *
  * @version $Id$
  */
-public class AddIndividualTask implements Callable<Object>
+public class AddIndividualTask extends AbstractIndividualTask<VariantRecord, AddIndividualTask.PreparedVariant>
 {
+    // the region size recorded for an input that isn't split
+    private static final long UNSPLIT = -1;
 
-    private final SolrClient server;
     private final VariantIterator iterator;
-    private Logger logger = LoggerFactory.getLogger(getClass());
+    // iterators that filter on FILTER themselves never build the variants we'd skip
+    private final boolean passChecked;
+    private int readers = 1;
+    private long regionSize;
+    private Checkpoint checkpoint;
+    // the parts of the input that no reader has taken yet
+    private Queue<Part> parts;
+    // the part each reader is on
+    private Part[] current;
+    // the gene rankings being built, by individual
+    private final Map<String, GeneRanking> rankings = new ConcurrentHashMap<>();
+    // the ranking of all of the individual's variants, when the task doesn't read all of them
+    private GeneRanking ranking;
 
     /**
      * Initialize the task.
@@ -53,75 +98,473 @@ public class AddIndividualTask implements Callable<Object>
      * @param iterator the variants to add
      */
     public AddIndividualTask(SolrClient server, VariantIterator iterator) {
-        this.server = server;
+        this(server, iterator, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Initialize the task.
+     *
+     * @param server    the SolrServer to run the task on
+     * @param iterator  the variants to add
+     * @param batchSize the number of variants to read, merge and write at once
+     */
+    public AddIndividualTask(SolrClient server, VariantIterator iterator, int batchSize) {
+        this(server, iterator, batchSize, Striped.lock(1));
+    }
+
+    /**
+     * Initialize the task.
+     *
+     * @param server    the SolrServer to run the task on
+     * @param iterator  the variants to add
+     * @param batchSize the number of variants to read, merge and write at once
+     * @param locks     the locks shared by every task that writes to this server, keyed on variant hash
+     */
+    public AddIndividualTask(SolrClient server, VariantIterator iterator, int batchSize, Striped<Lock> locks) {
+        super(server, iterator.getHeader().getIndividualId(), batchSize, locks);
         this.iterator = iterator;
+        this.passChecked = iterator.getFilter() != null && iterator.getFilter().isPassOnly();
     }
 
-    @Override
-    public Object call() throws Exception {
-        GAVariant variant;
-        SolrQuery q;
-        SolrDocument resp;
-        SolrDocument doc;
+    /**
+     * Read the input with several threads at once, if it can be split into parts. Must be set before the task runs.
+     *
+     * @param readers    the number of threads reading the input
+     * @param regionSize the number of bases in each part of the input, or 0 for a part per chromosome
+     */
+    public void setReaders(int readers, long regionSize) {
+        checkArgument(readers > 0, "there must be at least one reader");
+        checkArgument(regionSize >= 0, "region size must not be negative");
+        this.readers = readers;
+        this.regionSize = regionSize;
+    }
 
-        int hashCollisions = 0;
+    /**
+     * Record the progress of the task as it goes, and go on from the progress already recorded, if there is any.
+     * Must be set before the task runs.
+     *
+     * @param checkpoint the checkpoint
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
 
-        while (iterator.hasNext()) {
-            variant = iterator.next();
+    /**
+     * Write a given ranking of the individual's genes, instead of one built from the ranking it has and the variants
+     * read. Must be set before the task runs.
+     *
+     * @param ranking the ranking of all of the individual's variants, including the ones the task adds
+     */
+    public void setRanking(GeneRanking ranking) {
+        this.ranking = ranking;
+    }
 
-            // skip filter!= PASS
-            if (!"PASS".equals(VariantUtils.getInfo(variant.getCalls().get(0), GACallInfoFields.FILTER))) {
-                continue;
+    @Override
+    public Object call() throws Exception {
+        Object result;
+        try {
+            result = super.call();
+        } catch (Exception e) {
+            // keep what was done, whatever is going to happen to it
+            if (checkpoint != null && checkpoint.getParts() > 0) {
+                saveCheckpoint();
             }
+            throw e;
+        }
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+        return result;
+    }
+
+    private void saveCheckpoint() {
+        try {
+            checkpoint.save();
+        } catch (IOException e) {
+            logger.warn(String.format("Unable to save the progress of %s", getCallsetId()), e);
+        }
+    }
+
+    @Override
+    protected int openReaders() throws DatabaseException {
+        // an input that was split before is split the same way again, so that the progress of each part still holds
+        long size = readers > 1 ? regionSize : UNSPLIT;
+        if (checkpoint != null && checkpoint.getParts() > 0) {
+            size = checkpoint.getRegionSize();
+        }
+        List<VariantIterator> split = size == UNSPLIT ? Collections.singletonList(iterator) : iterator.split(size);
 
-            /**
-             * Query Solr for existing variant
-             */
-            String hash = SolrVariantUtils.getHash(variant);
+        parts = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < split.size(); i++) {
+            parts.add(new Part(i, split.get(i)));
+        }
+        int count = Math.min(readers, split.size());
+        current = new Part[count];
+        if (split.size() > 1) {
+            logger.debug(String.format("Reading %d parts of the input for %s with %d threads", split.size(),
+                    getCallsetId(), count));
+        }
 
-            resp = null;
+        boolean resumed = false;
+        if (checkpoint != null) {
+            resumed = checkpoint.begin(split.size(), size);
+            if (resumed) {
+                logger.info(String.format("Resuming the upload of %s", getCallsetId()));
+            }
             try {
-                resp = server.getById(hash);
-            } catch (SolrServerException | IOException e) {
-                logger.error("Failed to check for an existing variant", e);
-                continue;
+                checkpoint.save();
+            } catch (IOException e) {
+                throw new DatabaseException("Unable to save the progress of " + getCallsetId(), e);
             }
+        }
+        startRankings(resumed);
+        return count;
+    }
 
-            if (resp != null) {
-                // found a doc, use it.
-                doc = resp;
-                doc.remove("_version_");
-                server.deleteById(hash);
-                hashCollisions++;
-            } else {
-                // our variant is totally new. create a new doc
-                doc = SolrVariantUtils.variantToDoc(variant);
-            }
+    /**
+     * Start the gene ranking of each individual from the one it has, if any. An individual that has calls but no
+     * ranking, as far as what is committed shows, is ranked from its calls; so is every individual of a resumed
+     * upload, since the variants that were written before aren't read again.
+     *
+     * @param resumed whether the upload goes on from where an earlier attempt stopped
+     * @throws DatabaseException if the rankings can't be read
+     */
+    private void startRankings(boolean resumed) throws DatabaseException {
+        if (ranking != null) {
+            rankings.put(getCallsetId(), ranking);
+            return;
+        }
 
-            // Either way, add individual-specific fields
-            SolrVariantUtils.addVariantToDoc(
-                    doc,
-                    variant,
-                    iterator.getHeader().getIndividualId(),
-                    iterator.getHeader().isPublic());
+        Collection<String> ids = iterator.getHeader().getIndividualIds();
+        try {
+            if (resumed) {
+                // the calls written before the upload was cut short may not be committed yet
+                awaitPendingCommits();
+                for (String id : ids) {
+                    rankings.put(id, GeneRanking.fromCalls(server, id, batchSize));
+                }
+                return;
+            }
 
-            addDoc(ClientUtils.toSolrInputDocument(doc));
+            List<String> keys = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                keys.add(VariantsSchema.getGeneRankingId(id));
+            }
+            Map<String, SolrDocument> stored = new HashMap<>();
+            for (SolrDocument doc : SolrUtils.getByIds(server, keys)) {
+                stored.put((String) doc.getFieldValue(VariantsSchema.CALLSET_ID), doc);
+            }
+            for (String id : ids) {
+                if (stored.containsKey(id)) {
+                    rankings.put(id, GeneRanking.fromDoc(stored.get(id)));
+                } else if (hasCalls(id)) {
+                    rankings.put(id, GeneRanking.fromCalls(server, id, batchSize));
+                } else {
+                    rankings.put(id, new GeneRanking());
+                }
+            }
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Error reading the gene rankings of " + getCallsetId(), e);
         }
-        logger.debug("csv: Hash Collisions: " + hashCollisions);
+    }
 
-        // Solr should commit the fields at it's own optimal pace.
-        // We want to commit once at the end to make sure any leftovers in solr buffers are available for querying.
-        server.commit(true, true);
-        return null;
+    private boolean hasCalls(String callsetId) throws SolrServerException, IOException {
+        SolrQuery q = new SolrQuery()
+                .setQuery(VariantsSchema.getCallsQuery(callsetId))
+                .setRows(0);
+        return server.query(q).getResults().getNumFound() > 0;
     }
 
-    private void addDoc(SolrInputDocument doc) throws DatabaseException {
+    @Override
+    protected void finish() throws DatabaseException {
+        List<SolrInputDocument> docs = new ArrayList<>(rankings.size());
+        for (Map.Entry<String, GeneRanking> entry : rankings.entrySet()) {
+            docs.add(entry.getValue().toDoc(entry.getKey()));
+        }
         try {
-            server.add(doc);
-            doc.clear();
+            if (!docs.isEmpty()) {
+                new UpdateRequest().add(docs).process(server);
+            }
         } catch (SolrServerException | IOException e) {
-            throw new DatabaseException("Error adding variants to Solr", e);
+            throw new DatabaseException("Error writing the gene rankings of " + getCallsetId(), e);
+        }
+    }
+
+    @Override
+    protected List<VariantRecord> readBatch(int reader) {
+        while (true) {
+            if (current[reader] == null) {
+                current[reader] = nextPart();
+                if (current[reader] == null) {
+                    return null;
+                }
+            }
+
+            // a variant lies in a single part, so it is never split across two batches
+            Batch batch = current[reader].readBatch();
+            if (batch != null) {
+                return batch;
+            }
+            if (checkpoint != null) {
+                checkpoint.read(current[reader].index, current[reader].batches);
+            }
+            current[reader] = null;
         }
     }
 
+    /**
+     * Take the next part that isn't done yet, and skip the records of it that are.
+     *
+     * @return the part, or null if there are none left
+     */
+    private Part nextPart() {
+        Part part = parts.poll();
+        while (part != null && checkpoint != null && checkpoint.isFinished(part.index)) {
+            part = parts.poll();
+        }
+        if (part != null && checkpoint != null) {
+            long done = checkpoint.getDone(part.index);
+            while (part.read < done && part.iterator.hasNext()) {
+                part.iterator.nextRecord();
+                part.read++;
+            }
+        }
+        return part;
+    }
+
+    @Override
+    protected void completed(List<VariantRecord> batch) {
+        if (checkpoint != null) {
+            Batch read = (Batch) batch;
+            checkpoint.written(read.part, read.sequence, read.read);
+        }
+    }
+
+    @Override
+    protected String getHash(VariantRecord record) {
+        return SolrVariantUtils.getHash(record);
+    }
+
+    @Override
+    protected List<String> getFetchFields() {
+        return withKeyFields(VariantsSchema.CALLSET_IDS);
+    }
+
+    @Override
+    protected PreparedVariant prepare(VariantRecord record, String hash) {
+        String callsetId = record.getCallSetId() == null ? getCallsetId() : record.getCallSetId();
+        boolean isPublic = iterator.getHeader().isPublic();
+
+        GeneRanking ranking = rankings.get(callsetId);
+        if (ranking != null) {
+            ranking.add(record.getGene(), record.getExomiserGeneCombinedScore());
+        }
+
+        // we don't know yet whether the variant is new, so get both forms ready
+        return new PreparedVariant(callsetId, SolrVariantUtils.recordToDoc(record, hash, callsetId),
+                SolrVariantUtils.recordToAtomicAdd(record, hash, callsetId),
+                SolrVariantUtils.recordToCallDoc(record, hash, callsetId, isPublic));
+    }
+
+    @Override
+    protected UpdateRequest buildUpdate(List<PreparedVariant> batch, List<String> hashes,
+                                        Map<String, SolrDocument> existing) {
+        // every callset on a variant goes into one document, but a callset only counts once per variant.
+        Map<String, Map<String, PreparedVariant>> byHash = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PreparedVariant variant = batch.get(i);
+            Map<String, PreparedVariant> callsets = byHash.get(hashes.get(i));
+            if (callsets == null) {
+                callsets = new LinkedHashMap<>();
+                byHash.put(hashes.get(i), callsets);
+            }
+            if (!callsets.containsKey(variant.callsetId)) {
+                callsets.put(variant.callsetId, variant);
+            }
+        }
+
+        // the calls go first, so that a variant only ever lists a callset once its call is written
+        List<SolrInputDocument> calls = new ArrayList<>();
+        List<SolrInputDocument> docs = new ArrayList<>();
+        for (Map.Entry<String, Map<String, PreparedVariant>> entry : byHash.entrySet()) {
+            SolrDocument doc = existing.get(entry.getKey());
+            SolrInputDocument inputDoc = null;
+            for (PreparedVariant variant : entry.getValue().values()) {
+                if (doc != null && hasCallset(doc, variant.callsetId)) {
+                    // the individual is already on this variant, from an earlier attempt or an earlier upload
+                    continue;
+                }
+                calls.add(variant.callDoc);
+                // copies, since a failed attempt is built again from the same variants
+                if (doc == null && inputDoc == null) {
+                    // our variant is totally new. use the whole doc
+                    inputDoc = variant.newDoc.deepCopy();
+                    inputDoc.setField(VariantsSchema.VERSION, VERSION_MUST_NOT_EXIST);
+                } else if (doc == null) {
+                    SolrVariantUtils.applyAtomicAdd(inputDoc, variant.update);
+                } else if (inputDoc == null) {
+                    inputDoc = variant.update.deepCopy();
+                    inputDoc.setField(VariantsSchema.VERSION, getVersion(doc));
+                } else {
+                    SolrVariantUtils.mergeAtomicAdd(inputDoc, variant.update);
+                }
+            }
+            if (inputDoc != null) {
+                docs.add(inputDoc);
+            }
+        }
+
+        UpdateRequest request = new UpdateRequest();
+        calls.addAll(docs);
+        if (!calls.isEmpty()) {
+            request.add(calls);
+        }
+        return request;
+    }
+
+    /**
+     * Check whether a callset is already on a fetched document.
+     *
+     * @param doc       the document, with the fields from {@link #getFetchFields()}
+     * @param callsetId the callset
+     * @return true if the callset is on the document
+     */
+    private boolean hasCallset(SolrDocument doc, String callsetId) {
+        Collection<Object> callsetIds = doc.getFieldValues(VariantsSchema.CALLSET_IDS);
+        return callsetIds != null && callsetIds.contains(callsetId);
+    }
+
+    /**
+     * Variants the hash index has never seen are new, and aren't looked up. The index may have missed a variant that
+     * another writer just added, which makes writing it as a new document conflict; so once an attempt conflicts,
+     * everything is looked up.
+     */
+    @Override
+    protected List<String> getLookups(List<String> hashes, int attempt) {
+        if (hashIndex == null || attempt > 0) {
+            return hashes;
+        }
+        List<String> lookups = new ArrayList<>(hashes.size());
+        for (String hash : hashes) {
+            if (hashIndex.mightContain(hash)) {
+                lookups.add(hash);
+            }
+        }
+        return lookups;
+    }
+
+    @Override
+    protected void written(UpdateRequest request) {
+        if (hashIndex == null) {
+            return;
+        }
+        for (SolrInputDocument doc : request.getDocuments()) {
+            // the index only holds variants, not calls
+            if (doc.getFieldValue(VariantsSchema.VARIANT) == null) {
+                hashIndex.put((String) doc.getFieldValue(VariantsSchema.HASH));
+            }
+        }
+    }
+
+    @Override
+    protected String getAction() {
+        return "Added";
+    }
+
+    /**
+     * A part of the input, read by one thread at a time.
+     */
+    private final class Part
+    {
+        private final int index;
+        private final VariantIterator iterator;
+        // the number of records taken from the iterator
+        private long read;
+        // the number of batches read
+        private int batches;
+        // the first variant of the next batch, read while filling the last one
+        private VariantRecord pending;
+
+        private Part(int index, VariantIterator iterator) {
+            this.index = index;
+            this.iterator = iterator;
+        }
+
+        /**
+         * Read the next batch of variants from the part.
+         *
+         * @return the batch, or null if the part has been read to the end
+         */
+        private Batch readBatch() {
+            Batch batch = new Batch(index, batches, batchSize);
+            if (pending != null) {
+                batch.add(pending);
+                pending = null;
+            }
+
+            while (iterator.hasNext()) {
+                VariantRecord record = iterator.nextRecord();
+                read++;
+
+                // skip filter!= PASS
+                if (!passChecked && !VariantFilter.PASS.equals(record.getFilter())) {
+                    continue;
+                }
+
+                // the calls of several individuals on a variant are kept in the same batch, to be written together
+                if (batch.size() >= batchSize && !record.isSameVariant(batch.get(batch.size() - 1))) {
+                    pending = record;
+                    // the pending variant belongs to the next batch
+                    return finish(batch, read - 1);
+                }
+
+                batch.add(record);
+            }
+            return batch.isEmpty() ? null : finish(batch, read);
+        }
+
+        private Batch finish(Batch batch, long end) {
+            batch.read = end;
+            batches++;
+            return batch;
+        }
+    }
+
+    /**
+     * A batch of variants, and where it was read from.
+     */
+    private static final class Batch extends ArrayList<VariantRecord>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int part;
+        private final int sequence;
+        // the number of records read from the part, up to the end of this batch
+        private long read;
+
+        private Batch(int part, int sequence, int capacity) {
+            super(capacity);
+            this.part = part;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A variant, ready to be written whether or not solr already has it.
+     */
+    static final class PreparedVariant
+    {
+        private final String callsetId;
+        private final SolrInputDocument newDoc;
+        private final SolrInputDocument update;
+        private final SolrInputDocument callDoc;
+
+        private PreparedVariant(String callsetId, SolrInputDocument newDoc, SolrInputDocument update,
+                SolrInputDocument callDoc) {
+            this.callsetId = callsetId;
+            this.newDoc = newDoc;
+            this.update = update;
+            this.callDoc = callDoc;
+        }
+    }
 }
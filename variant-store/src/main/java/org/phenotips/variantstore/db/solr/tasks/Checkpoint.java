@@ -0,0 +1,440 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr.tasks;
+
+import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.VariantRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The progress of an upload, kept in a file so that an upload cut short by a restart can go on from where it was
+ * instead of starting over.
+ *
+ * The input is read in parts: a single one, unless it is read by region. The progress of a part is the number of
+ * records read from it whose batches are all in solr. Batches are written out of order, so a part only moves past a
+ * batch once every batch read before it is written as well. On resuming, that many records of each part are skipped
+ * without being written again, and the parts that were finished aren't read at all.
+ *
+ * The checkpoint also remembers which of the individuals already had calls before the upload started, and keeps a
+ * copy of those calls in files of their own next to it. Rolling back the upload takes out all that every individual
+ * has, then puts the copies back, so that the individuals are left as they were before the upload.
+ *
+ * @version $Id$
+ */
+public class Checkpoint
+{
+    /**
+     * What should happen to an upload that didn't finish.
+     */
+    public enum State
+    {
+        /** The upload was cut short, and should go on from where it was. */
+        RUNNING,
+        /** The upload was cancelled or failed, and what it wrote should be taken out again. */
+        ROLLBACK
+    }
+
+    private static final String STATE = "state";
+    private static final String INDIVIDUAL = "individual";
+    private static final String SAMPLES = "samples";
+    private static final String SAMPLE = "sample.";
+    private static final String PUBLIC = "public";
+    private static final String REGION_SIZE = "regionSize";
+    private static final String PARTS = "parts";
+    private static final String PART = "part.";
+    private static final String NAME = ".name";
+    private static final String ID = ".id";
+    private static final String FINISHED = ".finished";
+    private static final String STORED = "stored";
+    private static final String CALLS = ".calls.";
+
+    private static Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private final Path file;
+    private final VariantHeader header;
+    private State state = State.RUNNING;
+    private long regionSize;
+    // the individuals that had calls before the upload started, or null if that isn't known
+    private Set<String> stored;
+
+    // what is saved: the records done in each part, and whether the part is finished
+    private long[] done = new long[0];
+    private boolean[] finished = new boolean[0];
+
+    // what isn't: the next batch each part waits for, the batches written ahead of it, and the number of batches in
+    // each part, once it is read to the end
+    private int[] next;
+    private List<Map<Integer, Long>> ahead;
+    private int[] batches;
+
+    private long interval;
+    private long lastSaved;
+
+    /**
+     * Create an empty checkpoint.
+     *
+     * @param file   where the checkpoint is saved
+     * @param header the individuals being uploaded
+     */
+    public Checkpoint(Path file, VariantHeader header) {
+        this.file = file;
+        this.header = header;
+    }
+
+    /**
+     * Read a checkpoint saved by {@link #save()}.
+     *
+     * @param file the file
+     * @return the checkpoint
+     * @throws IOException if the file can't be read, or isn't a checkpoint
+     */
+    public static Checkpoint readFrom(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+
+        try {
+            boolean isPublic = Boolean.parseBoolean(properties.getProperty(PUBLIC));
+            VariantHeader header;
+            if (properties.getProperty(SAMPLES) == null) {
+                header = new VariantHeader(required(properties, INDIVIDUAL), isPublic);
+            } else {
+                Map<String, String> samples = new LinkedHashMap<>();
+                int count = Integer.parseInt(properties.getProperty(SAMPLES));
+                for (int i = 0; i < count; i++) {
+                    samples.put(required(properties, SAMPLE + i + NAME), required(properties, SAMPLE + i + ID));
+                }
+                header = new VariantHeader(samples, isPublic);
+            }
+
+            Checkpoint checkpoint = new Checkpoint(file, header);
+            checkpoint.state = State.valueOf(required(properties, STATE));
+            checkpoint.regionSize = Long.parseLong(required(properties, REGION_SIZE));
+            int parts = Integer.parseInt(required(properties, PARTS));
+            checkpoint.done = new long[parts];
+            checkpoint.finished = new boolean[parts];
+            for (int i = 0; i < parts; i++) {
+                checkpoint.done[i] = Long.parseLong(required(properties, PART + i));
+                checkpoint.finished[i] = Boolean.parseBoolean(properties.getProperty(PART + i + FINISHED));
+            }
+            // older checkpoints don't say
+            if (properties.getProperty(STORED) != null) {
+                int count = Integer.parseInt(properties.getProperty(STORED));
+                checkpoint.stored = new LinkedHashSet<>(count);
+                for (int i = 0; i < count; i++) {
+                    checkpoint.stored.add(required(properties, STORED + "." + i));
+                }
+            }
+            return checkpoint;
+        } catch (IllegalArgumentException e) {
+            throw new IOException(String.format("%s does not hold a checkpoint", file), e);
+        }
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value;
+    }
+
+    /**
+     * Get ready to record the progress of a run of the upload. The progress saved so far is kept if the input is split
+     * the same way as before, and dropped otherwise.
+     *
+     * @param parts      the number of parts the input is read in
+     * @param regionSize the size of the regions the input was split into
+     * @return true if the run goes on from earlier progress
+     */
+    public synchronized boolean begin(int parts, long regionSize) {
+        boolean resuming = parts == done.length && regionSize == this.regionSize;
+        if (!resuming) {
+            this.regionSize = regionSize;
+            done = new long[parts];
+            finished = new boolean[parts];
+        }
+        next = new int[parts];
+        batches = new int[parts];
+        ahead = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            batches[i] = -1;
+            ahead.add(new HashMap<Integer, Long>());
+        }
+        return resuming && hasProgress();
+    }
+
+    private boolean hasProgress() {
+        for (int i = 0; i < done.length; i++) {
+            if (done[i] > 0 || finished[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record that a batch is in solr.
+     *
+     * @param part     the part the batch was read from
+     * @param sequence the number of batches read from the part before this one, in this run
+     * @param read     the number of records read from the part, up to the end of the batch
+     */
+    public synchronized void written(int part, int sequence, long read) {
+        Map<Integer, Long> waiting = ahead.get(part);
+        waiting.put(sequence, read);
+        while (waiting.containsKey(next[part])) {
+            done[part] = waiting.remove(next[part]);
+            next[part]++;
+        }
+        checkFinished(part);
+        saveEvery();
+    }
+
+    /**
+     * Record that a part has been read to the end.
+     *
+     * @param part    the part
+     * @param batches the number of batches read from the part in this run
+     */
+    public synchronized void read(int part, int batches) {
+        this.batches[part] = batches;
+        checkFinished(part);
+    }
+
+    private void checkFinished(int part) {
+        if (batches[part] >= 0 && next[part] >= batches[part]) {
+            finished[part] = true;
+        }
+    }
+
+    private void saveEvery() {
+        long now = System.currentTimeMillis();
+        if (now - lastSaved < interval) {
+            return;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            // the upload goes on, it just can't resume from here
+            logger.warn(String.format("Unable to save the progress of %s", header.getIndividualId()), e);
+        }
+    }
+
+    /**
+     * Save the checkpoint. The file is replaced in one step, so that a crash never leaves half of it behind.
+     *
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(STATE, state.name());
+        properties.setProperty(PUBLIC, String.valueOf(header.isPublic()));
+        if (header.getSamples() == null) {
+            properties.setProperty(INDIVIDUAL, header.getIndividualId());
+        } else {
+            int i = 0;
+            for (Map.Entry<String, String> sample : header.getSamples().entrySet()) {
+                properties.setProperty(SAMPLE + i + NAME, sample.getKey());
+                properties.setProperty(SAMPLE + i + ID, sample.getValue());
+                i++;
+            }
+            properties.setProperty(SAMPLES, String.valueOf(i));
+        }
+        properties.setProperty(REGION_SIZE, String.valueOf(regionSize));
+        properties.setProperty(PARTS, String.valueOf(done.length));
+        for (int i = 0; i < done.length; i++) {
+            properties.setProperty(PART + i, String.valueOf(done[i]));
+            if (finished[i]) {
+                properties.setProperty(PART + i + FINISHED, String.valueOf(true));
+            }
+        }
+        if (stored != null) {
+            int i = 0;
+            for (String id : stored) {
+                properties.setProperty(STORED + "." + i, id);
+                i++;
+            }
+            properties.setProperty(STORED, String.valueOf(i));
+        }
+
+        Files.createDirectories(file.getParent());
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        try (OutputStream out = Files.newOutputStream(partial)) {
+            properties.store(out, null);
+        }
+        Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        lastSaved = System.currentTimeMillis();
+    }
+
+    /**
+     * Delete the saved checkpoint, once the upload is done or undone.
+     *
+     * @throws IOException if the file can't be deleted
+     */
+    public synchronized void delete() throws IOException {
+        Files.deleteIfExists(file);
+        for (String id : header.getIndividualIds()) {
+            Files.deleteIfExists(getCallsFile(id));
+        }
+    }
+
+    /**
+     * Keep a copy of the calls an individual had before the upload started. Like the checkpoint, the file is
+     * replaced in one step.
+     *
+     * @param id    the individual, one of the header's
+     * @param calls the individual's calls
+     * @throws IOException if the calls can't be written
+     */
+    public void saveCalls(String id, List<VariantRecord> calls) throws IOException {
+        Path callsFile = getCallsFile(id);
+        Files.createDirectories(callsFile.getParent());
+        Path partial = callsFile.resolveSibling(callsFile.getFileName() + ".partial");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+            out.writeInt(calls.size());
+            for (VariantRecord call : calls) {
+                call.writeTo(out);
+            }
+        }
+        Files.move(partial, callsFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read back the calls kept by {@link #saveCalls(String, List)}.
+     *
+     * @param id the individual
+     * @return the individual's calls before the upload started
+     * @throws IOException if the calls can't be read
+     */
+    public List<VariantRecord> readCalls(String id) throws IOException {
+        Path callsFile = getCallsFile(id);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(callsFile)))) {
+            int count = in.readInt();
+            List<VariantRecord> calls = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                calls.add(VariantRecord.readFrom(in));
+            }
+            return calls;
+        }
+    }
+
+    // individual ids may not make valid file names, so the files go by the individual's place in the header
+    private Path getCallsFile(String id) {
+        int index = new ArrayList<>(header.getIndividualIds()).indexOf(id);
+        if (index < 0) {
+            throw new IllegalArgumentException(id + " is not part of the upload");
+        }
+        return file.resolveSibling(file.getFileName() + CALLS + index);
+    }
+
+    /**
+     * @param interval the least time between two saves as batches are written, in milliseconds
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @return the individuals being uploaded
+     */
+    public VariantHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return what should happen to the upload if it doesn't finish
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @param state what should happen to the upload if it doesn't finish
+     */
+    public synchronized void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the individuals that had calls before the upload started, or null if that isn't known
+     */
+    public synchronized Set<String> getStored() {
+        return stored;
+    }
+
+    /**
+     * @param stored the individuals that had calls before the upload started
+     */
+    public synchronized void setStored(Collection<String> stored) {
+        this.stored = new LinkedHashSet<>(stored);
+    }
+
+    /**
+     * @return the number of parts the input was read in, or 0 if it hasn't been read yet
+     */
+    public synchronized int getParts() {
+        return done.length;
+    }
+
+    /**
+     * @return the size of the regions the input was split into
+     */
+    public synchronized long getRegionSize() {
+        return regionSize;
+    }
+
+    /**
+     * @param part the part
+     * @return the number of records read from the part whose batches are all in solr
+     */
+    public synchronized long getDone(int part) {
+        return done[part];
+    }
+
+    /**
+     * @param part the part
+     * @return whether every batch of the part is in solr
+     */
+    public synchronized boolean isFinished(int part) {
+        return finished[part];
+    }
+}
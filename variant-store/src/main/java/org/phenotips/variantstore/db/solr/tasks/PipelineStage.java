@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr.tasks;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one stage of an ingest pipeline. The counters are updated by every thread working on the stage, and can
+ * be read at any time while the pipeline runs.
+ *
+ * @version $Id$
+ */
+public class PipelineStage
+{
+    private final String name;
+    private final int threads;
+    private final Queue<?> input;
+
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * Create the counters for a stage.
+     *
+     * @param name    the name of the stage
+     * @param threads the number of threads working on the stage
+     * @param input   the queue the stage takes its work from, or null if it has none
+     */
+    public PipelineStage(String name, int threads, Queue<?> input) {
+        this.name = name;
+        this.threads = threads;
+        this.input = input;
+    }
+
+    /**
+     * Record some work done by the stage.
+     *
+     * @param count the number of variants processed
+     * @param nanos the time spent processing them
+     */
+    void recordWork(int count, long nanos) {
+        items.addAndGet(count);
+        busyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record time spent waiting on a queue, either for work or for room to hand it on.
+     *
+     * @param nanos the time spent waiting
+     */
+    void recordBlocked(long nanos) {
+        blockedNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the name of the stage
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of threads working on the stage
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the number of batches waiting for this stage
+     */
+    public int getQueueDepth() {
+        return input == null ? 0 : input.size();
+    }
+
+    /**
+     * @return the number of variants processed so far
+     */
+    public long getItems() {
+        return items.get();
+    }
+
+    /**
+     * @return the time spent processing, summed over all the stage's threads
+     */
+    public long getBusyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(busyNanos.get());
+    }
+
+    /**
+     * @return the time spent waiting on queues, summed over all the stage's threads
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+
+    /**
+     * @return the number of variants processed per second of work, per thread
+     */
+    public double getThroughput() {
+        long nanos = busyNanos.get();
+        return nanos == 0 ? 0 : items.get() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d threads, %d variants, %.1f variants/sec/thread, busy %d ms, blocked %d ms,"
+                + " %d batches queued", name, threads, getItems(), getThroughput(), getBusyMillis(), getBlockedMillis(),
+                getQueueDepth());
+    }
+}
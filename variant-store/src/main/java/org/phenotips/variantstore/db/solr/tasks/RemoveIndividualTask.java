@@ -18,110 +18,243 @@
 package org.phenotips.variantstore.db.solr.tasks;
 
 import org.phenotips.variantstore.db.DatabaseException;
+import org.phenotips.variantstore.db.solr.SolrUtils;
 import org.phenotips.variantstore.db.solr.SolrVariantUtils;
-import org.phenotips.variantstore.input.VariantIterator;
-import org.phenotips.variantstore.shared.GACallInfoFields;
-import org.phenotips.variantstore.shared.VariantUtils;
+import org.phenotips.variantstore.db.solr.VariantsSchema;
 
 import java.io.IOException;
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
-import org.ga4gh.GAVariant;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.solr.common.params.CursorMarkParams;
+
+import com.google.common.util.concurrent.Striped;
 
 /**
+ * Remove an individual's variants from solr. The variants are found in solr itself, by paging through the individual's
+ * call documents with a cursor, so neither the individual's input file nor any parsing is needed. Each call is deleted,
+ * and the individual is taken out of the call's variant document with an atomic update. Variant documents for which
+ * the individual was the only one left are deleted.
+ *
+ * The individual can also be taken out of some variants only, given by hash, e.g. the ones that are gone from a new
+ * version of its file. Their calls are fetched with a realtime get instead of being searched for.
+ *
+ * Either way, the individual's gene ranking is deleted. An update writes the ranking of the new version once it has
+ * added its variants; otherwise the individual's genes are worked out from its calls until it is uploaded again,
+ * which ranks them from the stored calls.
+ *
  * @version $Id$
  */
-public class RemoveIndividualTask implements Callable<Object>
+public class RemoveIndividualTask extends AbstractIndividualTask<SolrDocument, SolrDocument>
 {
+    // what is needed of a call to take it out
+    private static final List<String> CALL_FIELDS =
+            Arrays.asList(VariantsSchema.HASH, VariantsSchema.VARIANT, VariantsSchema.AC);
 
-    private final VariantIterator iterator;
-    private Logger logger = LoggerFactory.getLogger(getClass());
-    private SolrClient server;
+    private final SolrQuery query;
+    private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    private boolean done;
+    // the variants to take the individual out of, or null for all of them
+    private final Iterator<String> hashes;
 
     /**
      * Remove an individual from solr.
      *
-     * @param server   the solr server to run the task on
-     * @param iterator an iterator of the individual's variants
+     * @param server    the solr server to run the task on
+     * @param callsetId the id of the individual
      */
-    public RemoveIndividualTask(SolrClient server, VariantIterator iterator) {
-        this.server = server;
-        this.iterator = iterator;
+    public RemoveIndividualTask(SolrClient server, String callsetId) {
+        this(server, callsetId, DEFAULT_BATCH_SIZE);
     }
 
-    @Override
-    public Object call() throws Exception {
-        GAVariant variant;
-        SolrQuery q;
-        SolrDocument resp;
-        SolrDocument doc;
+    /**
+     * Remove an individual from solr.
+     *
+     * @param server    the solr server to run the task on
+     * @param callsetId the id of the individual
+     * @param batchSize the number of variants to read and write at once
+     */
+    public RemoveIndividualTask(SolrClient server, String callsetId, int batchSize) {
+        this(server, callsetId, batchSize, Striped.lock(1));
+    }
 
-        int hashCollisions = 0;
-        int hashMisses = 0;
+    /**
+     * Remove an individual from solr.
+     *
+     * @param server    the solr server to run the task on
+     * @param callsetId the id of the individual
+     * @param batchSize the number of variants to read and write at once
+     * @param locks     the locks shared by every task that writes to this server, keyed on variant hash
+     */
+    public RemoveIndividualTask(SolrClient server, String callsetId, int batchSize, Striped<Lock> locks) {
+        this(server, callsetId, null, batchSize, locks);
+    }
 
-        while (iterator.hasNext()) {
-            variant = iterator.next();
+    /**
+     * Remove an individual from some variants in solr.
+     *
+     * @param server    the solr server to run the task on
+     * @param callsetId the id of the individual
+     * @param hashes    the hashes of the variants to take the individual out of, or null for all of them
+     * @param batchSize the number of variants to read and write at once
+     * @param locks     the locks shared by every task that writes to this server, keyed on variant hash
+     */
+    public RemoveIndividualTask(SolrClient server, String callsetId, Collection<String> hashes, int batchSize,
+                                Striped<Lock> locks) {
+        super(server, callsetId, batchSize, locks);
+        this.hashes = hashes == null ? null : new ArrayList<>(hashes).iterator();
 
-            // skip filter!= PASS
-            if (!"PASS".equals(VariantUtils.getInfo(variant.getCalls().get(0), GACallInfoFields.FILTER))) {
-                continue;
-            }
+        this.query = new SolrQuery()
+                .setQuery(VariantsSchema.getCallsQuery(callsetId))
+                .setFields(CALL_FIELDS.toArray(new String[CALL_FIELDS.size()]))
+                .setRows(batchSize)
+                // Cursor functionality requires a sort containing a uniqueKey field tie breaker
+                .addSort(VariantsSchema.HASH, SolrQuery.ORDER.desc);
+    }
+
+    @Override
+    protected int openReaders() throws DatabaseException {
+        // the individual's variants are found by searching, which only sees what is committed
+        awaitPendingCommits();
+        // the gene ranking no longer holds once any variant is gone; an update or an upload builds it again
+        try {
+            server.deleteById(VariantsSchema.getGeneRankingId(getCallsetId()));
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Error removing the individual's gene ranking from Solr", e);
+        }
+        return super.openReaders();
+    }
+
+    @Override
+    protected List<SolrDocument> readBatch(int reader) throws DatabaseException {
+        if (hashes != null) {
+            return readGiven();
+        }
+        if (done) {
+            return null;
+        }
+
+        QueryResponse resp;
+        try {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            resp = server.query(query);
+        } catch (SolrServerException | IOException e) {
+            throw new DatabaseException("Error reading the individual's variants from Solr", e);
+        }
 
-            /**
-             * Query Solr for existing variant
-             */
-            String hash = SolrVariantUtils.getHash(variant);
+        String next = resp.getNextCursorMark();
+        done = cursorMark.equals(next);
+        cursorMark = next;
+        if (resp.getResults().isEmpty()) {
+            done = true;
+            return null;
+        }
+        return resp.getResults();
+    }
 
-            resp = null;
+    private List<SolrDocument> readGiven() throws DatabaseException {
+        while (hashes.hasNext()) {
+            List<String> page = new ArrayList<>(batchSize);
+            while (hashes.hasNext() && page.size() < batchSize) {
+                page.add(VariantsSchema.getCallId(hashes.next(), getCallsetId()));
+            }
             try {
-                resp = server.getById(hash);
+                List<SolrDocument> docs = SolrUtils.getByIds(server, page, CALL_FIELDS);
+                if (!docs.isEmpty()) {
+                    return docs;
+                }
             } catch (SolrServerException | IOException e) {
-                logger.error("Failed to check for an existing variant", e);
-                continue;
+                throw new DatabaseException("Error reading the individual's variants from Solr", e);
             }
+        }
+        return null;
+    }
 
-            if (resp == null) {
-                // our variant is totally new. how did this happen?
-                logger.debug("variant not found");
-                hashMisses += 1;
+    @Override
+    protected String getHash(SolrDocument call) {
+        // the call is written under the lock of its variant
+        return (String) call.getFieldValue(VariantsSchema.VARIANT);
+    }
+
+    @Override
+    protected List<String> getFetchFields() {
+        return withKeyFields(VariantsSchema.CALLSET_IDS);
+    }
+
+    @Override
+    protected SolrDocument prepare(SolrDocument call, String hash) {
+        // the page already holds everything needed of the call
+        return call;
+    }
+
+    @Override
+    protected UpdateRequest buildUpdate(List<SolrDocument> batch, List<String> hashes,
+                                        Map<String, SolrDocument> existing) {
+        String callsetId = getCallsetId();
+
+        UpdateRequest request = new UpdateRequest();
+        List<String> calls = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String hash = hashes.get(i);
+            if (!seen.add(hash)) {
                 continue;
             }
+            calls.add((String) batch.get(i).getFieldValue(VariantsSchema.HASH));
 
-            // found a doc, use it.
-            doc = resp;
-            doc.remove("_version_");
-            server.deleteById(hash);
-            hashCollisions++;
-
-            SolrVariantUtils.removeVariantFromDoc(
-                    doc,
-                    variant,
-                    iterator.getHeader().getIndividualId(),
-                    iterator.getHeader().isPublic());
+            SolrDocument doc = existing.get(hash);
+            Collection<Object> callsets = doc == null ? null : doc.getFieldValues(VariantsSchema.CALLSET_IDS);
+            if (callsets == null || !callsets.contains(callsetId)) {
+                // the variant, or the individual on it, is already gone; only the call is left
+                logger.debug("variant not found");
+            } else if (callsets.size() <= 1) {
+                // nobody else has this variant
+                request.deleteById(hash, getVersion(doc));
+            } else {
+                Object copies = batch.get(i).getFieldValue(VariantsSchema.AC);
+                SolrInputDocument update = SolrVariantUtils.callsetToAtomicRemove(hash, callsetId,
+                        copies == null ? 0 : (int) copies);
+                update.setField(VariantsSchema.VERSION, getVersion(doc));
+                request.add(update);
+            }
         }
-        logger.debug("csv: Hash Collisions: " + hashCollisions);
-        logger.debug("csv: Hash Misses: " + hashMisses);
-
-        // Solr should commit the fields at it's own optimal pace.
-        // We want to commit once at the end to make sure any leftovers in solr buffers are available for querying.
-        server.commit(true, true);
-        return null;
+        // the calls go last, so that a variant that still lists the individual still has its call
+        for (String call : calls) {
+            request.deleteById(call);
+        }
+        return request;
     }
 
-    private void addDoc(SolrInputDocument doc) throws DatabaseException {
-        try {
-            server.add(doc);
-            doc.clear();
-        } catch (SolrServerException | IOException e) {
-            throw new DatabaseException("Error adding variants to Solr", e);
+    @Override
+    protected void written(UpdateRequest request) {
+        if (hashIndex == null || request.getDeleteById() == null) {
+            return;
+        }
+        // the index only holds variants, not calls
+        String callSuffix = VariantsSchema.getCallId("", getCallsetId());
+        for (String hash : request.getDeleteById()) {
+            if (!hash.endsWith(callSuffix)) {
+                hashIndex.remove(hash);
+            }
         }
     }
 
+    @Override
+    protected String getAction() {
+        return "Removed";
+    }
 }
@@ -18,6 +18,8 @@
 package org.phenotips.variantstore.input;
 
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.ga4gh.GAVariant;
@@ -32,6 +34,7 @@ public abstract class AbstractVariantIterator implements VariantIterator
 {
     protected Path path;
     protected VariantHeader header;
+    protected VariantFilter filter;
 
     /**
      * Initialize the variant iterator.
@@ -39,8 +42,19 @@ public abstract class AbstractVariantIterator implements VariantIterator
      * @param header information associated with the file
      */
     public AbstractVariantIterator(Path path, VariantHeader header) {
+        this(path, header, new VariantFilter());
+    }
+
+    /**
+     * Initialize the variant iterator, to only return the variants that the filter accepts.
+     * @param path the file to iterate over
+     * @param header information associated with the file
+     * @param filter the rows of the file to keep
+     */
+    public AbstractVariantIterator(Path path, VariantHeader header, VariantFilter filter) {
         this.path = path;
         this.header = header;
+        this.filter = filter;
     }
 
     @Override
@@ -48,6 +62,11 @@ public VariantHeader getHeader() {
         return header;
     }
 
+    @Override
+    public VariantFilter getFilter() {
+        return filter;
+    }
+
     @Override
     public boolean hasNext() {
         return false;
@@ -58,6 +77,26 @@ public GAVariant next() {
         throw new NoSuchElementException();
     }
 
+    /**
+     * Convert the next GAVariant into a record. Iterators that can fill in a record straight from their input should
+     * override this.
+     * @return the next variant
+     */
+    @Override
+    public VariantRecord nextRecord() {
+        return VariantRecord.fromGAVariant(next());
+    }
+
+    /**
+     * Files that can't be read by region aren't split.
+     * @param regionSize the number of bases in a part
+     * @return this iterator
+     */
+    @Override
+    public List<VariantIterator> split(long regionSize) {
+        return Collections.<VariantIterator>singletonList(this);
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
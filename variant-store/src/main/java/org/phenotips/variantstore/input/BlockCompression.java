@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Helpers for storing input files block gzip (bgzip) compressed. A block gzip file is a valid gzip file, so anything
+ * that reads gzip can read it, but it is made of small independently compressed blocks, which is what lets an index
+ * like tabix jump straight to the part of the file it needs.
+ *
+ * @version $Id$
+ */
+public final class BlockCompression
+{
+    /**
+     * The extension of a compressed file.
+     */
+    public static final String EXTENSION = ".gz";
+
+    /**
+     * Store a file block gzip compressed, whether it was plain or gzip compressed to begin with.
+     */
+    public static final FileAdopter.Conversion COMPRESS = new FileAdopter.Conversion()
+    {
+        @Override
+        public void convert(Path source, Path partial, Path target) throws IOException {
+            compress(source, partial);
+        }
+    };
+
+    // the first two bytes of a gzip file, including block gzip files
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private BlockCompression() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Check whether a file is gzip compressed, going by its first bytes.
+     *
+     * @param path the file
+     * @return true if the file is gzip or block gzip compressed
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isGzip(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        }
+    }
+
+    /**
+     * Check whether a file is block gzip compressed, and so can be indexed as it is.
+     *
+     * @param path the file
+     * @return true if the file is block gzip compressed
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isBlockCompressed(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return BlockCompressedInputStream.isValidFile(in);
+        }
+    }
+
+    /**
+     * Open a file for reading its content, decompressing it on the fly if it is gzip or block gzip compressed.
+     *
+     * @param path the file
+     * @return the content of the file
+     * @throws IOException if the file can't be opened
+     */
+    public static InputStream openDecompressed(Path path) throws IOException {
+        boolean compressed = isGzip(path);
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        if (!compressed) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the content of a file block gzip compressed, and force it to disk.
+     *
+     * @param source the file, plain or gzip compressed
+     * @param target the compressed file
+     * @throws IOException if the file can't be compressed
+     */
+    public static void compress(Path source, Path target) throws IOException {
+        try (InputStream in = openDecompressed(source);
+             OutputStream out = new BlockCompressedOutputStream(Files.newOutputStream(target), target.toFile())) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        // the last block is only written on close
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * The digests of the files stored for each individual, so that a file uploaded again with the same content can be
+ * recognized without storing or reading it again. Each digest is kept in a file of its own, in a hidden directory of
+ * the store.
+ *
+ * @version $Id$
+ */
+public class ContentDigests
+{
+    private static final String DIRECTORY = ".digests";
+    private static final String EXTENSION = ".sha256";
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+
+    /**
+     * @param store the directory of the store the files are in
+     */
+    public ContentDigests(Path store) {
+        this.path = store.resolve(DIRECTORY);
+    }
+
+    /**
+     * Compute the digest of the content of a file, as it is, compressed or not.
+     *
+     * @param file the file
+     * @return the digest, in hex
+     * @throws IOException if the file can't be read
+     */
+    public static String digest(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return BaseEncoding.base16().lowerCase().encode(digest.digest());
+    }
+
+    /**
+     * @param id the id of the individual
+     * @return the digest of the individual's stored file, or null if it isn't known
+     */
+    public String get(String id) {
+        Path file = getFile(id);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // the file is stored again
+            return null;
+        }
+    }
+
+    /**
+     * Record the digest of an individual's stored file.
+     *
+     * @param id     the id of the individual
+     * @param digest the digest
+     * @throws IOException if the digest can't be written
+     */
+    public void put(String id, String digest) throws IOException {
+        Files.createDirectories(this.path);
+        Files.write(getFile(id), digest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Forget the digest of an individual's file, before the file is replaced or removed.
+     *
+     * @param id the id of the individual
+     * @throws IOException if the digest can't be deleted
+     */
+    public void remove(String id) throws IOException {
+        Files.deleteIfExists(getFile(id));
+    }
+
+    private Path getFile(String id) {
+        return this.path.resolve(id + EXTENSION);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Take files into the store as cheaply as the file system allows. A file is hard linked into place if possible, which
+ * costs no I/O at all. Failing that, it is moved, if the store is allowed to take the file away from its owner. Only
+ * when neither works is it copied, and the copy runs in the background: until it is done, {@link #resolve(Path)} points
+ * readers at the original file, so that indexing can start right away.
+ *
+ * A file can also be stored in another form, e.g. compressed, with {@link #convert(Path, Path, Conversion)}. That works
+ * like a copy, and is done in the background too.
+ *
+ * A copy is written to a hidden file next to its target and moved into place once it is complete and on disk, so a
+ * stored file is never seen half written. The original file must stay where it is until the copy is done.
+ *
+ * @version $Id$
+ */
+public class FileAdopter
+{
+    /**
+     * How a file was taken into the store.
+     */
+    public enum Method
+    {
+        /** The stored file is a hard link to the original. */
+        LINK,
+        /** The original was moved into the store. */
+        MOVE,
+        /** The original is being copied into the store. */
+        COPY,
+        /** The original is being converted into the form it is stored in. */
+        CONVERT
+    }
+
+    /**
+     * A way of writing a file into the store in another form.
+     */
+    public interface Conversion
+    {
+        /**
+         * Write the stored form of a file. Anything that goes with the stored file, like an index, should be written
+         * here as well, before the stored file is moved into place.
+         *
+         * @param source  the original file
+         * @param partial where to write the stored form, which is moved into place once this returns
+         * @param target  where the stored form will end up
+         * @throws IOException if the file can't be converted
+         */
+        void convert(Path source, Path partial, Path target) throws IOException;
+    }
+
+    /**
+     * Store an exact copy of the file.
+     */
+    public static final Conversion COPY = new Conversion()
+    {
+        @Override
+        public void convert(Path source, Path partial, Path target) throws IOException {
+            transfer(source, partial);
+        }
+    };
+
+    // partial files are hidden, and keep the extension of their target for tools that go by it
+    private static final String PARTIAL_PREFIX = ".";
+
+    private static Logger logger = LoggerFactory.getLogger(FileAdopter.class);
+
+    private boolean moveAllowed;
+
+    private final ExecutorService copier = Executors.newSingleThreadExecutor();
+
+    // copies that haven't finished, by target
+    private final Map<Path, PendingCopy> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param moveAllowed whether files that can't be linked may be moved into the store, taking them from their owner
+     */
+    public void setMoveAllowed(boolean moveAllowed) {
+        this.moveAllowed = moveAllowed;
+    }
+
+    /**
+     * @return whether files that can't be linked may be moved into the store
+     */
+    public boolean isMoveAllowed() {
+        return moveAllowed;
+    }
+
+    /**
+     * Take a file into the store, replacing whatever was stored at the target.
+     *
+     * @param source the file to store
+     * @param target where to store it
+     * @return how the file was stored
+     * @throws IOException if the target can't be replaced, or the copy can't be started
+     */
+    public Method adopt(Path source, Path target) throws IOException {
+        await(target);
+        Files.deleteIfExists(target);
+
+        try {
+            link(source, target);
+            return Method.LINK;
+        } catch (UnsupportedOperationException | IOException e) {
+            // another file system, or one without hard links
+            logger.debug(String.format("Could not link %s to %s", target, source), e);
+        }
+
+        if (moveAllowed) {
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                return Method.MOVE;
+            } catch (IOException e) {
+                logger.debug(String.format("Could not move %s to %s", source, target), e);
+            }
+        }
+
+        convert(source, target, COPY);
+        return Method.COPY;
+    }
+
+    /**
+     * Hard link a file into place.
+     *
+     * @param source the file
+     * @param target the link to create
+     * @throws IOException if the link can't be created
+     */
+    void link(Path source, Path target) throws IOException {
+        Files.createLink(target, source);
+    }
+
+    /**
+     * Store a file in another form, in the background. Until it is done, {@link #resolve(Path)} points readers at the
+     * original file.
+     *
+     * @param source     the file to store
+     * @param target     where to store it
+     * @param conversion how to write the stored form
+     * @return {@link Method#CONVERT}
+     * @throws IOException if the target can't be replaced
+     */
+    public Method convert(final Path source, final Path target, final Conversion conversion) throws IOException {
+        await(target);
+        Files.deleteIfExists(target);
+
+        final Path partial = target.resolveSibling(PARTIAL_PREFIX + target.getFileName());
+        FutureTask<Object> future = new FutureTask<>(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws IOException {
+                try {
+                    conversion.convert(source, partial, target);
+                    Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException | RuntimeException e) {
+                    logger.error(String.format("Error copying %s to %s", source, target), e);
+                    Files.deleteIfExists(partial);
+                    throw e;
+                } finally {
+                    pending.remove(target);
+                }
+                return null;
+            }
+        });
+        // registered before it starts, so that it can't finish first
+        pending.put(target, new PendingCopy(source, future));
+        copier.execute(future);
+        return Method.CONVERT;
+    }
+
+    /**
+     * Copy a file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets
+     * the operating system move the bytes without them passing through the JVM, and force it to disk.
+     *
+     * @param source the file
+     * @param target the copy
+     * @throws IOException if the file can't be copied
+     */
+    public static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+    }
+
+    /**
+     * Check whether a file in the store is a copy that isn't done yet, or was left over by a copy that failed.
+     *
+     * @param file the file
+     * @return true if the file isn't a stored file
+     */
+    public static boolean isPartial(Path file) {
+        return file.getFileName().toString().startsWith(PARTIAL_PREFIX);
+    }
+
+    /**
+     * Get the file to read for a stored file: the stored file itself, or the original while it is still being copied.
+     *
+     * @param target where the file is stored
+     * @return the file to read
+     */
+    public Path resolve(Path target) {
+        PendingCopy copy = pending.get(target);
+        return copy == null ? target : copy.source;
+    }
+
+    /**
+     * Get the copy to a target, if it is still running, e.g. to wait for it along with something else.
+     *
+     * @param target where the file is stored
+     * @return the copy, or null if nothing is being copied to the target
+     */
+    public Future<?> getPending(Path target) {
+        PendingCopy copy = pending.get(target);
+        return copy == null ? null : copy.future;
+    }
+
+    /**
+     * @return where the files still being copied are going
+     */
+    public List<Path> getPendingTargets() {
+        return new ArrayList<>(pending.keySet());
+    }
+
+    /**
+     * Wait for the copy to a target to finish, if there is one.
+     *
+     * @param target where the file is stored
+     * @throws IOException if the copy failed, or the wait was interrupted
+     */
+    public void await(Path target) throws IOException {
+        PendingCopy copy = pending.get(target);
+        if (copy == null) {
+            return;
+        }
+        try {
+            copy.future.get();
+        } catch (ExecutionException e) {
+            throw new IOException(String.format("Error copying %s to %s", copy.source, target), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while copying %s to %s", copy.source, target), e);
+        }
+    }
+
+    /**
+     * Finish the copies that are still running, and stop.
+     */
+    public void stop() {
+        copier.shutdown();
+        try {
+            if (!copier.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                logger.warn("Gave up waiting for files to be copied");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A copy that hasn't finished.
+     */
+    private static final class PendingCopy
+    {
+        private final Path source;
+        private final Future<Object> future;
+
+        private PendingCopy(Path source, Future<Object> future) {
+            this.source = source;
+            this.future = future;
+        }
+    }
+}
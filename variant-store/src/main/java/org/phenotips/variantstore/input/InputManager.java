@@ -21,6 +21,8 @@
 
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * An input handler is responsible for orchestrating the transformation of variant data from one format to a
@@ -31,12 +33,43 @@
 public interface InputManager extends Service
 {
     /**
-     * Add an individual's data file for safekeeping.
+     * Allow the files given to {@link #addIndividual(String, Path)} and {@link #addIndividuals(Map, Path)} to be moved
+     * into the store when they can't be hard linked, instead of being copied. The caller then loses the file. Off by
+     * default.
+     * @param moveAllowed whether files may be moved into the store
+     */
+    void setMoveAllowed(boolean moveAllowed);
+
+    /**
+     * Add an individual's data file for safekeeping. The file is hard linked into the store where possible, and
+     * otherwise moved or copied. A copy finishes in the background, and the individual is read from the original file
+     * until then, so the original must stay in place. A file with the same content as the one already stored for the
+     * individual is left out.
      * @param id the id of the individual
      * @param path the path to the file
+     * @return false if the individual's stored file already had the same content, true if the file was stored
      * @throws InputException if an error is encountered.
      */
-    void addIndividual(String id, Path path) throws InputException;
+    boolean addIndividual(String id, Path path) throws InputException;
+
+    /**
+     * Add a data file that holds several individuals, one per sample, for safekeeping. Each individual can then be
+     * read and removed on its own, as if it had been added with {@link #addIndividual(String, Path)}.
+     * @param samples the names of the samples in the file, mapped to the ids of the individuals they belong to
+     * @param path the path to the file
+     * @return false if every individual already had a file with the same content, for the same sample; true if the
+     * file was stored
+     * @throws InputException if the file can't be stored, or doesn't hold the samples.
+     */
+    boolean addIndividuals(Map<String, String> samples, Path path) throws InputException;
+
+    /**
+     * Get the copy of the individual's file into the store, if it is still running. Until it is done, the individual
+     * is read from the file it was added from, so that file must stay in place.
+     * @param id the id of the individual
+     * @return the copy, or null if the file is in the store already
+     */
+    Future<?> getPendingCopy(String id);
 
     /**
      * Get the path to the individual's data file.
@@ -61,6 +94,31 @@ public interface InputManager extends Service
      */
     VariantIterator getIteratorForIndividual(String id, boolean isPublic);
 
+    /**
+     * Given an individual, get a VariantIterator that only returns the variants the filter accepts. Rows that the
+     * filter rejects are skipped while reading the file, without building any variants for them.
+     *
+     * @param id the id of the individual
+     * @param isPublic can the variants be used for aggregate data.
+     * @param filter the variants to keep
+     * @return the variant iterator
+     */
+    VariantIterator getIteratorForIndividual(String id, boolean isPublic, VariantFilter filter);
+
+    /**
+     * Get a VariantIterator that reads the variants of several individuals added together with
+     * {@link #addIndividuals(Map, Path)}, in a single pass over their file. Each call is tagged with the id of the
+     * individual it belongs to.
+     *
+     * @param samples the names of the samples in the file, mapped to the ids of the individuals they belong to
+     * @param isPublic can the variants be used for aggregate data.
+     * @param filter the variants to keep
+     * @return the variant iterator
+     * @throws InputException if the individuals can't be read together
+     */
+    VariantIterator getIteratorForIndividuals(Map<String, String> samples, boolean isPublic, VariantFilter filter)
+        throws InputException;
+
     /**
      * Given an individual, get the Variant Iterator. The individual is assumed to be private.
      * @param id the id of the individual
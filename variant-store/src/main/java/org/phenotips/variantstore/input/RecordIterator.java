@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.util.Iterator;
+
+import org.ga4gh.GAVariant;
+
+/**
+ * Iterate over records that were already read, e.g. to store a list of records kept in memory.
+ *
+ * @version $Id$
+ */
+public class RecordIterator extends AbstractVariantIterator
+{
+    private final Iterator<VariantRecord> records;
+
+    /**
+     * Iterate over some records.
+     *
+     * @param header  the individuals the records belong to
+     * @param filter  the filter the records were read with
+     * @param records the records
+     */
+    public RecordIterator(VariantHeader header, VariantFilter filter, Iterator<VariantRecord> records) {
+        super(null, header, filter);
+        this.records = records;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return records.hasNext();
+    }
+
+    @Override
+    public GAVariant next() {
+        return records.next().toGAVariant();
+    }
+
+    @Override
+    public VariantRecord nextRecord() {
+        return records.next();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The difference between two versions of an individual's variants, e.g. before and after Exomiser is run again with
+ * new phenotypes. Both versions are sorted by chromosome, position and alleles and merged, which pairs up the records
+ * of each variant. A variant that is only in the old version is removed, one that is only in the new version is
+ * added, and one whose call or annotations changed is removed and added again. Variants that didn't change are left
+ * alone, so applying the difference costs as much as the difference, not as much as the whole individual.
+ *
+ * Variants that appear more than once in a version are only counted once, as they are only stored once.
+ *
+ * @version $Id$
+ */
+public class VariantDiff
+{
+    /**
+     * The order the versions are merged in.
+     */
+    public static final Comparator<VariantRecord> ORDER = new Comparator<VariantRecord>()
+    {
+        @Override
+        public int compare(VariantRecord a, VariantRecord b) {
+            int result = a.getReferenceName().compareTo(b.getReferenceName());
+            if (result == 0) {
+                result = Long.compare(a.getStart(), b.getStart());
+            }
+            if (result == 0) {
+                result = a.getReferenceBases().compareTo(b.getReferenceBases());
+            }
+            if (result == 0) {
+                result = a.getFirstAlternateBases().compareTo(b.getFirstAlternateBases());
+            }
+            return result;
+        }
+    };
+
+    private final VariantHeader header;
+    private final VariantFilter filter;
+    private final List<VariantRecord> removed = new ArrayList<>();
+    private final List<VariantRecord> added = new ArrayList<>();
+    private List<VariantRecord> records;
+    private int changed;
+    private int unchanged;
+
+    private VariantDiff(VariantHeader header, VariantFilter filter) {
+        this.header = header;
+        this.filter = filter;
+    }
+
+    /**
+     * Read all the variants of an iterator, in the order they are merged in.
+     *
+     * @param iterator the variants
+     * @return the variants, sorted, each one once
+     */
+    public static List<VariantRecord> read(VariantIterator iterator) {
+        List<VariantRecord> records = new ArrayList<>();
+        while (iterator.hasNext()) {
+            records.add(iterator.nextRecord());
+        }
+        // the sort is stable, so the first record of a variant is the one kept, as it is when storing
+        Collections.sort(records, ORDER);
+
+        List<VariantRecord> distinct = new ArrayList<>(records.size());
+        for (VariantRecord record : records) {
+            if (distinct.isEmpty() || ORDER.compare(distinct.get(distinct.size() - 1), record) != 0) {
+                distinct.add(record);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Compute the difference between the stored version of an individual's variants and a new one.
+     *
+     * @param before the stored variants, as given by {@link #read(VariantIterator)}
+     * @param after  the new variants
+     * @return the difference
+     */
+    public static VariantDiff compute(List<VariantRecord> before, VariantIterator after) {
+        VariantDiff diff = new VariantDiff(after.getHeader(), after.getFilter());
+        List<VariantRecord> current = read(after);
+        diff.records = current;
+
+        int i = 0;
+        int j = 0;
+        while (i < before.size() || j < current.size()) {
+            int order;
+            if (i == before.size()) {
+                order = 1;
+            } else if (j == current.size()) {
+                order = -1;
+            } else {
+                order = ORDER.compare(before.get(i), current.get(j));
+            }
+
+            if (order < 0) {
+                diff.removed.add(before.get(i++));
+            } else if (order > 0) {
+                diff.added.add(current.get(j++));
+            } else if (before.get(i).isSameCall(current.get(j))) {
+                diff.unchanged++;
+                i++;
+                j++;
+            } else {
+                diff.changed++;
+                diff.removed.add(before.get(i++));
+                diff.added.add(current.get(j++));
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return the individual the variants belong to, as given by the new version
+     */
+    public VariantHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the variants to take the individual out of: the ones that are gone, and the ones that changed
+     */
+    public List<VariantRecord> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the variants to store for the individual: the new ones, and the new version of the ones that changed
+     */
+    public List<VariantRecord> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return all the variants of the new version, as given by {@link #read(VariantIterator)}
+     */
+    public List<VariantRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of variants in both versions, with a different call or annotations
+     */
+    public int getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the number of variants that are the same in both versions
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return true if both versions have the same variants
+     */
+    public boolean isEmpty() {
+        return removed.isEmpty() && added.isEmpty();
+    }
+
+    /**
+     * Get the variants to store, as read from the new version.
+     *
+     * @return an iterator over {@link #getAdded()}
+     */
+    public VariantIterator getAdditions() {
+        return new RecordIterator(header, filter, added.iterator());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d removed, %d added, %d changed, %d unchanged", removed.size() - changed,
+                added.size() - changed, changed, unchanged);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Criteria that a row of an input file must meet to be turned into a variant. Iterators check these against the raw
+ * fields of a row, before building any objects for it, and skip the rows that don't match.
+ *
+ * A row that has no value for the frequency or the functional class is not filtered on it. A filter that accepts
+ * everything is created by the default constructor.
+ *
+ * A filter can also restrict the rows to a region of the genome. Iterators over indexed files only read the part of
+ * the file that covers the region; the others still scan the whole file, but skip the rows outside the region early.
+ *
+ * @version $Id$
+ */
+public class VariantFilter
+{
+    /**
+     * The FILTER value of a call that passed all filters.
+     */
+    public static final String PASS = "PASS";
+
+    private boolean passOnly;
+    private double maxFrequency = Double.POSITIVE_INFINITY;
+    private Set<String> functionalClasses;
+    private String regionName;
+    private long regionStart;
+    private long regionEnd;
+
+    /**
+     * Create a filter that accepts everything.
+     */
+    public VariantFilter() {
+    }
+
+    /**
+     * Create a filter that accepts the same rows as another one.
+     *
+     * @param other the filter to copy
+     */
+    public VariantFilter(VariantFilter other) {
+        this.passOnly = other.passOnly;
+        this.maxFrequency = other.maxFrequency;
+        this.functionalClasses = other.functionalClasses;
+        this.regionName = other.regionName;
+        this.regionStart = other.regionStart;
+        this.regionEnd = other.regionEnd;
+    }
+
+    /**
+     * Create a filter that accepts only the rows that passed all filters, which is what gets stored.
+     *
+     * @return the filter
+     */
+    public static VariantFilter passOnly() {
+        VariantFilter filter = new VariantFilter();
+        filter.setPassOnly(true);
+        return filter;
+    }
+
+    /**
+     * @param passOnly whether to skip any row whose FILTER isn't PASS
+     */
+    public void setPassOnly(boolean passOnly) {
+        this.passOnly = passOnly;
+    }
+
+    /**
+     * @return whether rows whose FILTER isn't PASS are skipped
+     */
+    public boolean isPassOnly() {
+        return passOnly;
+    }
+
+    /**
+     * @param maxFrequency skip any row whose allele frequency is higher than this, in the units of the input file
+     */
+    public void setMaxFrequency(double maxFrequency) {
+        this.maxFrequency = maxFrequency;
+    }
+
+    /**
+     * @return the highest allele frequency accepted
+     */
+    public double getMaxFrequency() {
+        return maxFrequency;
+    }
+
+    /**
+     * @return whether rows are filtered on their allele frequency at all
+     */
+    public boolean hasMaxFrequency() {
+        return maxFrequency != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param functionalClasses the functional classes accepted, or null to accept all of them
+     */
+    public void setFunctionalClasses(Collection<String> functionalClasses) {
+        if (functionalClasses == null) {
+            this.functionalClasses = null;
+        } else {
+            this.functionalClasses = Collections.unmodifiableSet(new LinkedHashSet<>(functionalClasses));
+        }
+    }
+
+    /**
+     * @return the functional classes accepted, or null if all of them are
+     */
+    public Set<String> getFunctionalClasses() {
+        return functionalClasses;
+    }
+
+    /**
+     * Only accept the variants that start in a region. Positions are 0-based, as in GA4GH.
+     *
+     * @param referenceName the chromosome, as named in the input files
+     * @param start         the first position in the region
+     * @param end           the position just past the region
+     */
+    public void setRegion(String referenceName, long start, long end) {
+        checkArgument(start >= 0 && start < end, "region must not be empty");
+        this.regionName = checkNotNull(referenceName);
+        this.regionStart = start;
+        this.regionEnd = end;
+    }
+
+    /**
+     * @return whether rows are restricted to a region
+     */
+    public boolean hasRegion() {
+        return regionName != null;
+    }
+
+    /**
+     * @return the chromosome of the region, or null if there is no region
+     */
+    public String getRegionName() {
+        return regionName;
+    }
+
+    /**
+     * @return the first 0-based position in the region
+     */
+    public long getRegionStart() {
+        return regionStart;
+    }
+
+    /**
+     * @return the 0-based position just past the region
+     */
+    public long getRegionEnd() {
+        return regionEnd;
+    }
+
+    /**
+     * Check where a row's variant starts.
+     *
+     * @param start the 0-based start of the variant, on the region's chromosome
+     * @return true if the row is accepted
+     */
+    public boolean acceptsStart(long start) {
+        return !hasRegion() || (start >= regionStart && start < regionEnd);
+    }
+
+    /**
+     * Check a row's FILTER value.
+     *
+     * @param filter the FILTER value, may be null
+     * @return true if the row is accepted
+     */
+    public boolean acceptsFilter(String filter) {
+        return !passOnly || PASS.equals(filter);
+    }
+
+    /**
+     * Check a row's allele frequency.
+     *
+     * @param frequency the frequency
+     * @return true if the row is accepted
+     */
+    public boolean acceptsFrequency(double frequency) {
+        return frequency <= maxFrequency;
+    }
+
+    /**
+     * Check a row's functional class.
+     *
+     * @param functionalClass the functional class, may be null
+     * @return true if the row is accepted
+     */
+    public boolean acceptsFunctionalClass(String functionalClass) {
+        return functionalClasses == null || functionalClass == null || functionalClasses.contains(functionalClass);
+    }
+}
@@ -17,8 +17,16 @@
  */
 package org.phenotips.variantstore.input;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
 /**
- * The metadata associated with a collection of variants.
+ * The metadata associated with a collection of variants. The variants may belong to a single individual, or to
+ * several individuals, each stored as one sample of the file.
  *
  * @version $Id$
  */
@@ -26,6 +34,7 @@
 {
     private String individualId;
     private boolean isPublic;
+    private Map<String, String> samples;
 
     /**
      * Create a new header.
@@ -38,7 +47,19 @@ public VariantHeader(String individualId, boolean isPublic) {
     }
 
     /**
-     * Get the individual id.
+     * Create a new header for a file that holds the variants of several individuals, one per sample. Only the listed
+     * samples are read from the file.
+     * @param samples the names of the samples in the file, mapped to the ids of the individuals they belong to
+     * @param isPublic can these variants be used in aggregate searches
+     */
+    public VariantHeader(Map<String, String> samples, boolean isPublic) {
+        this.samples = Collections.unmodifiableMap(new LinkedHashMap<>(samples));
+        this.individualId = StringUtils.join(samples.values(), ',');
+        this.isPublic = isPublic;
+    }
+
+    /**
+     * Get the individual id. If the variants belong to several individuals, their ids are separated by commas.
      * @return the individuals id
      */
     public String getIndividualId() {
@@ -53,6 +74,25 @@ public void setIndividualId(String individualId) {
         this.individualId = individualId;
     }
 
+    /**
+     * Get the ids of all the individuals the variants belong to.
+     * @return the ids
+     */
+    public Collection<String> getIndividualIds() {
+        if (samples == null) {
+            return Collections.singletonList(individualId);
+        }
+        return samples.values();
+    }
+
+    /**
+     * Get the samples to read from the file, if the file is read by sample.
+     * @return a map of sample name to individual id, or null if the whole file belongs to {@link #getIndividualId()}
+     */
+    public Map<String, String> getSamples() {
+        return samples;
+    }
+
     /**
      * Return whether the variants can be used in aggregate queries.
      * @return whether the variants can be used in aggregate queries.
@@ -18,6 +18,7 @@
 package org.phenotips.variantstore.input;
 
 import java.util.Iterator;
+import java.util.List;
 
 import org.ga4gh.GAVariant;
 
@@ -33,6 +34,28 @@ public interface VariantIterator extends Iterator<GAVariant>
      */
     VariantHeader getHeader();
 
+    /**
+     * Get the filter that rows had to pass to be returned by this iterator.
+     * @return the filter
+     */
+    VariantFilter getFilter();
+
+    /**
+     * Get the next variant as a flat record, which is cheaper to build than a GAVariant. Advances the iterator just
+     * like {@link #next()}.
+     * @return the next variant
+     */
+    VariantRecord nextRecord();
+
+    /**
+     * Split the variants into parts that can be read at the same time, each by its own thread, e.g. one per region of
+     * an indexed file. Reading every part gives the same variants as reading this iterator, which shouldn't be read
+     * any more. Should be called before the iterator is read.
+     * @param regionSize the number of bases in a part, or 0 for a part per chromosome
+     * @return the parts, or just this iterator if it can't be split
+     */
+    List<VariantIterator> split(long regionSize);
+
     @Override
     boolean hasNext();
 
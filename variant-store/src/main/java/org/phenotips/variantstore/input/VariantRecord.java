@@ -0,0 +1,580 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import org.phenotips.variantstore.shared.GACallInfoFields;
+import org.phenotips.variantstore.shared.GAVariantInfoFields;
+import org.phenotips.variantstore.shared.VariantUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+
+import org.ga4gh.GACall;
+import org.ga4gh.GAVariant;
+
+/**
+ * A flat record of one variant with one call, used while ingesting. Positions are primitives, scores are floats with
+ * NaN standing for a missing value, and the genotype is two allele indexes. Iterators produce it without building a
+ * GAVariant and its info maps; GAVariant remains the type handed out by the public API.
+ *
+ * @version $Id$
+ */
+public class VariantRecord
+{
+    private String referenceName;
+    private long start;
+    private long end;
+    private String referenceBases;
+    private String alternateBases;
+
+    private String gene;
+    private String geneEffect;
+    private float exacAlleleFrequency = Float.NaN;
+
+    private String callSetId;
+    private byte allele1;
+    private byte allele2;
+    private float quality = Float.NaN;
+    private String filter;
+    private float exomiserVariantScore = Float.NaN;
+    private float exomiserGenePhenoScore = Float.NaN;
+    private float exomiserGeneVariantScore = Float.NaN;
+    private float exomiserGeneCombinedScore = Float.NaN;
+
+    /**
+     * Turn a GAVariant into a record. Only the first call of the variant is kept.
+     *
+     * @param variant the variant
+     * @return a new record
+     */
+    public static VariantRecord fromGAVariant(GAVariant variant) {
+        return fromGAVariant(variant, variant.getCalls().get(0));
+    }
+
+    /**
+     * Turn one call of a GAVariant into a record.
+     *
+     * @param variant the variant
+     * @param call    one of the variant's calls
+     * @return a new record
+     */
+    public static VariantRecord fromGAVariant(GAVariant variant, GACall call) {
+        VariantRecord record = new VariantRecord();
+        record.referenceName = variant.getReferenceName();
+        record.start = variant.getStart();
+        record.end = variant.getEnd() == null
+                ? variant.getStart() + variant.getReferenceBases().length() : variant.getEnd();
+        record.referenceBases = variant.getReferenceBases();
+        record.alternateBases = variant.getAlternateBases().get(0);
+
+        record.gene = VariantUtils.getInfo(variant, GAVariantInfoFields.GENE);
+        record.geneEffect = VariantUtils.getInfo(variant, GAVariantInfoFields.GENE_EFFECT);
+        record.exacAlleleFrequency = parse(VariantUtils.getInfo(variant, GAVariantInfoFields.EXAC_AF));
+
+        record.callSetId = call.getCallSetId();
+        if (call.getGenotype() != null && call.getGenotype().size() == 2) {
+            record.allele1 = call.getGenotype().get(0).byteValue();
+            record.allele2 = call.getGenotype().get(1).byteValue();
+        }
+        record.quality = parse(VariantUtils.getInfo(call, GACallInfoFields.QUALITY));
+        record.filter = VariantUtils.getInfo(call, GACallInfoFields.FILTER);
+        record.exomiserVariantScore = parse(VariantUtils.getInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE));
+        record.exomiserGenePhenoScore =
+                parse(VariantUtils.getInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE));
+        record.exomiserGeneVariantScore =
+                parse(VariantUtils.getInfo(call, GACallInfoFields.EXOMISER_GENE_VARIANT_SCORE));
+        record.exomiserGeneCombinedScore =
+                parse(VariantUtils.getInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE));
+        return record;
+    }
+
+    private static float parse(String value) {
+        if (value == null || ".".equals(value)) {
+            return Float.NaN;
+        }
+        return Float.parseFloat(value);
+    }
+
+    /**
+     * Turn the record into a GAVariant with a single call.
+     *
+     * @return a new GAVariant
+     */
+    public GAVariant toGAVariant() {
+        GAVariant variant = new GAVariant();
+        GACall call = new GACall();
+        variant.setCalls(Collections.singletonList(call));
+
+        variant.setReferenceName(referenceName);
+        variant.setStart(start);
+        variant.setEnd(end);
+        variant.setReferenceBases(referenceBases);
+        variant.setAlternateBases(Arrays.asList(alternateBases.split(",")));
+
+        addInfo(variant, GAVariantInfoFields.GENE, gene);
+        addInfo(variant, GAVariantInfoFields.GENE_EFFECT, geneEffect);
+        if (!Float.isNaN(exacAlleleFrequency)) {
+            VariantUtils.addInfo(variant, GAVariantInfoFields.EXAC_AF, exacAlleleFrequency);
+        }
+
+        call.setCallSetId(callSetId);
+        call.setGenotype(Arrays.asList((int) allele1, (int) allele2));
+        addInfo(call, GACallInfoFields.QUALITY, quality);
+        addInfo(call, GACallInfoFields.FILTER, filter);
+        addInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE, exomiserVariantScore);
+        addInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE, exomiserGenePhenoScore);
+        addInfo(call, GACallInfoFields.EXOMISER_GENE_VARIANT_SCORE, exomiserGeneVariantScore);
+        addInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE, exomiserGeneCombinedScore);
+
+        return variant;
+    }
+
+    /**
+     * Read a record written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in the input
+     * @return a new record
+     * @throws IOException if the record can't be read
+     */
+    public static VariantRecord readFrom(DataInput in) throws IOException {
+        VariantRecord record = new VariantRecord();
+        record.referenceName = readString(in);
+        record.start = in.readLong();
+        record.end = in.readLong();
+        record.referenceBases = readString(in);
+        record.alternateBases = readString(in);
+
+        record.gene = readString(in);
+        record.geneEffect = readString(in);
+        record.exacAlleleFrequency = in.readFloat();
+
+        record.callSetId = readString(in);
+        record.allele1 = in.readByte();
+        record.allele2 = in.readByte();
+        record.quality = in.readFloat();
+        record.filter = readString(in);
+        record.exomiserVariantScore = in.readFloat();
+        record.exomiserGenePhenoScore = in.readFloat();
+        record.exomiserGeneVariantScore = in.readFloat();
+        record.exomiserGeneCombinedScore = in.readFloat();
+        return record;
+    }
+
+    /**
+     * Write the record, field by field.
+     *
+     * @param out the output
+     * @throws IOException if the record can't be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeString(out, referenceName);
+        out.writeLong(start);
+        out.writeLong(end);
+        writeString(out, referenceBases);
+        writeString(out, alternateBases);
+
+        writeString(out, gene);
+        writeString(out, geneEffect);
+        out.writeFloat(exacAlleleFrequency);
+
+        writeString(out, callSetId);
+        out.writeByte(allele1);
+        out.writeByte(allele2);
+        out.writeFloat(quality);
+        writeString(out, filter);
+        out.writeFloat(exomiserVariantScore);
+        out.writeFloat(exomiserGenePhenoScore);
+        out.writeFloat(exomiserGeneVariantScore);
+        out.writeFloat(exomiserGeneCombinedScore);
+    }
+
+    // alleles can be longer than writeUTF allows, so strings are written as their length and UTF-8 bytes, -1 for null
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void addInfo(GAVariant variant, String field, String value) {
+        if (value != null) {
+            VariantUtils.addInfo(variant, field, value);
+        }
+    }
+
+    private static void addInfo(GACall call, String field, String value) {
+        if (value != null) {
+            VariantUtils.addInfo(call, field, value);
+        }
+    }
+
+    private static void addInfo(GACall call, String field, float value) {
+        if (!Float.isNaN(value)) {
+            VariantUtils.addInfo(call, field, value);
+        }
+    }
+
+    /**
+     * Get the number of copies of the alt allele in the call.
+     *
+     * @return 0, 1 or 2
+     */
+    public int getCopies() {
+        return (allele1 == 1 ? 1 : 0) + (allele2 == 1 ? 1 : 0);
+    }
+
+    /**
+     * Get the first alternate allele, the one the variant is stored under.
+     *
+     * @return the allele
+     */
+    public String getFirstAlternateBases() {
+        int comma = alternateBases.indexOf(',');
+        return comma < 0 ? alternateBases : alternateBases.substring(0, comma);
+    }
+
+    /**
+     * Get a score as an object, for storage.
+     *
+     * @param value the score
+     * @return the score, or null if it is missing
+     */
+    public static Float boxed(float value) {
+        return Float.isNaN(value) ? null : value;
+    }
+
+    /**
+     * @return the chromosome
+     */
+    public String getReferenceName() {
+        return referenceName;
+    }
+
+    /**
+     * @param referenceName the chromosome
+     */
+    public void setReferenceName(String referenceName) {
+        this.referenceName = referenceName;
+    }
+
+    /**
+     * @return the 0-based start position
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @param start the 0-based start position
+     */
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    /**
+     * @return the 0-based end position, exclusive
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @param end the 0-based end position, exclusive
+     */
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    /**
+     * @return the reference allele
+     */
+    public String getReferenceBases() {
+        return referenceBases;
+    }
+
+    /**
+     * @param referenceBases the reference allele
+     */
+    public void setReferenceBases(String referenceBases) {
+        this.referenceBases = referenceBases;
+    }
+
+    /**
+     * @return the alternate alleles, separated by commas
+     */
+    public String getAlternateBases() {
+        return alternateBases;
+    }
+
+    /**
+     * @param alternateBases the alternate alleles, separated by commas
+     */
+    public void setAlternateBases(String alternateBases) {
+        this.alternateBases = alternateBases;
+    }
+
+    /**
+     * @return the gene the variant falls in
+     */
+    public String getGene() {
+        return gene;
+    }
+
+    /**
+     * @param gene the gene the variant falls in
+     */
+    public void setGene(String gene) {
+        this.gene = gene;
+    }
+
+    /**
+     * @return the functional class of the variant
+     */
+    public String getGeneEffect() {
+        return geneEffect;
+    }
+
+    /**
+     * @param geneEffect the functional class of the variant
+     */
+    public void setGeneEffect(String geneEffect) {
+        this.geneEffect = geneEffect;
+    }
+
+    /**
+     * @return the highest ExAC allele frequency, or NaN
+     */
+    public float getExacAlleleFrequency() {
+        return exacAlleleFrequency;
+    }
+
+    /**
+     * @param exacAlleleFrequency the highest ExAC allele frequency, or NaN
+     */
+    public void setExacAlleleFrequency(float exacAlleleFrequency) {
+        this.exacAlleleFrequency = exacAlleleFrequency;
+    }
+
+    /**
+     * @return the id of the callset the call belongs to, or null if it belongs to the individual the whole input is for
+     */
+    public String getCallSetId() {
+        return callSetId;
+    }
+
+    /**
+     * @param callSetId the id of the callset the call belongs to
+     */
+    public void setCallSetId(String callSetId) {
+        this.callSetId = callSetId;
+    }
+
+    /**
+     * Check whether another record is for the same variant, possibly in another callset.
+     *
+     * @param other the other record
+     * @return true if both records have the same position and alleles
+     */
+    public boolean isSameVariant(VariantRecord other) {
+        return start == other.start
+                && referenceName.equals(other.referenceName)
+                && referenceBases.equals(other.referenceBases)
+                && getFirstAlternateBases().equals(other.getFirstAlternateBases());
+    }
+
+    /**
+     * Check whether another record is for the same variant, with the same call and annotations, so that storing either
+     * gives the same result. Only what is stored is compared: the end and the other alternate alleles are left out,
+     * and the calls only need the same number of copies of the first alternate allele.
+     *
+     * @param other the other record
+     * @return true if the records are the same, but for the callset they belong to
+     */
+    public boolean isSameCall(VariantRecord other) {
+        return isSameVariant(other)
+                && Objects.equals(gene, other.gene)
+                && Objects.equals(geneEffect, other.geneEffect)
+                && Float.compare(exacAlleleFrequency, other.exacAlleleFrequency) == 0
+                && getCopies() == other.getCopies()
+                && Float.compare(quality, other.quality) == 0
+                && Objects.equals(filter, other.filter)
+                && Float.compare(exomiserVariantScore, other.exomiserVariantScore) == 0
+                && Float.compare(exomiserGenePhenoScore, other.exomiserGenePhenoScore) == 0
+                && Float.compare(exomiserGeneVariantScore, other.exomiserGeneVariantScore) == 0
+                && Float.compare(exomiserGeneCombinedScore, other.exomiserGeneCombinedScore) == 0;
+    }
+
+    /**
+     * @return the index of the first allele of the call
+     */
+    public byte getAllele1() {
+        return allele1;
+    }
+
+    /**
+     * @return the index of the second allele of the call
+     */
+    public byte getAllele2() {
+        return allele2;
+    }
+
+    /**
+     * @param allele1 the index of the first allele of the call, 0 for the reference
+     * @param allele2 the index of the second allele of the call
+     */
+    public void setGenotype(byte allele1, byte allele2) {
+        this.allele1 = allele1;
+        this.allele2 = allele2;
+    }
+
+    /**
+     * Set the genotype from a VCF style string, like 0/1 or 1|1. A genotype that isn't split in two alleles, or whose
+     * first allele is missing, is stored as 0/0.
+     *
+     * @param genotype the genotype
+     */
+    public void setGenotype(String genotype) {
+        int split = genotype.indexOf('/');
+        if (split < 0) {
+            split = genotype.indexOf('|');
+        }
+        if (split <= 0 || genotype.charAt(0) == '.') {
+            //TODO: SHOULD NOT BE DOING THIS.
+            setGenotype((byte) 0, (byte) 0);
+            return;
+        }
+        setGenotype(parseAllele(genotype, 0, split), parseAllele(genotype, split + 1, genotype.length()));
+    }
+
+    private static byte parseAllele(String genotype, int start, int end) {
+        int allele = 0;
+        for (int i = start; i < end; i++) {
+            int digit = genotype.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || allele > Byte.MAX_VALUE) {
+                throw new NumberFormatException(String.format("Invalid genotype \"%s\"", genotype));
+            }
+            allele = allele * 10 + digit;
+        }
+        if (start == end || allele > Byte.MAX_VALUE) {
+            throw new NumberFormatException(String.format("Invalid genotype \"%s\"", genotype));
+        }
+        return (byte) allele;
+    }
+
+    /**
+     * @return the call quality, or NaN
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * @param quality the call quality, or NaN
+     */
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * @return the FILTER value of the call
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param filter the FILTER value of the call
+     */
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return the Exomiser variant score, or NaN
+     */
+    public float getExomiserVariantScore() {
+        return exomiserVariantScore;
+    }
+
+    /**
+     * @param exomiserVariantScore the Exomiser variant score, or NaN
+     */
+    public void setExomiserVariantScore(float exomiserVariantScore) {
+        this.exomiserVariantScore = exomiserVariantScore;
+    }
+
+    /**
+     * @return the Exomiser gene phenotype score, or NaN
+     */
+    public float getExomiserGenePhenoScore() {
+        return exomiserGenePhenoScore;
+    }
+
+    /**
+     * @param exomiserGenePhenoScore the Exomiser gene phenotype score, or NaN
+     */
+    public void setExomiserGenePhenoScore(float exomiserGenePhenoScore) {
+        this.exomiserGenePhenoScore = exomiserGenePhenoScore;
+    }
+
+    /**
+     * @return the Exomiser gene variant score, or NaN
+     */
+    public float getExomiserGeneVariantScore() {
+        return exomiserGeneVariantScore;
+    }
+
+    /**
+     * @param exomiserGeneVariantScore the Exomiser gene variant score, or NaN
+     */
+    public void setExomiserGeneVariantScore(float exomiserGeneVariantScore) {
+        this.exomiserGeneVariantScore = exomiserGeneVariantScore;
+    }
+
+    /**
+     * @return the Exomiser gene combined score, or NaN
+     */
+    public float getExomiserGeneCombinedScore() {
+        return exomiserGeneCombinedScore;
+    }
+
+    /**
+     * @param exomiserGeneCombinedScore the Exomiser gene combined score, or NaN
+     */
+    public void setExomiserGeneCombinedScore(float exomiserGeneCombinedScore) {
+        this.exomiserGeneCombinedScore = exomiserGeneCombinedScore;
+    }
+}
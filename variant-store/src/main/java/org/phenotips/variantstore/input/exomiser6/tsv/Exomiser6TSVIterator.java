@@ -18,41 +18,37 @@
 package org.phenotips.variantstore.input.exomiser6.tsv;
 
 import org.phenotips.variantstore.input.AbstractVariantIterator;
+import org.phenotips.variantstore.input.VariantFilter;
 import org.phenotips.variantstore.input.VariantHeader;
-import org.phenotips.variantstore.shared.GACallInfoFields;
-import org.phenotips.variantstore.shared.GAVariantInfoFields;
-import org.phenotips.variantstore.shared.VariantUtils;
+import org.phenotips.variantstore.input.VariantRecord;
+import org.phenotips.variantstore.input.tsv.MappedTSVReader;
 
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.ga4gh.GACall;
 import org.ga4gh.GAVariant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Parse the `*.variants.tsv` files returned by [Exomiser](http://www.sanger.ac.uk/science/tools/exomiser). Expose each
- * line as a ga4gh GAVariant object.
+ * line as a ga4gh GAVariant object, or as a {@link VariantRecord} when the caller doesn't need the GAVariant.
  *
  * @version $Id$
  */
 public class Exomiser6TSVIterator extends AbstractVariantIterator
 {
     private static Exomiser6TSVColumn[] columns = Exomiser6TSVColumn.values();
+    private static final int CHROM = Exomiser6TSVColumn.CHROM.ordinal();
+    private static final int POS = Exomiser6TSVColumn.POS.ordinal();
+    private static final int FILTER = Exomiser6TSVColumn.FILTER.ordinal();
+    private static final int FUNCTIONAL_CLASS = Exomiser6TSVColumn.FUNCTIONAL_CLASS.ordinal();
 
     private Logger logger = LoggerFactory.getLogger(Exomiser6TSVIterator.class);
-    private CSVParser tsvParser;
-    private Iterator<CSVRecord> tsvRecordIterator;
+    private MappedTSVReader reader;
+    private boolean hasNext;
 
     /**
      * Create a new TSV iterator for files output by Exomiser.
@@ -61,168 +57,188 @@ public class Exomiser6TSVIterator extends AbstractVariantIterator
      * @param variantHeader the header with file meta-information
      */
     public Exomiser6TSVIterator(Path path, VariantHeader variantHeader) {
-        super(path, variantHeader);
+        this(path, variantHeader, new VariantFilter());
+    }
+
+    /**
+     * Create a new TSV iterator for files output by Exomiser, that skips the rows the filter doesn't accept without
+     * building any variants for them.
+     *
+     * @param path          the path to the file
+     * @param variantHeader the header with file meta-information
+     * @param filter        the rows to keep
+     */
+    public Exomiser6TSVIterator(Path path, VariantHeader variantHeader, VariantFilter filter) {
+        super(path, variantHeader, filter);
 
-        Reader reader = null;
         try {
-            reader = new FileReader(this.path.toString());
-            this.tsvParser = CSVFormat.TDF.parse(reader);
+            this.reader = MappedTSVReader.open(this.path);
+            // skip first row >.>
+            this.reader.nextLine();
+            this.hasNext = advance();
         } catch (IOException e) {
             logger.error(String.format("Error when opening file %s, this should NOT be happening", this.path), e);
         }
-
-        this.tsvRecordIterator = tsvParser.iterator();
-        // skip first row >.>
-        if (this.hasNext()) {
-            tsvRecordIterator.next();
-        }
     }
 
     @Override
     public boolean hasNext() {
-        return this.tsvRecordIterator.hasNext();
+        return this.hasNext;
     }
 
     @Override
     public GAVariant next() {
+        return nextRecord().toGAVariant();
+    }
+
+    @Override
+    public VariantRecord nextRecord() {
         if (!this.hasNext()) {
             throw new NoSuchElementException();
         }
 
-        GAVariant variant = new GAVariant();
-        GACall call = new GACall();
-
-        variant.setCalls(Collections.singletonList(call));
-
-        double exacFreq = 0;
-
-        int i = 0;
-        for (String field : tsvRecordIterator.next()) {
-            // try to add the field different ways, see what sticks.
-            addFieldToVariant(variant, field, i);
-            addFieldToVariantInfo(variant, field, i);
+        VariantRecord record = new VariantRecord();
 
-            addGenotypeToVariant(call, field, i);
-            addFieldToCallInfo(call, field, i);
-
-            exacFreq = getMaxExacFreqFromField(exacFreq, field, i);
-
-            i++;
+        // only the columns we use are ever turned into strings or numbers
+        for (int i = 0; i < reader.getFieldCount() && i < columns.length; i++) {
+            addFieldToRecord(record, i);
         }
 
+        double exacFreq = getMaxExacFreq();
+
         if (exacFreq != 0) {
-            VariantUtils.addInfo(variant,
-                    GAVariantInfoFields.EXAC_AF, String.valueOf(exacFreq));
+            record.setExacAlleleFrequency((float) exacFreq);
         }
 
-        variant.setEnd(variant.getStart() + variant.getReferenceBases().length());
+        record.setEnd(record.getStart() + record.getReferenceBases().length());
+
+        try {
+            this.hasNext = advance();
+        } catch (IOException e) {
+            logger.error(String.format("Error when reading file %s", this.path), e);
+            this.hasNext = false;
+        }
 
         if (!this.hasNext()) {
             // Cleanup
             try {
-                tsvParser.close();
+                reader.close();
             } catch (IOException e) {
                 logger.error(String.format("Error when closing file %s", this.path), e);
             }
         }
 
-        return variant;
+        return record;
+    }
+
+    /**
+     * Move on to the next row that the filter accepts.
+     *
+     * @return false if there are no more rows
+     * @throws IOException if the file can't be read
+     */
+    private boolean advance() throws IOException {
+        while (reader.nextLine()) {
+            if (accepts()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void addFieldToVariant(GAVariant variant, String field, int i) {
+    /**
+     * Check the raw fields of the current row against the filter.
+     *
+     * @return true if the row should be turned into a variant
+     */
+    private boolean accepts() {
+        if (filter.hasRegion()) {
+            // GA4GH uses 0-based indexing, unlike VCF's 1-based.
+            if (!fieldEquals(CHROM, filter.getRegionName()) || POS >= reader.getFieldCount()
+                    || !filter.acceptsStart(reader.getLong(POS) - 1)) {
+                return false;
+            }
+        }
+
+        if (filter.isPassOnly() && !fieldEquals(FILTER, VariantFilter.PASS)) {
+            return false;
+        }
+
+        Set<String> functionalClasses = filter.getFunctionalClasses();
+        if (functionalClasses != null && FUNCTIONAL_CLASS < reader.getFieldCount()) {
+            boolean accepted = false;
+            for (String functionalClass : functionalClasses) {
+                if (reader.fieldEquals(FUNCTIONAL_CLASS, functionalClass)) {
+                    accepted = true;
+                    break;
+                }
+            }
+            if (!accepted) {
+                return false;
+            }
+        }
+
+        return !filter.hasMaxFrequency() || filter.acceptsFrequency(getMaxExacFreq());
+    }
+
+    private boolean fieldEquals(int i, String value) {
+        return i < reader.getFieldCount() && reader.fieldEquals(i, value);
+    }
+
+    private void addFieldToRecord(VariantRecord record, int i) {
         switch (columns[i]) {
             case CHROM:
-                variant.setReferenceName(field);
+                record.setReferenceName(reader.getCachedString(i));
                 break;
             case POS:
                 // GA4GH uses 0-based indexing, unlike VCF's 1-based.
-                variant.setStart(Long.valueOf(field) - 1);
+                record.setStart(reader.getLong(i) - 1);
                 break;
             case REF:
-                variant.setReferenceBases(field);
+                record.setReferenceBases(reader.getString(i));
                 break;
             case ALT:
-                variant.setAlternateBases(Arrays.asList(field.split(",")));
+                record.setAlternateBases(reader.getString(i));
                 break;
-            default:
-        }
-    }
-
-    private void addFieldToVariantInfo(GAVariant variant, String field, int i) {
-        switch (columns[i]) {
             case EXOMISER_GENE:
-                VariantUtils.addInfo(variant, GAVariantInfoFields.GENE, field);
+                record.setGene(reader.getCachedString(i));
                 break;
             case FUNCTIONAL_CLASS:
-                VariantUtils.addInfo(variant, GAVariantInfoFields.GENE_EFFECT, field);
+                record.setGeneEffect(reader.getCachedString(i));
                 break;
-            default:
-        }
-    }
-
-
-    private void addGenotypeToVariant(GACall call, String field, int i) {
-        switch (columns[i]) {
             case GENOTYPE:
-                String splitter = "/";
-                String phasedSplitter = "|";
-                if (!field.contains(splitter)) {
-                    if (field.contains(phasedSplitter)) {
-                        // phased
-                        splitter = phasedSplitter;
-                    } else {
-                        //TODO: SHOULD NOT BE DOING THIS.
-                        call.setGenotype(Arrays.asList(0, 0));
-                        break;
-                    }
-                }
-                String[] split = field.split(splitter);
-
-                if (".".equals(split[0])) {
-                    //TODO: SHOULD NOT BE DOING THIS.
-                    call.setGenotype(Arrays.asList(0, 0));
-                    break;
-                }
-
-                call.setGenotype(Arrays.asList(Integer.valueOf(split[0]), Integer.valueOf(split[1])));
+                record.setGenotype(reader.getCachedString(i));
                 break;
-            default:
-        }
-    }
-
-
-    private void addFieldToCallInfo(GACall call, String field, int i) {
-        switch (columns[i]) {
             case QUAL:
-                VariantUtils.addInfo(call, GACallInfoFields.QUALITY, field);
+                record.setQuality(getFloat(i));
                 break;
             case FILTER:
-                VariantUtils.addInfo(call, GACallInfoFields.FILTER, field);
+                record.setFilter(reader.getCachedString(i));
                 break;
             case EXOMISER_VARIANT_SCORE:
-                VariantUtils.addInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE, field);
+                record.setExomiserVariantScore(getFloat(i));
                 break;
             case EXOMISER_GENE_PHENO_SCORE:
-                VariantUtils.addInfo(call, GACallInfoFields.EXOMISER_GENE_PHENO_SCORE, field);
+                record.setExomiserGenePhenoScore(getFloat(i));
                 break;
             case EXOMISER_GENE_COMBINED_SCORE:
-                VariantUtils.addInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE, field);
+                record.setExomiserGeneCombinedScore(getFloat(i));
                 break;
             case EXOMISER_GENE_VARIANT_SCORE:
-                VariantUtils.addInfo(call, GACallInfoFields.EXOMISER_GENE_VARIANT_SCORE, field);
+                record.setExomiserGeneVariantScore(getFloat(i));
                 break;
             default:
         }
     }
 
-    private double getMaxExacFreqFromField(double exacFreq, String field, int i) {
-        switch (columns[i]) {
-            case MAX_FREQUENCY:
-                if (!".".equals(field)) {
-                    return Math.max(exacFreq, Double.parseDouble(field));
-                }
-                break;
-            default:
+    private float getFloat(int i) {
+        return reader.isMissing(i) ? Float.NaN : (float) reader.getDouble(i);
+    }
+
+    private double getMaxExacFreq() {
+        int i = Exomiser6TSVColumn.MAX_FREQUENCY.ordinal();
+        if (i < reader.getFieldCount() && !reader.isMissing(i)) {
+            return reader.getDouble(i);
         }
         return 0;
     }
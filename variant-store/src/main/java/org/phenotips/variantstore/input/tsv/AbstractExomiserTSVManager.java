@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input.tsv;
+
+import org.phenotips.variantstore.input.BlockCompression;
+import org.phenotips.variantstore.input.ContentDigests;
+import org.phenotips.variantstore.input.FileAdopter;
+import org.phenotips.variantstore.input.InputException;
+import org.phenotips.variantstore.input.InputManager;
+import org.phenotips.variantstore.input.VariantFilter;
+import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.VariantIterator;
+import org.phenotips.variantstore.shared.VariantStoreException;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manage the TSV files of some version of Exomiser that we store. Files are kept gzip compressed, and streamed through
+ * the decompressor when they are read. They aren't indexed, since Exomiser sorts its rows by score rather than by
+ * position. The versions only differ in how their files are read, which is left to the subclasses.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractExomiserTSVManager implements InputManager
+{
+    private static String suffix = ".variants.tsv";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private Path path;
+    private FileAdopter adopter = new FileAdopter();
+    private ContentDigests digests;
+
+    @Override
+    public void init(Path path) throws VariantStoreException {
+        this.path = path;
+        this.digests = new ContentDigests(path);
+
+        if (!Files.exists(this.path)) {
+            logger.info("No TSV directory found, Creating it.");
+            try {
+                Files.createDirectories(this.path);
+            } catch (IOException e) {
+                throw new InputException("Unable to create directory.");
+            }
+        }
+
+    }
+
+    @Override
+    public void stop() {
+        adopter.stop();
+    }
+
+    @Override
+    public void setMoveAllowed(boolean moveAllowed) {
+        adopter.setMoveAllowed(moveAllowed);
+    }
+
+    @Override
+    public boolean addIndividual(String id, Path path) throws InputException {
+        try {
+            String digest = ContentDigests.digest(path);
+            if (digest.equals(digests.get(id)) && Files.exists(adopter.resolve(this.getIndividual(id)))) {
+                logger.debug(String.format("The TSV of %s is unchanged", id));
+                return false;
+            }
+            digests.remove(id);
+
+            // any earlier file of the individual's, stored before files were compressed
+            Files.deleteIfExists(this.getUncompressed(id));
+            Path target = this.getCompressed(id);
+            FileAdopter.Method method;
+            if (BlockCompression.isGzip(path)) {
+                method = adopter.adopt(path, target);
+            } else {
+                method = adopter.convert(path, target, BlockCompression.COMPRESS);
+            }
+            logger.debug(String.format("Stored TSV of %s by %s", id, method));
+            digests.put(id, digest);
+        } catch (IOException e) {
+            throw new InputException("Error copying TSV for storage.", e);
+        }
+        return true;
+    }
+
+    /**
+     * Exomiser TSV files hold a single individual, so only one sample can be given.
+     *
+     * @param samples a single sample, mapped to the id of the individual
+     * @param path    the path to the file
+     * @return false if the individual's stored file already had the same content
+     * @throws InputException if there is more than one sample, or the file can't be stored
+     */
+    @Override
+    public boolean addIndividuals(Map<String, String> samples, Path path) throws InputException {
+        return addIndividual(getOnlyIndividual(samples), path);
+    }
+
+    @Override
+    public Future<?> getPendingCopy(String id) {
+        return adopter.getPending(this.getCompressed(id));
+    }
+
+    /**
+     * Get the path to the individual's data file. Files are stored compressed, but files stored before that are still
+     * read as they are.
+     *
+     * @param id the id of the individual
+     * @return a path to the file.
+     */
+    @Override
+    public Path getIndividual(String id) {
+        Path uncompressed = this.getUncompressed(id);
+        return Files.exists(uncompressed) ? uncompressed : this.getCompressed(id);
+    }
+
+    private Path getUncompressed(String id) {
+        return this.path.resolve(id + suffix);
+    }
+
+    private Path getCompressed(String id) {
+        return this.path.resolve(id + suffix + BlockCompression.EXTENSION);
+    }
+
+    @Override
+    public void removeIndividual(String id) throws InputException {
+        try {
+            adopter.await(this.getCompressed(id));
+            digests.remove(id);
+            Files.delete(this.getIndividual(id));
+        } catch (IOException e) {
+            throw new InputException("Error removing TSV", e);
+        }
+    }
+
+    /**
+     * Given an individual, get the {@link VariantIterator}.
+     *
+     * @param id       individual id
+     * @param isPublic permission to use variants in aggregate results
+     *
+     * @return a variant iterator
+     */
+    @Override
+    public VariantIterator getIteratorForIndividual(String id, boolean isPublic) {
+        return getIteratorForIndividual(id, isPublic, new VariantFilter());
+    }
+
+    @Override
+    public VariantIterator getIteratorForIndividual(String id, boolean isPublic, VariantFilter filter) {
+        return newIterator(adopter.resolve(this.getIndividual(id)), new VariantHeader(id, isPublic), filter);
+    }
+
+    /**
+     * Create an iterator over a file of the version of Exomiser this manager is for.
+     *
+     * @param file   the file to read, stored or still being copied in
+     * @param header the header of the file
+     * @param filter the variants to keep
+     * @return the variant iterator
+     */
+    protected abstract VariantIterator newIterator(Path file, VariantHeader header, VariantFilter filter);
+
+    @Override
+    public VariantIterator getIteratorForIndividuals(Map<String, String> samples, boolean isPublic,
+                                                     VariantFilter filter) throws InputException {
+        return getIteratorForIndividual(getOnlyIndividual(samples), isPublic, filter);
+    }
+
+    private String getOnlyIndividual(Map<String, String> samples) throws InputException {
+        if (samples.size() != 1) {
+            throw new InputException("Exomiser TSV files hold a single individual.");
+        }
+        return samples.values().iterator().next();
+    }
+
+    /**
+     * Given an individual, get the Variant Iterator. The individual is assumed to be private.
+     *
+     * @param id the id of the individual
+     *
+     * @return the variant iterator
+     */
+    @Override
+    public VariantIterator getIteratorForIndividual(String id) {
+        return getIteratorForIndividual(id, false);
+    }
+
+    @Override
+    public List<String> getAllIndividuals() {
+        final List<String> list = new ArrayList<>();
+        // taken first: a copy that finishes during the walk may be missed by it, but not by both
+        List<Path> pending = adopter.getPendingTargets();
+
+        try {
+            Files.walkFileTree(this.path, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String filename = StringUtils.removeEnd(file.getFileName().toString(), BlockCompression.EXTENSION);
+                    if (attrs.isDirectory() || FileAdopter.isPartial(file) || !filename.endsWith(suffix)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String id = StringUtils.removeEnd(filename, suffix);
+                    list.add(id);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Error getting all individuals", e);
+        }
+        // still being copied in, but already readable
+        for (Path file : pending) {
+            String filename = StringUtils.removeEnd(file.getFileName().toString(), BlockCompression.EXTENSION);
+            String id = StringUtils.removeEnd(filename, suffix);
+            if (!list.contains(id)) {
+                list.add(id);
+            }
+        }
+
+        return list;
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input.tsv;
+
+import org.phenotips.variantstore.input.BlockCompression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A reader for tab separated files, that scans the bytes of a memory mapped file directly. The fields of the current
+ * line are only located, not copied: a field becomes a String or a number only when it is asked for, and numbers are
+ * parsed straight from the bytes.
+ *
+ * Compressed files can't be mapped, so they are decompressed as a stream into a buffer instead, and scanned the same
+ * way.
+ *
+ * Fields are not unquoted, and surrounding spaces are trimmed. Empty lines are skipped.
+ *
+ * @version $Id$
+ */
+public class MappedTSVReader implements Closeable
+{
+    /**
+     * The largest part of the file mapped at once.
+     */
+    static final int DEFAULT_REGION_SIZE = 1 << 28;
+
+    /**
+     * The size a buffer for a stream starts at.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+
+    // the number of strings kept by getCachedString, a power of two
+    private static final int CACHE_SIZE = 1 << 14;
+
+    private static final byte TAB = '\t';
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private static final byte SPACE = ' ';
+    private static final byte MISSING = '.';
+
+    // doubles can hold every power of ten up to 10^22 exactly
+    private static final double[] POWERS_OF_TEN = new double[23];
+    // mantissas up to 2^53 are exact in a double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // the mapped file, or the stream of a file that can't be mapped
+    private final FileChannel channel;
+    private final InputStream stream;
+    private final long size;
+    private final int regionSize;
+    private boolean streamEnded;
+
+    private ByteBuffer buffer;
+    // where the mapped region starts in the file
+    private long regionStart;
+    // where the next line starts in the mapped region
+    private int position;
+
+    private int fieldCount;
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+
+    private byte[] scratch = new byte[256];
+    private String[] cache = new String[CACHE_SIZE];
+
+    /**
+     * Open a file for reading.
+     *
+     * @param path the file
+     * @throws IOException if the file can't be opened or mapped
+     */
+    public MappedTSVReader(Path path) throws IOException {
+        this(path, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * Open a file for reading, mapping at most regionSize bytes at a time.
+     *
+     * @param path       the file
+     * @param regionSize the largest part of the file mapped at once, must be longer than the longest line
+     * @throws IOException if the file can't be opened or mapped
+     */
+    MappedTSVReader(Path path, int regionSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.stream = null;
+        this.size = channel.size();
+        this.regionSize = regionSize;
+        map(0);
+    }
+
+    /**
+     * Open a file for reading, decompressing it on the fly if it is gzip or block gzip compressed, and mapping it
+     * otherwise.
+     *
+     * @param path the file
+     * @return the reader
+     * @throws IOException if the file can't be opened
+     */
+    public static MappedTSVReader open(Path path) throws IOException {
+        if (!BlockCompression.isGzip(path)) {
+            return new MappedTSVReader(path);
+        }
+        return new MappedTSVReader(BlockCompression.openDecompressed(path), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Read a stream, e.g. of a decompressed file, through a buffer that starts at bufferSize bytes and grows to fit
+     * the longest line.
+     *
+     * @param stream     the stream, which is closed along with the reader
+     * @param bufferSize the size the buffer starts at
+     * @throws IOException if the stream can't be read
+     */
+    public MappedTSVReader(InputStream stream, int bufferSize) throws IOException {
+        this.channel = null;
+        this.stream = stream;
+        this.size = -1;
+        this.regionSize = bufferSize;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.limit(0);
+        map(0);
+    }
+
+    /**
+     * Move the region to start at the given offset in the file.
+     *
+     * @param start the offset, at or after the start of the current region
+     * @throws IOException if the file can't be mapped or read
+     */
+    private void map(long start) throws IOException {
+        if (stream == null) {
+            regionStart = start;
+            position = 0;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+            return;
+        }
+
+        // keep what is left of the current region, and fill up the rest of the buffer
+        buffer.position((int) (start - regionStart));
+        buffer.compact();
+        byte[] array = buffer.array();
+        while (buffer.hasRemaining() && !streamEnded) {
+            int read = stream.read(array, buffer.position(), buffer.remaining());
+            if (read < 0) {
+                streamEnded = true;
+            } else {
+                buffer.position(buffer.position() + read);
+            }
+        }
+        buffer.flip();
+        regionStart = start;
+        position = 0;
+    }
+
+    private void grow() {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.position(0);
+        bigger.put(buffer);
+        bigger.flip();
+        buffer = bigger;
+    }
+
+    /**
+     * @return whether the mapped region reaches the end of the file
+     */
+    private boolean isLastRegion() {
+        if (stream == null) {
+            return regionStart + buffer.limit() >= size;
+        }
+        return streamEnded;
+    }
+
+    /**
+     * Move on to the next line that isn't empty.
+     *
+     * @return false if the end of the file was reached
+     * @throws IOException if the next part of the file can't be mapped, or a line is longer than the mapped region
+     */
+    public boolean nextLine() throws IOException {
+        while (true) {
+            if (position >= buffer.limit()) {
+                if (isLastRegion()) {
+                    fieldCount = 0;
+                    return false;
+                }
+                map(regionStart + position);
+            }
+
+            int end = findLineEnd();
+            if (end < 0) {
+                // the line runs past the mapped region
+                if (position == 0) {
+                    if (stream == null) {
+                        throw new IOException(String.format("Line at offset %d is longer than %d bytes", regionStart,
+                                regionSize));
+                    }
+                    grow();
+                }
+                map(regionStart + position);
+                continue;
+            }
+
+            int start = position;
+            position = end + 1;
+            if (end > start && buffer.get(end - 1) == CARRIAGE_RETURN) {
+                end--;
+            }
+            if (end > start) {
+                splitFields(start, end);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Find the end of the line starting at the current position.
+     *
+     * @return the position of the newline, the end of the file, or -1 if neither is in the mapped region
+     */
+    private int findLineEnd() {
+        int limit = buffer.limit();
+        for (int i = position; i < limit; i++) {
+            if (buffer.get(i) == NEWLINE) {
+                return i;
+            }
+        }
+        return isLastRegion() ? limit : -1;
+    }
+
+    private void splitFields(int start, int end) {
+        fieldCount = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buffer.get(i) == TAB) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+        }
+        int s = start;
+        int e = end;
+        while (s < e && buffer.get(s) == SPACE) {
+            s++;
+        }
+        while (e > s && buffer.get(e - 1) == SPACE) {
+            e--;
+        }
+        starts[fieldCount] = s;
+        ends[fieldCount] = e;
+        fieldCount++;
+    }
+
+    /**
+     * @return the number of fields on the current line
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Check whether a field holds the "." that stands for a missing value.
+     *
+     * @param field the index of the field
+     * @return true if the field is "."
+     */
+    public boolean isMissing(int field) {
+        return ends[field] - starts[field] == 1 && buffer.get(starts[field]) == MISSING;
+    }
+
+    /**
+     * Compare a field to an ASCII string, without turning the field into a String.
+     *
+     * @param field the index of the field
+     * @param value the ASCII string
+     * @return true if the field holds exactly the given string
+     */
+    public boolean fieldEquals(int field, String value) {
+        int start = starts[field];
+        int length = ends[field] - start;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a field as a String, reusing the String returned for an earlier field with the same content when possible.
+     * Meant for columns with few distinct values, like genes or chromosomes: a new String is only created when the
+     * cache doesn't already hold one.
+     *
+     * @param field the index of the field
+     * @return the field
+     */
+    public String getCachedString(int field) {
+        int hash = 0;
+        for (int i = starts[field]; i < ends[field]; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (cache.length - 1);
+
+        String cached = cache[slot];
+        if (cached != null && fieldEquals(field, cached)) {
+            return cached;
+        }
+        cached = getString(field);
+        cache[slot] = cached;
+        return cached;
+    }
+
+    /**
+     * Get a field as a String.
+     *
+     * @param field the index of the field
+     * @return the field
+     */
+    public String getString(int field) {
+        int start = starts[field];
+        int length = ends[field] - start;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a field as a whole number.
+     *
+     * @param field the index of the field
+     * @return the number
+     * @throws NumberFormatException if the field isn't a whole number
+     */
+    public long getLong(int field) {
+        int i = starts[field];
+        int end = ends[field];
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            // empty, or might overflow
+            return Long.parseLong(getString(field));
+        }
+
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(String.format("For input string: \"%s\"", getString(field)));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a field as a decimal number. Plain decimals, with an optional exponent, are parsed without creating any
+     * objects; anything else is left to {@link Double#parseDouble(String)}.
+     *
+     * @param field the index of the field
+     * @return the number
+     * @throws NumberFormatException if the field isn't a number
+     */
+    public double getDouble(int field) {
+        int i = starts[field];
+        int end = ends[field];
+
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    return slowDouble(field);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenPoint) {
+                    exponent--;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if ((b == 'e' || b == 'E') && digits > 0) {
+                break;
+            } else {
+                return slowDouble(field);
+            }
+        }
+        if (digits == 0) {
+            return slowDouble(field);
+        }
+
+        if (i < end) {
+            // exponent
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            if (i == end || end - i > 3) {
+                return slowDouble(field);
+            }
+            int e = 0;
+            for (; i < end; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return slowDouble(field);
+                }
+                e = e * 10 + digit;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (exponent < -(POWERS_OF_TEN.length - 1) || exponent > POWERS_OF_TEN.length - 1) {
+            return slowDouble(field);
+        }
+        // both operands are exact, so the result is correctly rounded
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private double slowDouble(int field) {
+        return Double.parseDouble(getString(field));
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        if (stream == null) {
+            channel.close();
+        } else {
+            stream.close();
+        }
+    }
+}
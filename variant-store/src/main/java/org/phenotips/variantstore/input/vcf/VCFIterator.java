@@ -18,24 +18,40 @@
 package org.phenotips.variantstore.input.vcf;
 
 import org.phenotips.variantstore.input.AbstractVariantIterator;
+import org.phenotips.variantstore.input.VariantFilter;
 import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.VariantIterator;
+import org.phenotips.variantstore.input.VariantRecord;
 import org.phenotips.variantstore.shared.GACallInfoFields;
 import org.phenotips.variantstore.shared.GAVariantInfoFields;
 import org.phenotips.variantstore.shared.VariantUtils;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 
+import org.apache.commons.lang3.StringUtils;
 import org.ga4gh.GACall;
 import org.ga4gh.GAVariant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.tribble.TribbleException;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.CommonInfo;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.VariantContext;
@@ -48,11 +64,23 @@
  */
 public class VCFIterator extends AbstractVariantIterator
 {
-    private final VCFFileReader reader;
-    private final CloseableIterator<VariantContext> iterator;
-    private Map<String, List<String>> filter;
-    private VariantContext nextRow;
+    // the largest position a tabix index covers
+    private static final long MAX_POSITION = 1L << 29;
+
+    private static Logger logger = LoggerFactory.getLogger(VCFIterator.class);
+
+    private final Path index;
+    private VCFFileReader reader;
+    private CloseableIterator<VariantContext> iterator;
+    // parts of a split file are only opened once they are read
+    private boolean opened;
+    private Map<String, List<String>> infoFilter;
+    private Map<String, String> samples;
+    // the row being split into one variant per alt allele
+    private VariantContext row;
     private int altIndex;
+    private GAVariant nextVariant;
+    private Queue<VariantRecord> pendingRecords = new ArrayDeque<>();
 
     /**
      * Create a new Variant Iterator for a VCF file.
@@ -86,6 +114,17 @@ public VCFIterator(Path path, VariantHeader header, Map<String, List<String>> fi
         this(path, null, header, filter);
     }
 
+    /**
+     * Create a new Variant Iterator for a VCF file, that skips the rows the filter doesn't accept.
+     *
+     * @param path   the vcf file
+     * @param header vcf meta info
+     * @param filter the rows to keep
+     */
+    public VCFIterator(Path path, VariantHeader header, VariantFilter filter) {
+        this(path, null, header, null, filter);
+    }
+
     /**
      * Set a filter for the Info fields. Any VCF row with info fields that match this filter will be skipped.
      *
@@ -95,86 +134,260 @@ public VCFIterator(Path path, VariantHeader header, Map<String, List<String>> fi
      * @param filter A Map of Info field -> List of values to exclude
      */
     public VCFIterator(Path path, Path index, VariantHeader header, Map<String, List<String>> filter) {
-        super(path, header);
+        this(path, index, header, filter, new VariantFilter());
+    }
+
+    /**
+     * Set a filter for the Info fields, and the criteria rows must meet. Any VCF row with info fields that match the
+     * info filter, or that the variant filter doesn't accept, will be skipped.
+     *
+     * @param path          the vcf file
+     * @param index         the index file
+     * @param header        vcf meta info
+     * @param infoFilter    A Map of Info field -> List of values to exclude
+     * @param variantFilter the rows to keep
+     */
+    public VCFIterator(Path path, Path index, VariantHeader header, Map<String, List<String>> infoFilter,
+                       VariantFilter variantFilter) {
+        super(path, header, variantFilter);
+
+        this.index = index;
+        this.infoFilter = infoFilter;
+        this.samples = header.getSamples();
+        this.open();
+    }
+
+    /**
+     * Create an iterator over a region of a file that is being split, which isn't opened until it is read.
+     *
+     * @param parent the iterator over the whole file
+     * @param region the filter of the whole file, restricted to the region
+     */
+    private VCFIterator(VCFIterator parent, VariantFilter region) {
+        super(parent.path, parent.header, region);
+
+        this.index = parent.index;
+        this.infoFilter = parent.infoFilter;
+        this.samples = parent.samples;
+    }
 
-        this.filter = filter;
+    private void open() {
+        this.opened = true;
         if (index == null) {
             this.reader = new VCFFileReader(path.toFile(), false);
         } else {
             this.reader = new VCFFileReader(path.toFile(), index.toFile());
         }
 
-        this.iterator = this.reader.iterator();
-        this.nextRow = this.nextFiltered();
+        if (filter.hasRegion() && isIndexed(path, index)) {
+            // only read the blocks that cover the region; VCF positions are 1-based and inclusive
+            this.iterator = this.reader.query(filter.getRegionName(), (int) filter.getRegionStart() + 1,
+                    (int) filter.getRegionEnd());
+        } else {
+            this.iterator = this.reader.iterator();
+        }
+        this.row = this.nextFiltered();
+        this.nextVariant = this.advance();
+    }
+
+    /**
+     * Check whether a VCF can be queried by region: either an index was given, or a block compressed file has a tabix
+     * index next to it, which htsjdk picks up on its own.
+     *
+     * @param path  the vcf file
+     * @param index the index given, or null
+     * @return true if the file has an index
+     */
+    private static boolean isIndexed(Path path, Path index) {
+        if (index != null) {
+            return true;
+        }
+        String name = path.getFileName().toString();
+        return name.endsWith(".gz") && Files.exists(path.resolveSibling(name + TabixUtils.STANDARD_INDEX_EXTENSION));
+    }
+
+    /**
+     * Split an indexed file into one part per chromosome, or per stretch of {@code regionSize} bases of the
+     * chromosomes whose length the header gives. The chromosomes are taken from the index, so that those without any
+     * rows aren't read at all. A file without an index, or that is already read by region, isn't split.
+     *
+     * @param regionSize the number of bases in a part, or 0 for a part per chromosome
+     * @return the parts
+     */
+    @Override
+    public List<VariantIterator> split(long regionSize) {
+        if (filter.hasRegion() || !isIndexed(path, index) || !hasNext()) {
+            return super.split(regionSize);
+        }
+
+        List<String> contigs;
+        Path indexFile = index == null
+                ? path.resolveSibling(path.getFileName() + TabixUtils.STANDARD_INDEX_EXTENSION) : index;
+        try {
+            contigs = IndexFactory.loadIndex(indexFile.toString()).getSequenceNames();
+        } catch (TribbleException e) {
+            logger.warn(String.format("Could not read the index of %s, it will be read in one piece", path), e);
+            return super.split(regionSize);
+        }
+        SAMSequenceDictionary dictionary = reader.getFileHeader().getSequenceDictionary();
+
+        List<VariantIterator> parts = new ArrayList<>();
+        for (String contig : contigs) {
+            SAMSequenceRecord sequence = dictionary == null ? null : dictionary.getSequence(contig);
+            long length = regionSize <= 0 || sequence == null ? 0 : sequence.getSequenceLength();
+            long start = 0;
+            // rows past the length the header gives still go in the last part
+            for (; start + regionSize < length; start += regionSize) {
+                parts.add(forRegion(contig, start, start + regionSize));
+            }
+            parts.add(forRegion(contig, start, MAX_POSITION));
+        }
+        close();
+        return parts;
+    }
+
+    private VCFIterator forRegion(String contig, long start, long end) {
+        VariantFilter region = new VariantFilter(filter);
+        region.setRegion(contig, start, end);
+        return new VCFIterator(this, region);
+    }
+
+    private void close() {
+        iterator.close();
+        reader.close();
+        row = null;
+        nextVariant = null;
+        pendingRecords.clear();
     }
 
     @Override
     public boolean hasNext() {
-        return nextRow != null;
+        if (!opened) {
+            open();
+        }
+        return nextVariant != null || !pendingRecords.isEmpty();
     }
 
     @Override
     public GAVariant next() {
-        if (!hasNext()) {
+        if (!opened) {
+            open();
+        }
+        if (nextVariant == null) {
             throw new NoSuchElementException();
         }
 
-        GAVariant variant = new GAVariant();
+        GAVariant variant = nextVariant;
+        nextVariant = advance();
+        return variant;
+    }
 
-        VariantContext context = nextRow;
+    /**
+     * Get the next call as a record. When the file is read by sample, every call of a variant becomes its own record,
+     * tagged with its individual's id; otherwise only the first call is kept. Calls to this method and to
+     * {@link #next()} shouldn't be mixed.
+     *
+     * @return the next record
+     */
+    @Override
+    public VariantRecord nextRecord() {
+        if (samples == null) {
+            return VariantRecord.fromGAVariant(next());
+        }
+        if (pendingRecords.isEmpty()) {
+            GAVariant variant = next();
+            for (GACall call : variant.getCalls()) {
+                pendingRecords.add(VariantRecord.fromGAVariant(variant, call));
+            }
+        }
+        return pendingRecords.poll();
+    }
+
+    /**
+     * Build the variant for the next alt allele, moving on to the next row when the current one is done. When the file
+     * is read by sample, variants that none of the samples carry are skipped.
+     *
+     * @return the variant, or null if there are none left
+     */
+    private GAVariant advance() {
+        while (row != null) {
+            GAVariant variant = null;
+            if (altIndex < row.getAlternateAlleles().size()) {
+                variant = buildVariant(row, row.getAlternateAllele(altIndex));
+                altIndex++;
+            }
+            if (altIndex >= row.getAlternateAlleles().size()) {
+                row = nextFiltered();
+                altIndex = 0;
+            }
+
+            if (variant != null && (samples == null || !variant.getCalls().isEmpty())) {
+                return variant;
+            }
+        }
+
+        close();
+        return null;
+    }
+
+    private GAVariant buildVariant(VariantContext context, Allele alt) {
+        GAVariant variant = new GAVariant();
 
         Map<String, List<String>> info = new HashMap<>();
 
         variant.setReferenceName(context.getChr());
-        variant.setStart((long) context.getStart());
+        // GA4GH uses 0-based indexing, unlike VCF's 1-based.
+        variant.setStart((long) context.getStart() - 1);
         variant.setEnd((long) context.getEnd());
         variant.setReferenceBases(context.getReference().getBaseString());
 
-
         // ALT
-        List<String> alts = Collections.singletonList(context.getAlleles().get(altIndex).getBaseString());
-        variant.setAlternateBases(alts);
+        variant.setAlternateBases(Collections.singletonList(alt.getBaseString()));
 
         // INFO
+        variant.setInfo(info);
         String alleleFrequency = (String) context.getAttribute("AF");
         if (alleleFrequency != null) {
             // handling ExAC VCF file
             VariantUtils.addInfo(variant, GAVariantInfoFields.EXAC_AF, alleleFrequency);
         }
 
-        variant.setInfo(info);
-
         // Calls
         List<GACall> calls = new ArrayList<>();
-        for (Genotype genotype : context.getGenotypes()) {
-            GACall call = new GACall();
-
-            // genotype
-            call.setGenotype(new ArrayList<Integer>());
-            int count = genotype.countAllele(context.getAlleles().get(altIndex));
-            // if 2: (1,1), if 1: (0, 1), if 0: (0, 0)
-            call.setGenotype(Arrays.asList(count / 2, count % 2));
+        if (samples == null) {
+            for (Genotype genotype : context.getGenotypes()) {
+                calls.add(buildCall(context, genotype, alt));
+            }
+        } else {
+            for (Map.Entry<String, String> sample : samples.entrySet()) {
+                Genotype genotype = context.getGenotype(sample.getKey());
+                // only keep the samples that carry the allele
+                if (genotype == null || genotype.countAllele(alt) == 0) {
+                    continue;
+                }
+                GACall call = buildCall(context, genotype, alt);
+                call.setCallSetId(sample.getValue());
+                call.setCallSetName(sample.getKey());
+                calls.add(call);
+            }
+        }
+        variant.setCalls(calls);
 
-            VariantUtils.addInfo(call, GACallInfoFields.QUALITY, String.valueOf(context.getPhredScaledQual()));
-            VariantUtils.addInfo(call, GACallInfoFields.FILTER, context.getFilters());
+        return variant;
+    }
 
+    private GACall buildCall(VariantContext context, Genotype genotype, Allele alt) {
+        GACall call = new GACall();
 
-            calls.add(call);
-        }
-        variant.setCalls(calls);
+        // genotype
+        int count = genotype.countAllele(alt);
+        // if 2: (1,1), if 1: (0, 1), if 0: (0, 0)
+        call.setGenotype(Arrays.asList(count > 1 ? 1 : 0, count > 0 ? 1 : 0));
 
-        if (this.nextRow.getAlternateAlleles().size() > altIndex) {
-            altIndex++;
-        } else {
-            this.nextRow = this.nextFiltered();
-            altIndex = 0;
-        }
-        if (!hasNext()) {
-            iterator.close();
-            reader.close();
-        }
+        VariantUtils.addInfo(call, GACallInfoFields.QUALITY, String.valueOf(context.getPhredScaledQual()));
+        VariantUtils.addInfo(call, GACallInfoFields.FILTER, getFilterValue(context));
 
-        return variant;
+        return call;
     }
 
     /**
@@ -186,18 +399,23 @@ private VariantContext nextFiltered() {
         if (!iterator.hasNext()) {
             return null;
         }
-        // no filter, don't do extra work.
-        if (this.filter == null) {
-            return iterator.next();
-        }
-
         while (iterator.hasNext()) {
             VariantContext ctx = iterator.next();
+
+            if (!accepts(ctx)) {
+                continue;
+            }
+
+            // no info filter, don't do extra work.
+            if (this.infoFilter == null) {
+                return ctx;
+            }
+
             CommonInfo contextInfo = ctx.getCommonInfo();
 
             // Skip any vcf row that matches the filter.
             boolean matched = false;
-            for (Map.Entry<String, List<String>> filterEntry : filter.entrySet()) {
+            for (Map.Entry<String, List<String>> filterEntry : infoFilter.entrySet()) {
 
                 String ctxInfoValue = String.valueOf(contextInfo.getAttribute(filterEntry.getKey()));
                 if (filterEntry.getValue().contains(ctxInfoValue)) {
@@ -216,4 +434,76 @@ private VariantContext nextFiltered() {
         return null;
 
     }
+
+    /**
+     * Check a row against the variant filter, before any variant is built for it. VCF rows carry no functional class,
+     * so they are only checked on their position, FILTER and the AF info field.
+     *
+     * @param ctx the row
+     * @return true if the row should be turned into variants
+     */
+    private boolean accepts(VariantContext ctx) {
+        // a query also returns the rows that start before the region, but overlap it
+        if (filter.hasRegion() && (!filter.getRegionName().equals(ctx.getChr())
+                || !filter.acceptsStart(ctx.getStart() - 1))) {
+            return false;
+        }
+        if (!filter.acceptsFilter(getFilterValue(ctx))) {
+            return false;
+        }
+        if (filter.hasMaxFrequency()) {
+            Double frequency = getMaxFrequency(ctx.getAttribute("AF"));
+            if (frequency != null && !filter.acceptsFrequency(frequency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the FILTER column of a row the way it is written in the file.
+     *
+     * @param ctx the row
+     * @return PASS, ".", or the failed filters separated by semicolons
+     */
+    private static String getFilterValue(VariantContext ctx) {
+        if (ctx.isFiltered()) {
+            return StringUtils.join(ctx.getFilters(), ';');
+        }
+        return ctx.filtersWereApplied() ? VariantFilter.PASS : ".";
+    }
+
+    /**
+     * Get the highest of the allele frequencies in an AF info field.
+     *
+     * @param value the AF attribute, a number, a string, or a list of either
+     * @return the highest frequency, or null if there is none
+     */
+    private static Double getMaxFrequency(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Collection) {
+            Double max = null;
+            for (Object element : (Collection<?>) value) {
+                Double frequency = getMaxFrequency(element);
+                if (frequency != null && (max == null || frequency > max)) {
+                    max = frequency;
+                }
+            }
+            return max;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        String string = value.toString();
+        if (string.contains(",")) {
+            return getMaxFrequency(Arrays.asList(string.split(",")));
+        }
+        try {
+            return Double.valueOf(string);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
@@ -17,39 +17,101 @@
  */
 package org.phenotips.variantstore.input.vcf;
 
+import org.phenotips.variantstore.input.BlockCompression;
+import org.phenotips.variantstore.input.ContentDigests;
+import org.phenotips.variantstore.input.FileAdopter;
 import org.phenotips.variantstore.input.InputException;
 import org.phenotips.variantstore.input.InputManager;
+import org.phenotips.variantstore.input.VariantFilter;
 import org.phenotips.variantstore.input.VariantHeader;
 import org.phenotips.variantstore.input.VariantIterator;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.TribbleException;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.LineReader;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+
 /**
- * Manage the raw VCF files that we store.
+ * Manage the raw VCF files that we store. Files are kept block gzip compressed, with a tabix index next to them so
+ * that a region can be read without scanning the whole file; a file that can't be indexed, because it isn't sorted,
+ * is stored without one. Files stored before compression are still read as they are.
+ *
+ * An individual that was added from a file holding several samples has a small file next to its VCF, naming the
+ * sample that belongs to it.
  *
  * @version $Id$
  */
 public class VCFManager implements InputManager
 {
     private static String suffix = ".vcf";
+    private static String compressedSuffix = suffix + BlockCompression.EXTENSION;
+    private static String sampleSuffix = ".sample";
     private static Logger logger = LoggerFactory.getLogger(VCFManager.class);
+
+    /**
+     * Store a plain or gzip compressed VCF block gzip compressed, and index it.
+     */
+    private static final FileAdopter.Conversion COMPRESS_AND_INDEX = new FileAdopter.Conversion()
+    {
+        @Override
+        public void convert(Path source, Path partial, Path target) throws IOException {
+            BlockCompression.compress(source, partial);
+            index(partial, getIndex(target));
+        }
+    };
+
+    /**
+     * Store a block gzip compressed VCF as it is, and index it.
+     */
+    private static final FileAdopter.Conversion INDEX = new FileAdopter.Conversion()
+    {
+        @Override
+        public void convert(Path source, Path partial, Path target) throws IOException {
+            try {
+                Files.createLink(partial, source);
+            } catch (UnsupportedOperationException | IOException e) {
+                FileAdopter.transfer(source, partial);
+            }
+            index(partial, getIndex(target));
+        }
+    };
     private Path path;
+    private FileAdopter adopter = new FileAdopter();
+    private ContentDigests digests;
 
     @Override
     public void init(Path path) throws InputException {
         this.path = path;
+        this.digests = new ContentDigests(path);
 
         if (!Files.exists(this.path)) {
             logger.info("No VCF directory found, Creating it.");
@@ -63,27 +125,286 @@ public void init(Path path) throws InputException {
 
     @Override
     public void stop() {
+        adopter.stop();
+    }
 
+    @Override
+    public void setMoveAllowed(boolean moveAllowed) {
+        adopter.setMoveAllowed(moveAllowed);
     }
 
     @Override
-    public void addIndividual(String id, Path path) throws InputException {
+    public boolean addIndividual(String id, Path path) throws InputException {
         try {
-            Files.copy(path, this.getIndividual(id), StandardCopyOption.REPLACE_EXISTING);
+            String digest = ContentDigests.digest(path);
+            if (isStored(id, null, digest)) {
+                logger.debug(String.format("The VCF of %s is unchanged", id));
+                return false;
+            }
+            digests.remove(id);
+
+            FileAdopter.Method method = store(path, this.getCompressed(id), this.getUncompressed(id));
+            logger.debug(String.format("Stored VCF of %s by %s", id, method));
+            // the whole file belongs to the individual
+            Files.deleteIfExists(this.getSampleFile(id));
+            digests.put(id, digest);
         } catch (IOException e) {
             throw new InputException("Error copying VCF for storage.", e);
         }
+        return true;
+    }
+
+    @Override
+    public boolean addIndividuals(Map<String, String> samples, Path path) throws InputException {
+        checkSamples(samples, path);
+
+        try {
+            String digest = ContentDigests.digest(path);
+            boolean stored = true;
+            for (Map.Entry<String, String> sample : samples.entrySet()) {
+                stored &= isStored(sample.getValue(), sample.getKey(), digest);
+            }
+            if (stored) {
+                logger.debug(String.format("The VCF of %s is unchanged", samples.values()));
+                return false;
+            }
+            for (String id : samples.values()) {
+                digests.remove(id);
+            }
+
+            // every other individual links to the first one's file, once it is in the store
+            Path first = null;
+            for (Map.Entry<String, String> sample : samples.entrySet()) {
+                Path target = this.getCompressed(sample.getValue());
+                FileAdopter.Method method;
+                if (first == null) {
+                    method = store(path, target, this.getUncompressed(sample.getValue()));
+                    first = target;
+                } else {
+                    Files.deleteIfExists(this.getUncompressed(sample.getValue()));
+                    method = adopter.convert(path, target, linkTo(first));
+                }
+                logger.debug(String.format("Stored VCF of %s by %s", sample.getValue(), method));
+                Files.write(this.getSampleFile(sample.getValue()), sample.getKey().getBytes(StandardCharsets.UTF_8));
+                digests.put(sample.getValue(), digest);
+            }
+        } catch (IOException e) {
+            throw new InputException("Error copying VCF for storage.", e);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an individual's stored file has the given content, and belongs to it through the given sample.
+     *
+     * @param id     the id of the individual
+     * @param sample the sample, or null for the whole file
+     * @param digest the digest of the content
+     * @return true if the same file is stored for the individual
+     */
+    private boolean isStored(String id, String sample, String digest) {
+        return digest.equals(digests.get(id)) && Objects.equals(sample, getSample(id))
+                && Files.exists(adopter.resolve(this.getIndividual(id)));
+    }
+
+    /**
+     * Take a VCF into the store. A block gzip compressed file that comes with its tabix index is stored as it is;
+     * anything else is compressed or indexed in the background.
+     *
+     * @param source       the VCF
+     * @param target       where to store it
+     * @param uncompressed where an earlier, uncompressed file of the individual's would be
+     * @return how the file was stored
+     * @throws IOException if the file can't be stored
+     */
+    private FileAdopter.Method store(Path source, Path target, Path uncompressed) throws IOException {
+        Files.deleteIfExists(uncompressed);
+        adopter.await(target);
+        Files.deleteIfExists(getIndex(target));
+
+        if (!BlockCompression.isBlockCompressed(source)) {
+            return adopter.convert(source, target, COMPRESS_AND_INDEX);
+        }
+        if (!Files.exists(getIndex(source))) {
+            return adopter.convert(source, target, INDEX);
+        }
+        FileAdopter.Method method = adopter.adopt(source, target);
+        adopter.adopt(getIndex(source), getIndex(target));
+        return method;
+    }
+
+    /**
+     * Store a VCF as a link to a file already in the store, or a copy if it can't be linked, along with its index.
+     * Conversions run one at a time in the order they were started, so the file is in place by the time this runs.
+     *
+     * @param stored the file in the store
+     * @return the conversion
+     */
+    private static FileAdopter.Conversion linkTo(final Path stored) {
+        return new FileAdopter.Conversion()
+        {
+            @Override
+            public void convert(Path source, Path partial, Path target) throws IOException {
+                Files.deleteIfExists(getIndex(target));
+                try {
+                    Files.createLink(partial, stored);
+                } catch (UnsupportedOperationException | IOException e) {
+                    FileAdopter.transfer(stored, partial);
+                }
+                if (Files.exists(getIndex(stored))) {
+                    Files.copy(getIndex(stored), getIndex(target));
+                }
+            }
+        };
+    }
+
+    /**
+     * Write a tabix index for a block gzip compressed VCF. A file that isn't sorted can't be indexed, and is left
+     * without an index.
+     *
+     * @param vcf   the file
+     * @param index the index file
+     * @throws IOException if the index can't be written
+     */
+    private static void index(Path vcf, Path index) throws IOException {
+        // IndexFactory can't read the header of a block compressed VCF, so the file is walked here instead
+        BlockCompressedInputStream in = new BlockCompressedInputStream(vcf.toFile());
+        try {
+            VCFCodec codec = new VCFCodec();
+            TabixIndexCreator creator = new TabixIndexCreator(TabixFormat.VCF);
+
+            final List<String> header = new ArrayList<>();
+            // there is no current block to point into until the first read
+            long position = 0;
+            String line = in.readLine();
+            while (line != null && line.startsWith("#")) {
+                header.add(line);
+                position = in.getFilePointer();
+                line = in.readLine();
+            }
+            codec.readActualHeader(new LineIteratorImpl(new LineReader()
+            {
+                private Iterator<String> lines = header.iterator();
+
+                @Override
+                public String readLine() {
+                    return lines.hasNext() ? lines.next() : null;
+                }
+
+                @Override
+                public void close() {
+                }
+            }));
+
+            while (line != null) {
+                VariantContext row = codec.decode(line);
+                if (row != null) {
+                    creator.addFeature(row, position);
+                }
+                position = in.getFilePointer();
+                line = in.readLine();
+            }
+            Index tabix = creator.finalizeIndex(position);
+            // tabix indexes are block compressed themselves
+            try (LittleEndianOutputStream out =
+                     new LittleEndianOutputStream(new BlockCompressedOutputStream(index.toFile()))) {
+                tabix.write(out);
+            }
+        } catch (TribbleException | IllegalArgumentException e) {
+            // rows out of order
+            logger.warn(String.format("Could not index %s, it will be read in full: %s", vcf, e.getMessage()));
+            Files.deleteIfExists(index);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Path getIndex(Path vcf) {
+        return vcf.resolveSibling(vcf.getFileName() + TabixUtils.STANDARD_INDEX_EXTENSION);
+    }
+
+    /**
+     * Make sure every sample is in the file, and belongs to a different individual.
+     *
+     * @param samples the sample names mapped to individual ids
+     * @param path    the VCF file
+     * @throws InputException if the samples don't match the file
+     */
+    private void checkSamples(Map<String, String> samples, Path path) throws InputException {
+        if (samples.isEmpty()) {
+            throw new InputException("No samples given.");
+        }
+        if (new HashSet<>(samples.values()).size() != samples.size()) {
+            throw new InputException("Each sample must belong to a different individual.");
+        }
+
+        VCFFileReader reader = new VCFFileReader(path.toFile(), false);
+        try {
+            List<String> names = reader.getFileHeader().getSampleNamesInOrder();
+            for (String sample : samples.keySet()) {
+                if (!names.contains(sample)) {
+                    throw new InputException(String.format("Sample %s is not in %s", sample, path));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Path getSampleFile(String id) {
+        return this.path.resolve(id + suffix + sampleSuffix);
+    }
+
+    /**
+     * Get the sample of the VCF that belongs to an individual.
+     *
+     * @param id the id of the individual
+     * @return the sample name, or null if the whole file belongs to the individual
+     */
+    private String getSample(String id) {
+        Path file = this.getSampleFile(id);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // reading the whole file as the individual's would store other samples' variants
+            throw new IllegalStateException(String.format("Error reading the sample of %s", id), e);
+        }
+    }
+
+    @Override
+    public Future<?> getPendingCopy(String id) {
+        Path target = this.getCompressed(id);
+        // copies are made one at a time in the order they were started, and an index that is copied comes last
+        Future<?> copy = adopter.getPending(getIndex(target));
+        return copy != null ? copy : adopter.getPending(target);
     }
 
     @Override
     public Path getIndividual(String id) {
+        Path uncompressed = this.getUncompressed(id);
+        return Files.exists(uncompressed) ? uncompressed : this.getCompressed(id);
+    }
+
+    private Path getUncompressed(String id) {
         return this.path.resolve(id + suffix);
     }
 
+    private Path getCompressed(String id) {
+        return this.path.resolve(id + compressedSuffix);
+    }
+
     @Override
     public void removeIndividual(String id) throws InputException {
         try {
-            Files.delete(this.getIndividual(id));
+            adopter.await(this.getCompressed(id));
+            digests.remove(id);
+            Path file = this.getIndividual(id);
+            Files.delete(file);
+            Files.deleteIfExists(getIndex(file));
+            Files.deleteIfExists(this.getSampleFile(id));
         } catch (IOException e) {
             throw new InputException("Error removing VCF", e);
         }
@@ -91,7 +412,30 @@ public void removeIndividual(String id) throws InputException {
 
     @Override
     public VariantIterator getIteratorForIndividual(String id, boolean isPublic) {
-        return new VCFIterator(this.getIndividual(id), new VariantHeader(id, true));
+        return getIteratorForIndividual(id, isPublic, new VariantFilter());
+    }
+
+    @Override
+    public VariantIterator getIteratorForIndividual(String id, boolean isPublic, VariantFilter filter) {
+        String sample = getSample(id);
+        VariantHeader header;
+        if (sample == null) {
+            header = new VariantHeader(id, isPublic);
+        } else {
+            header = new VariantHeader(Collections.singletonMap(sample, id), isPublic);
+        }
+        return new VCFIterator(adopter.resolve(this.getIndividual(id)), header, filter);
+    }
+
+    @Override
+    public VariantIterator getIteratorForIndividuals(Map<String, String> samples, boolean isPublic,
+                                                     VariantFilter filter) throws InputException {
+        if (samples.isEmpty()) {
+            throw new InputException("No samples given.");
+        }
+        // every individual has a copy of the same file, read any one of them
+        Path file = adopter.resolve(this.getIndividual(samples.values().iterator().next()));
+        return new VCFIterator(file, new VariantHeader(samples, isPublic), filter);
     }
 
     /**
@@ -109,16 +453,18 @@ public VariantIterator getIteratorForIndividual(String id) {
     @Override
     public List<String> getAllIndividuals() {
         final List<String> list = new ArrayList<>();
+        // taken first: a copy that finishes during the walk may be missed by it, but not by both
+        List<Path> pending = adopter.getPendingTargets();
 
         try {
             Files.walkFileTree(this.path, new SimpleFileVisitor<Path>()
             {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    if (attrs.isDirectory()) {
+                    String id = StringUtils.removeEnd(file.getFileName().toString(), BlockCompression.EXTENSION);
+                    if (attrs.isDirectory() || FileAdopter.isPartial(file) || !id.endsWith(suffix)) {
                         return FileVisitResult.CONTINUE;
                     }
-                    String id = file.getFileName().toString();
                     id = StringUtils.removeEnd(id, suffix);
                     list.add(id);
                     return FileVisitResult.CONTINUE;
@@ -127,6 +473,15 @@ public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IO
         } catch (IOException e) {
             logger.error("Error getting all individuals");
         }
+        // still being copied in, but already readable
+        for (Path file : pending) {
+            String name = file.getFileName().toString();
+            // indexes are copied in too
+            String id = StringUtils.removeEnd(name, compressedSuffix);
+            if (name.endsWith(compressedSuffix) && !list.contains(id)) {
+                list.add(id);
+            }
+        }
 
         return list;
     }
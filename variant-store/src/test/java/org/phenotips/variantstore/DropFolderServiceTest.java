@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore;
+
+import org.phenotips.variantstore.db.solr.SolrController;
+import org.phenotips.variantstore.input.tsv.ExomiserTSVManager;
+import org.phenotips.variantstore.shared.VariantStoreException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DropFolderServiceTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> awaitStatus(Path log, int lines) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(log)) {
+                List<String> status = Files.readAllLines(log, StandardCharsets.UTF_8);
+                if (status.size() >= lines) {
+                    return status;
+                }
+            }
+            Thread.sleep(50);
+        }
+        fail("no status for " + lines + " files");
+        return null;
+    }
+
+    @Test
+    public void testDroppedFilesAreLoaded() throws Exception {
+        Path tsv = Paths.get(getClass().getResource("/tsvs/patient.variants.tsv").getPath());
+        Path drop = folder.newFolder("drop").toPath();
+        // dropped before the service started
+        Files.copy(tsv, drop.resolve("P1.variants.tsv"));
+
+        VariantStore store = new VariantStore(new ExomiserTSVManager(), new SolrController());
+        store.init(folder.newFolder("store").toPath());
+        DropFolderService service = new DropFolderService(store);
+        service.setSettleTime(200);
+        service.init(drop);
+
+        Files.copy(tsv, drop.resolve("P2.variants.tsv"));
+        Files.write(drop.resolve("notes.txt"), "not variants".getBytes(StandardCharsets.UTF_8));
+
+        List<String> status = awaitStatus(drop.resolve(DropFolderService.STATUS_LOG), 2);
+        service.stop();
+
+        assertEquals(2, status.size());
+        for (String line : status) {
+            String[] fields = line.split("\t");
+            assertTrue(fields[2].equals("P1") || fields[2].equals("P2"));
+            assertEquals("OK", fields[3]);
+        }
+        assertEquals(1, store.getTopHarmfullVariants("P1", 10).size());
+        assertEquals(1, store.getTopHarmfullVariants("P2", 10).size());
+        store.stop();
+    }
+
+    @Test
+    public void testFailuresStayOnOneStatusField() throws Exception {
+        String description = DropFolderService.describe(new VariantStoreException("bad\tline\r\nin file"));
+        assertEquals("bad line in file", description);
+
+        assertEquals(NullPointerException.class.getName(), DropFolderService.describe(new NullPointerException()));
+    }
+}
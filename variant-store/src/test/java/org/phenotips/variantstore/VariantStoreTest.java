@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore;
+
+import org.phenotips.variantstore.db.solr.SolrController;
+import org.phenotips.variantstore.input.BlockCompression;
+import org.phenotips.variantstore.input.tsv.ExomiserTSVManager;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class VariantStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path tsv() throws Exception {
+        Path tsv = folder.newFile().toPath();
+        Files.copy(Paths.get(getClass().getResource("/tsvs/patient.variants.tsv").getPath()), tsv,
+                StandardCopyOption.REPLACE_EXISTING);
+        return tsv;
+    }
+
+    @Test
+    public void testUploadCompletesOnceTheFileIsStored() throws Exception {
+        ExomiserTSVManager files = new ExomiserTSVManager();
+        VariantStore store = new VariantStore(files, new SolrController());
+        store.init(folder.newFolder("store").toPath());
+
+        // a plain TSV is compressed into the store in the background
+        Path tsv = tsv();
+        store.addIndividual("P1", true, tsv).get();
+        assertNull(files.getPendingCopy("P1"));
+        Files.delete(tsv);
+
+        assertTrue(Files.exists(files.getIndividual("P1")));
+        assertEquals(1, store.getTopHarmfullVariants("P1", 10).size());
+        store.stop();
+    }
+
+    @Test
+    public void testUpdateOfAFileOverwrittenInPlace() throws Exception {
+        ExomiserTSVManager files = new ExomiserTSVManager();
+        VariantStore store = new VariantStore(files, new SolrController());
+        store.init(folder.newFolder("store").toPath());
+
+        // a compressed file is linked into the store, so the stored file is the one given
+        Path gz = folder.newFile("P1.variants.tsv.gz").toPath();
+        Path tsv = tsv();
+        BlockCompression.compress(tsv, gz);
+        store.addIndividual("P1", true, gz);
+        assertTrue(Files.isSameFile(gz, files.getIndividual("P1")));
+
+        // a second variant, in another gene
+        List<String> lines = Files.readAllLines(tsv, StandardCharsets.UTF_8);
+        String[] fields = lines.get(1).split("\t");
+        fields[1] = String.valueOf(Long.parseLong(fields[1]) + 1);
+        fields[10] = "BRCA1";
+        lines.add(StringUtils.join(fields, "\t"));
+        Files.write(tsv, lines, StandardCharsets.UTF_8);
+        BlockCompression.compress(tsv, gz);
+
+        // while the first version may still be uploading
+        store.updateIndividual("P1", true, gz).get();
+        assertEquals(2, store.getTopHarmfullVariants("P1", 10).size());
+        assertEquals(1, store.getTopHarmfullVariantsForGene("P1", "BRCA1", 10).size());
+        store.stop();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.db.solr;
+
+import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.exomiser6.tsv.Exomiser6TSVIterator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Measure the cost of ingesting and querying cohorts of growing size, where the individuals share variants the way
+ * real ones do: a few variants are carried by most of the cohort, most by only a few individuals. Not run as part of
+ * the tests; run the main method with the cohort sizes (default 100,1000,10000) and the number of variants per
+ * individual (default 200).
+ *
+ * @version $Id$
+ */
+public final class CohortScalingBenchmark
+{
+    private static final int POOL = 20000;
+    private static final int GENES = 500;
+    private static final int QUERY_ROUNDS = 20;
+    private static final int N = 10;
+
+    private CohortScalingBenchmark() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args the cohort sizes, comma separated, and the number of variants per individual
+     * @throws Exception if the variants can't be written, stored or queried
+     */
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "100,1000,10000").split(",");
+        int variants = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        for (String size : sizes) {
+            run(Integer.parseInt(size.trim()), variants);
+        }
+    }
+
+    private static void run(int individuals, int variants) throws Exception {
+        Path dir = Files.createTempDirectory("benchmark");
+        Random random = new Random(42);
+        SolrController controller = new SolrController();
+        try {
+            controller.init(dir.resolve("solr"));
+            Path file = dir.resolve("individual.variants.tsv");
+
+            long start = System.nanoTime();
+            controller.beginBulkLoad();
+            for (int i = 0; i < individuals; i++) {
+                generate(file, variants, random);
+                controller.addIndividual(new Exomiser6TSVIterator(file, new VariantHeader("P" + i, true))).get();
+            }
+            controller.endBulkLoad(false);
+            long ingestNanos = System.nanoTime() - start;
+
+            // one more, as an interactive upload would be
+            generate(file, variants, random);
+            start = System.nanoTime();
+            controller.addIndividual(new Exomiser6TSVIterator(file, new VariantHeader("P" + individuals, true))).get();
+            long addNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("%d individuals, %d variants each: %d distinct variants", individuals,
+                    variants, controller.getTotNumVariants()));
+            System.out.println(String.format("  bulk load %d ms (%.0f calls/sec), one more individual %d ms",
+                    ingestNanos / 1000000, individuals * (double) variants * 1e9 / ingestNanos, addNanos / 1000000));
+
+            query(controller, individuals, random);
+
+            start = System.nanoTime();
+            controller.removeIndividual("P" + individuals).get();
+            System.out.println(String.format("  remove one individual %d ms", (System.nanoTime() - start) / 1000000));
+        } finally {
+            controller.stop();
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    private static void query(SolrController controller, int individuals, Random random) {
+        Map<String, Double> frequencies = new HashMap<>();
+        frequencies.put(SolrController.EXAC_FREQUENCY_FIELD, 0.1);
+        frequencies.put(SolrController.DB_FREQUENCY_FIELD, 1.0);
+        List<String> effects = Collections.singletonList("MISSENSE");
+
+        long topVariants = 0;
+        long genes = 0;
+        long topGenes = 0;
+        long withGene = 0;
+        long beacon = 0;
+        for (int round = 0; round < QUERY_ROUNDS; round++) {
+            String id = "P" + random.nextInt(individuals);
+
+            long start = System.nanoTime();
+            controller.getTopHarmfullVariants(id, N);
+            topVariants += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            controller.getAllGenesForIndividual(id);
+            genes += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            controller.getTopGenesForIndividual(id, N);
+            topGenes += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            controller.getIndividualsWithGene("GENE" + random.nextInt(GENES), effects, frequencies, N, individuals);
+            withGene += System.nanoTime() - start;
+
+            // the most common variant
+            start = System.nanoTime();
+            controller.beacon(chrom(0), pos(0) + 1, "G");
+            beacon += System.nanoTime() - start;
+        }
+        System.out.println(String.format("  per query: top variants %.1f ms, all genes %.1f ms, top genes %.1f ms,"
+                + " individuals with gene %.1f ms, beacon %.1f ms", millis(topVariants), millis(genes),
+                millis(topGenes), millis(withGene), millis(beacon)));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6 / QUERY_ROUNDS;
+    }
+
+    /**
+     * Write an individual's variants, drawn from the pool with the first ones far more likely than the last ones.
+     */
+    private static void generate(Path file, int variants, Random random) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("#CHROM\tPOS\tREF\tALT\tQUAL\tFILTER\tGENOTYPE\tCOVERAGE\tFUNCTIONAL_CLASS\tHGVS\t"
+                    + "EXOMISER_GENE\tCADD\tPOLYPHEN\tMUTATIONTASTER\tSIFT\tDBSNP_ID\tMAX_FREQUENCY\tDBSNP_FREQUENCY\t"
+                    + "EVS_EA_FREQUENCY\tEVS_AA_FREQUENCY\tEXOMISER_VARIANT_SCORE\tEXOMISER_GENE_PHENO_SCORE\t"
+                    + "EXOMISER_GENE_VARIANT_SCORE\tEXOMISER_GENE_COMBINED_SCORE\n");
+            for (int i = 0; i < variants; i++) {
+                double r = random.nextDouble();
+                int variant = (int) (POOL * r * r * r);
+                writer.write(String.format("%s\t%d\tA\tG\t%.1f\tPASS\t%s\t%d\tMISSENSE\t"
+                        + "GENE%d:uc002dzg.1:exon29:c.6715A>G:p.R2239*\tGENE%d\t.\t.\t.\t.\t.\t"
+                        + "%.4f\t.\t.\t.\t%.7f\t%.7f\t%.7f\t%.7f\n",
+                        chrom(variant), pos(variant) + 1, random.nextDouble() * 1000,
+                        random.nextBoolean() ? "0/1" : "1/1", random.nextInt(100), variant % GENES,
+                        variant % GENES, random.nextDouble() / 100, random.nextDouble(), random.nextDouble(),
+                        random.nextDouble(), random.nextDouble()));
+            }
+        }
+    }
+
+    private static String chrom(int variant) {
+        return "chr" + (1 + variant % 22);
+    }
+
+    private static long pos(int variant) {
+        return 1000 + variant * 10L;
+    }
+}
@@ -17,15 +17,42 @@
  */
 package org.phenotips.variantstore.db.solr;
 
+import org.phenotips.variantstore.db.DatabaseException;
+import org.phenotips.variantstore.db.solr.tasks.Checkpoint;
+import org.phenotips.variantstore.input.VariantDiff;
+import org.phenotips.variantstore.input.VariantFilter;
 import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.VariantRecord;
+import org.phenotips.variantstore.input.exomiser6.tsv.Exomiser6TSVIterator;
 import org.phenotips.variantstore.input.tsv.ExomiserTSVIterator;
+import org.phenotips.variantstore.input.vcf.VCFIterator;
+import org.phenotips.variantstore.input.vcf.VCFManager;
+import org.phenotips.variantstore.shared.GACallInfoFields;
+import org.phenotips.variantstore.shared.GAVariantInfoFields;
+import org.phenotips.variantstore.shared.VariantUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.ga4gh.GAVariant;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -41,6 +68,7 @@
     public TemporaryFolder folder = new TemporaryFolder();
 
     private Path tsvs;
+    private Path vcfs;
     private Path solr;
 
     private VariantHeader header;
@@ -49,7 +77,9 @@
     public void before() throws IOException {
         // copy resources
         FileUtils.copyDirectoryToDirectory(Paths.get(getClass().getResource("/tsvs").getPath()).toFile(), folder.getRoot());
+        FileUtils.copyDirectoryToDirectory(Paths.get(getClass().getResource("/vcfs").getPath()).toFile(), folder.getRoot());
         tsvs = folder.getRoot().toPath().resolve("tsvs");
+        vcfs = folder.getRoot().toPath().resolve("vcfs");
         solr = folder.getRoot().toPath().resolve("solr");
 
         header = new VariantHeader("someId", true);
@@ -66,4 +96,654 @@ public void testAddIndividualWithHugeField() throws Exception {
         future = controller.addIndividual(iterator);
         future.get();
     }
+
+    @Test
+    public void testStoreFromAnotherSchemaVersionIsRefused() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.stop();
+
+        Path version = solr.resolve("solr/variants/conf/schema.version");
+        byte[] current = Files.readAllBytes(version);
+        // set up before the version was recorded
+        Files.delete(version);
+        try {
+            new SolrController().init(solr);
+            fail("opened a store without a schema version");
+        } catch (DatabaseException e) {
+            assertTrue(e.getMessage().contains("version 1 of the schema"));
+        }
+
+        Files.write(version, "1".getBytes(StandardCharsets.UTF_8));
+        try {
+            new SolrController().init(solr);
+            fail("opened a store with an older schema version");
+        } catch (DatabaseException e) {
+            // expected
+        }
+
+        Files.write(version, current);
+        controller = new SolrController();
+        controller.init(solr);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"), header)).get();
+        assertEquals(1, controller.getTotNumVariants());
+        controller.stop();
+    }
+
+    @Test
+    public void testAddIndividualsSharingVariants() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("first", true))).get();
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("second", true))).get();
+
+        assertEquals(1, controller.getTopHarmfullVariants("first", 10).size());
+        assertEquals(1, controller.getTopHarmfullVariants("second", 10).size());
+        assertEquals(1, controller.getTotNumVariants());
+        controller.stop();
+    }
+
+    @Test
+    public void testQueriesOnlyReturnTheIndividualsCall() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("first", true))).get();
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("second", true))).get();
+
+        List<GAVariant> variants = controller.getTopHarmfullVariants("second", 10);
+        assertEquals(1, variants.size());
+        GAVariant variant = variants.get(0);
+        assertEquals("chr16", variant.getReferenceName());
+        assertEquals("SRCAP", VariantUtils.getInfo(variant, GAVariantInfoFields.GENE));
+        assertEquals(1, variant.getCalls().size());
+        assertEquals("second", variant.getCalls().get(0).getCallSetId());
+        assertEquals("PASS", VariantUtils.getInfo(variant.getCalls().get(0), GACallInfoFields.FILTER));
+
+        variants = controller.getTopHarmfullVariantsForGene("first", "SRCAP", 10);
+        assertEquals(1, variants.size());
+        assertEquals("first", variants.get(0).getCalls().get(0).getCallSetId());
+
+        // the call documents are fetched without the fields that only matter to the store
+        SolrDocumentList calls = controller.queryCalls(new SolrQuery(VariantsSchema.getCallsQuery("second")))
+                .getResults();
+        assertEquals(1, calls.size());
+        SolrDocument call = calls.get(0);
+        assertEquals("second", call.getFieldValue(VariantsSchema.CALLSET_ID));
+        assertTrue(VariantsSchema.CALL_FIELDS.containsAll(call.getFieldNames()));
+        assertFalse(call.containsKey(VariantsSchema.PUBLIC));
+        assertFalse(call.containsKey(VariantsSchema.VARIANT));
+        assertFalse(call.containsKey(VariantsSchema.TYPE));
+        controller.stop();
+    }
+
+    /**
+     * Write the patient's variant moved around and put in other genes, with a gene score for each gene.
+     */
+    private Path writeGenes(String... genes) throws IOException {
+        List<String> lines = Files.readAllLines(tsvs.resolve("patient.variants.tsv"), StandardCharsets.UTF_8);
+        for (int i = 0; i < genes.length; i++) {
+            String[] fields = lines.get(1).split("\t");
+            fields[1] = String.valueOf(Long.parseLong(fields[1]) + i);
+            fields[10] = genes[i];
+            fields[23] = String.valueOf(genes[i].length() / 10.0);
+            lines.add(StringUtils.join(fields, "\t"));
+        }
+        lines.remove(1);
+        Path file = tsvs.resolve("genes.variants.tsv");
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void testGenesForIndividual() throws Exception {
+        Path file = writeGenes("SRCAP", "BRCA1", "SRCAP", "TTN");
+
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.addIndividual(new ExomiserTSVIterator(file, header)).get();
+
+        Map<String, Long> all = controller.getGenesForIndividual("someId", 0, -1);
+        assertEquals(Arrays.asList("BRCA1", "SRCAP", "TTN"), new ArrayList<>(all.keySet()));
+        assertEquals(Long.valueOf(2), all.get("SRCAP"));
+        assertEquals(Long.valueOf(1), all.get("TTN"));
+
+        Map<String, Long> page = controller.getGenesForIndividual("someId", 1, 1);
+        assertEquals(1, page.size());
+        assertEquals(Long.valueOf(2), page.get("SRCAP"));
+
+        assertEquals(all.keySet(), controller.getAllGenesForIndividual("someId"));
+        assertTrue(controller.getGenesForIndividual("nobody", 0, -1).isEmpty());
+        controller.stop();
+    }
+
+    @Test
+    public void testGeneScores() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        // the scores are in the columns of the newer format
+        controller.addIndividual(new Exomiser6TSVIterator(writeGenes("SRCAP", "BRCA1", "SRCAP", "TTN"), header))
+                .get();
+
+        Map<String, Double> scores = controller.getGeneScores("someId", Arrays.asList("TTN", "SRCAP", "NOPE"));
+        assertEquals(Arrays.asList("TTN", "SRCAP", "NOPE"), new ArrayList<>(scores.keySet()));
+        assertEquals(0.3, scores.get("TTN"), 1e-6);
+        assertEquals(0.5, scores.get("SRCAP"), 1e-6);
+        assertEquals(0, scores.get("NOPE"), 0);
+        assertEquals(controller.getGeneScore("someId", "SRCAP"), scores.get("SRCAP"), 0);
+
+        assertTrue(controller.getGeneScores("someId", new ArrayList<String>()).isEmpty());
+        assertEquals(0, controller.getGeneScores("nobody", Arrays.asList("TTN")).get("TTN"), 0);
+        controller.stop();
+    }
+
+    @Test
+    public void testTopGenesForIndividual() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        Path old = Files.copy(writeGenes("SRCAP", "BRCA1", "SRCAP", "TTN"), tsvs.resolve("old.variants.tsv"));
+        controller.addIndividual(new Exomiser6TSVIterator(old, header)).get();
+
+        // ties go by gene
+        assertEquals(Arrays.asList("BRCA1", "SRCAP"), controller.getTopGenesForIndividual("someId", 2));
+        assertEquals(Arrays.asList("BRCA1", "SRCAP", "TTN"), controller.getTopGenesForIndividual("someId", 10));
+        assertEquals(0.3, controller.getGeneScore("someId", "TTN"), 1e-6);
+        // the ranking isn't taken for a variant
+        assertEquals(4, controller.getTotNumVariants());
+
+        // an update ranks the genes of the new version
+        VariantDiff diff = VariantDiff.compute(VariantDiff.read(new Exomiser6TSVIterator(old, header)),
+                new Exomiser6TSVIterator(writeGenes("SRCAP", "BRCA1"), header));
+        controller.updateIndividual(diff).get();
+        GeneRanking ranking = controller.getGeneRanking("someId");
+        assertNotNull(ranking);
+        assertEquals(Arrays.asList("BRCA1", "SRCAP"), ranking.getTop(10));
+        assertEquals(Arrays.asList("BRCA1", "SRCAP"), controller.getTopGenesForIndividual("someId", 10));
+        assertEquals(0, controller.getGeneScore("someId", "TTN"), 0);
+        assertEquals(0.5, controller.getGeneScore("someId", "SRCAP"), 1e-6);
+
+        controller.removeIndividual("someId").get();
+        assertTrue(controller.getTopGenesForIndividual("someId", 10).isEmpty());
+        assertEquals(0, controller.getGeneScore("someId", "SRCAP"), 0);
+        controller.stop();
+    }
+
+    @Test
+    public void testRemoveIndividualSharingVariants() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("first", true))).get();
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("second", true))).get();
+
+        controller.removeIndividual("first").get();
+        assertEquals(0, controller.getTopHarmfullVariants("first", 10).size());
+        assertEquals(1, controller.getTopHarmfullVariants("second", 10).size());
+        assertEquals(1, controller.getTotNumVariants());
+
+        controller.removeIndividual("second").get();
+        assertEquals(0, controller.getTotNumVariants());
+        controller.stop();
+    }
+
+    @Test
+    public void testRemoveIndividualWithoutInputFile() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+
+        Map<String, String> samples = new LinkedHashMap<>();
+        samples.put("mother", "P1");
+        samples.put("child", "P3");
+        controller.addIndividual(new VCFIterator(vcfs.resolve("family.vcf"), new VariantHeader(samples, true),
+                VariantFilter.passOnly())).get();
+        Files.delete(vcfs.resolve("family.vcf"));
+
+        // one variant per page
+        controller.setBatchSize(1);
+        controller.removeIndividual("P1").get();
+        assertEquals(0, controller.getTopHarmfullVariants("P1", 10).size());
+        assertEquals(2, controller.getTopHarmfullVariants("P3", 10).size());
+        assertEquals(2, controller.getTotNumVariants());
+
+        controller.removeIndividual("P3").get();
+        assertEquals(0, controller.getTotNumVariants());
+        controller.stop();
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        SolrController controller = new SolrController();
+        controller.setWriters(4);
+        controller.init(solr);
+        controller.setBatchSize(1);
+        controller.setStageThreads(2, 2);
+        controller.setQueueCapacity(1);
+
+        List<Future> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                    new VariantHeader("individual" + i, true))));
+        }
+        for (Future future : futures) {
+            future.get();
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1, controller.getTopHarmfullVariants("individual" + i, 10).size());
+        }
+        assertEquals(1, controller.getTotNumVariants());
+        controller.stop();
+    }
+
+    @Test
+    public void testAsyncCommits() throws Exception {
+        SolrController controller = new SolrController();
+        controller.setWriters(4);
+        controller.init(solr);
+        controller.setCommitPolicy(CommitCoordinator.Policy.ASYNC);
+        // put off long enough that nothing is committed before the removal
+        controller.getCommitCoordinator().setAsyncDelay(60000);
+
+        List<Future> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                    new VariantHeader("individual" + i, true))));
+        }
+        for (Future future : futures) {
+            future.get();
+        }
+        assertEquals(0, controller.getCommitCoordinator().getCommits());
+        assertEquals(8, controller.getCommitCoordinator().getRequests());
+
+        // a removal searches for the variants, so it has the commits made first
+        controller.removeIndividual("individual0").get();
+        assertEquals(1, controller.getCommitCoordinator().getCommits());
+        // and its own changes wait like the others
+        controller.getCommitCoordinator().flush();
+        assertEquals(2, controller.getCommitCoordinator().getCommits());
+        assertEquals(0, controller.getTopHarmfullVariants("individual0", 10).size());
+        for (int i = 1; i < 8; i++) {
+            assertEquals(1, controller.getTopHarmfullVariants("individual" + i, 10).size());
+        }
+        controller.stop();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        SolrController controller = new SolrController();
+        controller.setWriters(4);
+        controller.init(solr);
+        controller.beginBulkLoad();
+
+        List<Future> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                    new VariantHeader("individual" + i, true))));
+        }
+        futures.add(controller.addIndividual(new VCFIterator(vcfs.resolve("contigs.vcf"),
+                new VariantHeader("contigs", true), VariantFilter.passOnly())));
+        for (Future future : futures) {
+            future.get();
+        }
+        // nothing is searchable until the load ends
+        assertEquals(0, controller.getCommitCoordinator().getCommits());
+        assertEquals(0, controller.getTotNumVariants());
+
+        controller.endBulkLoad(true);
+        assertEquals(1, controller.getCommitCoordinator().getCommits());
+        assertEquals(8, controller.getTotNumVariants());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1, controller.getTopHarmfullVariants("individual" + i, 10).size());
+        }
+        assertEquals(7, controller.getTopHarmfullVariants("contigs", 10).size());
+        controller.stop();
+    }
+
+    @Test
+    public void testAddMultiSampleVCF() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+
+        Map<String, String> samples = new LinkedHashMap<>();
+        samples.put("mother", "P1");
+        samples.put("father", "P2");
+        samples.put("child", "P3");
+        VariantHeader family = new VariantHeader(samples, true);
+
+        controller.addIndividual(new VCFIterator(vcfs.resolve("family.vcf"), family,
+                VariantFilter.passOnly())).get();
+        // adding the same samples again changes nothing
+        controller.addIndividual(new VCFIterator(vcfs.resolve("family.vcf"), family,
+                VariantFilter.passOnly())).get();
+
+        // 1:300 has no carriers, and 1:400 didn't pass
+        assertEquals(3, controller.getTotNumVariants());
+        assertEquals(3, controller.getTopHarmfullVariants("P1", 10).size());
+        assertEquals(1, controller.getTopHarmfullVariants("P2", 10).size());
+        assertEquals(2, controller.getTopHarmfullVariants("P3", 10).size());
+        assertEquals(2, controller.beacon("1", 100, "G"));
+        assertEquals(2, controller.beacon("1", 200, "T"));
+        assertEquals(3, controller.beacon("1", 200, "G"));
+
+        controller.removeIndividual("P2").get();
+        assertEquals(0, controller.getTopHarmfullVariants("P2", 10).size());
+        assertEquals(1, controller.beacon("1", 200, "T"));
+        assertEquals(3, controller.getTotNumVariants());
+        controller.stop();
+    }
+
+    @Test
+    public void testUpdateIndividual() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+
+        VariantHeader first = new VariantHeader("first", true);
+        controller.addIndividual(new VCFIterator(vcfs.resolve("contigs.vcf"), first, VariantFilter.passOnly())).get();
+        controller.addIndividual(new VCFIterator(vcfs.resolve("contigs.vcf"), new VariantHeader("other", true),
+                VariantFilter.passOnly())).get();
+
+        // what is stored is what was read
+        List<VariantRecord> stored = controller.getIndividualVariants("first");
+        assertEquals(7, stored.size());
+        assertTrue(VariantDiff.compute(stored,
+                new VCFIterator(vcfs.resolve("contigs.vcf"), first, VariantFilter.passOnly())).isEmpty());
+
+        // 1:250 turns heterozygous, 1:900 is gone, 2:300 now passes and 2:480 is new
+        VariantDiff diff = VariantDiff.compute(stored,
+                new VCFIterator(vcfs.resolve("contigs-updated.vcf"), first, VariantFilter.passOnly()));
+        assertEquals(1, diff.getChanged());
+        assertEquals(5, diff.getUnchanged());
+        assertEquals(2, diff.getRemoved().size());
+        assertEquals(3, diff.getAdded().size());
+
+        controller.updateIndividual(diff).get();
+        assertEquals(8, controller.getTopHarmfullVariants("first", 20).size());
+        assertEquals(7, controller.getTopHarmfullVariants("other", 20).size());
+        assertEquals(9, controller.getTotNumVariants());
+        assertEquals(3, controller.beacon("1", 250, "T"));
+        assertEquals(1, controller.beacon("1", 900, "C"));
+        assertEquals(1, controller.beacon("2", 480, "T"));
+        assertTrue(VariantDiff.compute(controller.getIndividualVariants("first"),
+                new VCFIterator(vcfs.resolve("contigs-updated.vcf"), first, VariantFilter.passOnly())).isEmpty());
+        controller.stop();
+    }
+
+    @Test
+    public void testAddVCFInParts() throws Exception {
+        // the store compresses and indexes the file, so that it can be split
+        VCFManager manager = new VCFManager();
+        manager.init(folder.getRoot().toPath().resolve("store"));
+        manager.addIndividual("split", vcfs.resolve("contigs.vcf"));
+        manager.stop();
+
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+        controller.setStageThreads(2, 2);
+        controller.setReaders(3, 300);
+
+        controller.addIndividual(manager.getIteratorForIndividual("split", true, VariantFilter.passOnly())).get();
+        // an uncompressed file is read in one piece
+        controller.addIndividual(new VCFIterator(vcfs.resolve("contigs.vcf"), new VariantHeader("whole", true),
+                VariantFilter.passOnly())).get();
+
+        assertEquals(7, controller.getTotNumVariants());
+        assertEquals(7, controller.getTopHarmfullVariants("split", 10).size());
+        assertEquals(7, controller.getTopHarmfullVariants("whole", 10).size());
+        controller.stop();
+    }
+
+    @Test
+    public void testHashIndexSurvivesRestart() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("first", true))).get();
+        controller.stop();
+        assertTrue(Files.exists(solr.resolve("solr/variants.hashes")));
+
+        controller = new SolrController();
+        controller.init(solr);
+        assertFalse(Files.exists(solr.resolve("solr/variants.hashes")));
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("second", true))).get();
+
+        assertEquals(1, controller.getTotNumVariants());
+        assertEquals(1, controller.getTopHarmfullVariants("first", 10).size());
+        assertEquals(1, controller.getTopHarmfullVariants("second", 10).size());
+        controller.stop();
+    }
+
+    @Test
+    public void testHashIndexMissingVariants() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("first", true))).get();
+        controller.stop();
+
+        // an index that has never seen the stored variant takes it for new
+        new VariantHashIndex(16).writeTo(solr.resolve("solr/variants.hashes"));
+
+        controller = new SolrController();
+        controller.init(solr);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("second", true))).get();
+
+        assertEquals(1, controller.getTotNumVariants());
+        assertEquals(1, controller.getTopHarmfullVariants("first", 10).size());
+        assertEquals(1, controller.getTopHarmfullVariants("second", 10).size());
+        controller.stop();
+    }
+
+    @Test
+    public void testUnreadableHashIndexIsRebuilt() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("first", true))).get();
+        controller.stop();
+
+        Path file = solr.resolve("solr/variants.hashes");
+        VariantHashIndex saved = VariantHashIndex.readFrom(file);
+        assertEquals(1, saved.getInsertions());
+        // as left by an older version, or cut short
+        Files.write(file, Arrays.copyOf(Files.readAllBytes(file), 12));
+        try {
+            VariantHashIndex.readFrom(file);
+            fail("read a truncated index");
+        } catch (IOException e) {
+            // expected
+        }
+
+        controller = new SolrController();
+        controller.init(solr);
+        assertFalse(Files.exists(file));
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("second", true))).get();
+
+        assertEquals(1, controller.getTotNumVariants());
+        assertEquals(1, controller.getTopHarmfullVariants("second", 10).size());
+        controller.stop();
+    }
+
+    @Test
+    public void testResumeAfterStop() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+        controller.setCheckpointInterval(0);
+
+        VariantHeader resumed = new VariantHeader("resumed", true);
+        CountDownLatch blocked = new CountDownLatch(1);
+        controller.addIndividual(blockingIterator(resumed, 3, blocked));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Path checkpoint = solr.resolve("solr/uploads/resumed.checkpoint");
+        // the third variant waits for the fourth, to tell whether they belong in the same batch
+        awaitProgress(checkpoint, 2);
+        controller.stop();
+        assertTrue(Files.exists(checkpoint));
+
+        controller = new SolrController();
+        controller.init(solr);
+        assertEquals(1, controller.getInterruptedIndividuals().size());
+        assertEquals("resumed", controller.getInterruptedIndividuals().get(0).getIndividualId());
+        assertEquals(2, controller.getTopHarmfullVariants("resumed", 10).size());
+
+        controller.resumeIndividual(new VCFIterator(vcfs.resolve("contigs.vcf"), resumed,
+                VariantFilter.passOnly())).get();
+        assertEquals(7, controller.getTotNumVariants());
+        assertEquals(7, controller.getTopHarmfullVariants("resumed", 10).size());
+        // the genes of the variants written before the stop are ranked too
+        assertNotNull(controller.getGeneRanking("resumed"));
+        assertTrue(controller.getInterruptedIndividuals().isEmpty());
+        assertFalse(Files.exists(checkpoint));
+        controller.stop();
+    }
+
+    @Test
+    public void testCancelRollsBack() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+        controller.setCheckpointInterval(0);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("kept", true))).get();
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        Future future = controller.addIndividual(blockingIterator(new VariantHeader("cancelled", true), 3, blocked));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Path checkpoint = solr.resolve("solr/uploads/cancelled.checkpoint");
+        awaitProgress(checkpoint, 2);
+        future.cancel(true);
+
+        // the rollback runs in the background, and deletes the checkpoint once it is done
+        for (int i = 0; i < 100 && Files.exists(checkpoint); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(Files.exists(checkpoint));
+        assertEquals(0, controller.getTopHarmfullVariants("cancelled", 10).size());
+        assertEquals(1, controller.getTopHarmfullVariants("kept", 10).size());
+        assertEquals(1, controller.getTotNumVariants());
+        controller.stop();
+
+        // nothing is left to resume
+        controller = new SolrController();
+        controller.init(solr);
+        assertTrue(controller.getInterruptedIndividuals().isEmpty());
+        controller.stop();
+    }
+
+    @Test
+    public void testCancelPutsBackEarlierCalls() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        controller.setBatchSize(1);
+        controller.setCheckpointInterval(0);
+        VariantHeader header = new VariantHeader("again", true);
+        controller.addIndividual(new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"), header)).get();
+        List<GAVariant> before = controller.getTopHarmfullVariants("again", 10);
+        assertEquals(1, before.size());
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        Future future = controller.addIndividual(blockingIterator(header, 3, blocked));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Path checkpoint = solr.resolve("solr/uploads/again.checkpoint");
+        awaitProgress(checkpoint, 2);
+        future.cancel(true);
+
+        // what the upload added is taken out, and the individual is left with the calls it had before
+        for (int i = 0; i < 100 && Files.exists(checkpoint); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(Files.exists(checkpoint));
+        assertFalse(Files.exists(solr.resolve("solr/uploads/again.checkpoint.calls.0")));
+        List<GAVariant> after = controller.getTopHarmfullVariants("again", 10);
+        assertEquals(1, after.size());
+        assertEquals(before.get(0).getStart(), after.get(0).getStart());
+        assertEquals(1, controller.getTotNumVariants());
+        controller.stop();
+
+        // the cancelled upload isn't picked up again
+        controller = new SolrController();
+        controller.init(solr);
+        assertTrue(controller.getInterruptedIndividuals().isEmpty());
+        assertEquals(1, controller.getTopHarmfullVariants("again", 10).size());
+        controller.stop();
+    }
+
+    @Test
+    public void testRollBackWithoutStoredListTakesOutEverything() throws Exception {
+        SolrController controller = new SolrController();
+        controller.init(solr);
+        VariantHeader header = new VariantHeader("unknown", true);
+        controller.addIndividual(new VCFIterator(vcfs.resolve("contigs.vcf"), header, VariantFilter.passOnly())).get();
+        controller.stop();
+
+        // a checkpoint left by an older version, which doesn't say which individuals had calls before
+        Path file = solr.resolve("solr/uploads/unknown.checkpoint");
+        Checkpoint checkpoint = new Checkpoint(file, header);
+        checkpoint.setState(Checkpoint.State.ROLLBACK);
+        checkpoint.save();
+
+        controller = new SolrController();
+        controller.init(solr);
+        for (int i = 0; i < 100 && Files.exists(file); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(Files.exists(file));
+        assertTrue(controller.getInterruptedIndividuals().isEmpty());
+        assertEquals(0, controller.getTopHarmfullVariants("unknown", 10).size());
+        controller.stop();
+    }
+
+    /**
+     * Read contigs.vcf, but hang after a number of variants until interrupted.
+     */
+    private VCFIterator blockingIterator(VariantHeader header, final int count, final CountDownLatch blocked) {
+        return new VCFIterator(vcfs.resolve("contigs.vcf"), header, VariantFilter.passOnly())
+        {
+            private int read;
+
+            @Override
+            public VariantRecord nextRecord() {
+                if (read++ == count) {
+                    blocked.countDown();
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("interrupted");
+                }
+                return super.nextRecord();
+            }
+        };
+    }
+
+    private void awaitProgress(Path checkpoint, long done) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (Files.exists(checkpoint)) {
+                Properties properties = new Properties();
+                try (InputStream in = Files.newInputStream(checkpoint)) {
+                    properties.load(in);
+                }
+                if (String.valueOf(done).equals(properties.getProperty("part.0"))) {
+                    return;
+                }
+            }
+            Thread.sleep(100);
+        }
+        fail("no progress saved");
+    }
 }
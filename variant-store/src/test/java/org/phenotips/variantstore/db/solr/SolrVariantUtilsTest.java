@@ -18,14 +18,11 @@
 package org.phenotips.variantstore.db.solr;
 
 import org.phenotips.variantstore.TestUtils;
+import org.phenotips.variantstore.input.VariantRecord;
 import org.phenotips.variantstore.shared.GACallInfoFields;
 import org.phenotips.variantstore.shared.GAVariantInfoFields;
 import org.phenotips.variantstore.shared.VariantUtils;
 
-import static org.phenotips.variantstore.db.solr.SolrVariantUtils.addVariantToDoc;
-import static org.phenotips.variantstore.db.solr.SolrVariantUtils.getCallsetField;
-import static org.phenotips.variantstore.db.solr.SolrVariantUtils.setCallsetField;
-
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -36,6 +33,7 @@
 import org.apache.solr.client.solrj.response.GroupResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
 import org.ga4gh.GACall;
 import org.ga4gh.GAVariant;
 import org.hamcrest.CoreMatchers;
@@ -70,6 +68,8 @@ public void testDocToVariant() throws Exception {
         double exac_af = 0.5;
 
         SolrDocument doc = new SolrDocument();
+        doc.setField(VariantsSchema.TYPE, VariantsSchema.TYPE_CALL);
+        doc.setField(VariantsSchema.CALLSET_ID, callsetId);
         doc.setField(VariantsSchema.CHROM, chrom);
         doc.setField(VariantsSchema.REF, ref);
         doc.setField(VariantsSchema.START, start);
@@ -79,18 +79,15 @@ public void testDocToVariant() throws Exception {
         doc.setField(VariantsSchema.GENE_EFFECT, gene_effect);
         doc.setField(VariantsSchema.EXAC_AF, exac_af);
 
-        setCallsetField(doc, callsetId, VariantsSchema.QUAL, qual);
-        setCallsetField(doc, callsetId, VariantsSchema.FILTER, filter);
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_VARIANT_SCORE, exomiser_variant_score);
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE,
-                exomiser_gene_combined_score);
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_PHENO_SCORE,
-                exomiser_gene_pheno_score);
-        setCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_VARIANT_SCORE,
-                exomiser_gene_variant_score);
-        setCallsetField(doc, callsetId, VariantsSchema.AC, 2);
+        doc.setField(VariantsSchema.QUAL, qual);
+        doc.setField(VariantsSchema.FILTER, filter);
+        doc.setField(VariantsSchema.EXOMISER_VARIANT_SCORE, exomiser_variant_score);
+        doc.setField(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE, exomiser_gene_combined_score);
+        doc.setField(VariantsSchema.EXOMISER_GENE_PHENO_SCORE, exomiser_gene_pheno_score);
+        doc.setField(VariantsSchema.EXOMISER_GENE_VARIANT_SCORE, exomiser_gene_variant_score);
+        doc.setField(VariantsSchema.AC, 2);
 
-        GAVariant variant = SolrVariantUtils.docToVariant(doc, callsetId);
+        GAVariant variant = SolrVariantUtils.docToVariant(doc);
 
         assertEquals(variant.getReferenceName(), chrom);
         assertEquals((long) variant.getStart(), start);
@@ -103,6 +100,7 @@ public void testDocToVariant() throws Exception {
         assertThat(variant.getCalls(), is(notNullValue()));
         GACall call = variant.getCalls().get(0);
         assertThat(call, is(notNullValue()));
+        assertEquals(callsetId, call.getCallSetId());
         assertThat(call.getGenotype().get(0), is(1));
         assertThat(call.getGenotype().get(1), is(1));
         assertEquals(VariantUtils.getInfo(call, GACallInfoFields.QUALITY), qual);
@@ -115,13 +113,13 @@ public void testDocToVariant() throws Exception {
     }
 
     @Test
-    public void testVariantToDoc() throws Exception {
+    public void testRecordToAtomicAdd() throws Exception {
         String callsetId = "callset1";
         String chrom = "chrX";
         long start = (long) 2000;
         String ref = "CTAG";
         List<String> alt = Arrays.asList("A", "T");
-        String qual = "10";
+        String qual = "10.5";
         String filter = "PASS";
         double exomiser_variant_score = 0.1;
         double exomiser_gene_pheno_score = 0.2;
@@ -152,35 +150,122 @@ public void testVariantToDoc() throws Exception {
                 .EXOMISER_GENE_COMBINED_SCORE, exomiser_gene_combined_score);
         variant.setCalls(Collections.singletonList(call));
 
-        SolrDocument doc = SolrVariantUtils.variantToDoc(variant);
-        addVariantToDoc(doc, variant, callsetId, true);
-
-        assertEquals(doc.get(VariantsSchema.CHROM), chrom);
-        assertEquals(doc.get(VariantsSchema.START), start);
-        assertEquals(doc.get(VariantsSchema.END), start + ref.length());
-        assertEquals(doc.get(VariantsSchema.REF), ref);
-        assertEquals(doc.get(VariantsSchema.ALT), alt.get(0));
-        assertEquals(doc.get(VariantsSchema.GENE), gene);
-        assertEquals(doc.get(VariantsSchema.GENE_EFFECT), gene_effect);
-        assertEquals(doc.get(VariantsSchema.EXAC_AF), exac_af);
-
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.AC), 1);
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.QUAL), qual);
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.FILTER), filter);
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_VARIANT_SCORE), exomiser_variant_score);
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_PHENO_SCORE), exomiser_gene_pheno_score);
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_VARIANT_SCORE), exomiser_gene_variant_score);
-        assertEquals(getCallsetField(doc, callsetId, VariantsSchema.EXOMISER_GENE_COMBINED_SCORE), exomiser_gene_combined_score);
+        VariantRecord record = VariantRecord.fromGAVariant(variant);
+        String hash = SolrVariantUtils.getHash(record);
+        String otherCallsetId = "callset2";
+
+        SolrInputDocument doc = SolrVariantUtils.recordToDoc(record, hash, callsetId);
+        SolrInputDocument update = SolrVariantUtils.recordToAtomicAdd(record, hash, otherCallsetId);
+        SolrInputDocument callDoc = SolrVariantUtils.recordToCallDoc(record, hash, otherCallsetId, true);
+
+        // only the counts change, the variant's own fields are already stored
+        assertEquals(hash, update.getFieldValue(VariantsSchema.HASH));
+        assertEquals(Collections.singletonMap("add", otherCallsetId), update.getFieldValue(VariantsSchema.CALLSET_IDS));
+        assertEquals(Collections.singletonMap("inc", 1), update.getFieldValue(VariantsSchema.AC_TOT));
+        assertEquals(Collections.singletonMap("inc", 1), update.getFieldValue(VariantsSchema.GT_HET));
+        assertThat(update.containsKey(VariantsSchema.GT_HOM), is(false));
+        assertThat(update.containsKey(VariantsSchema.GENE), is(false));
+        assertThat(update.containsKey(VariantsSchema.QUAL), is(false));
+
+        SolrVariantUtils.applyAtomicAdd(doc, update);
+        assertEquals(VariantsSchema.TYPE_VARIANT, doc.getFieldValue(VariantsSchema.TYPE));
+        assertEquals(chrom, doc.getFieldValue(VariantsSchema.CHROM));
+        assertEquals(start, doc.getFieldValue(VariantsSchema.START));
+        assertEquals(start + ref.length(), doc.getFieldValue(VariantsSchema.END));
+        assertEquals(ref, doc.getFieldValue(VariantsSchema.REF));
+        assertEquals(alt.get(0), doc.getFieldValue(VariantsSchema.ALT));
+        assertEquals(gene, doc.getFieldValue(VariantsSchema.GENE));
+        assertEquals(gene_effect, doc.getFieldValue(VariantsSchema.GENE_EFFECT));
+        assertEquals((float) exac_af, doc.getFieldValue(VariantsSchema.EXAC_AF));
+        assertEquals(Arrays.asList(callsetId, otherCallsetId), doc.getFieldValues(VariantsSchema.CALLSET_IDS));
+        assertEquals(2, doc.getFieldValue(VariantsSchema.AC_TOT));
+        assertEquals(2, doc.getFieldValue(VariantsSchema.GT_HET));
+        assertEquals(0, doc.getFieldValue(VariantsSchema.GT_HOM));
+        assertThat(doc.containsKey(VariantsSchema.QUAL), is(false));
+
+        assertEquals(VariantsSchema.getCallId(hash, otherCallsetId), callDoc.getFieldValue(VariantsSchema.HASH));
+        assertEquals(hash, callDoc.getFieldValue(VariantsSchema.VARIANT));
+        assertEquals(otherCallsetId, callDoc.getFieldValue(VariantsSchema.CALLSET_ID));
+        assertEquals(1, callDoc.getFieldValue(VariantsSchema.AC));
+        assertEquals(Float.valueOf(qual), callDoc.getFieldValue(VariantsSchema.QUAL));
+        assertEquals(filter, callDoc.getFieldValue(VariantsSchema.FILTER));
+        assertEquals((float) exomiser_variant_score, callDoc.getFieldValue(VariantsSchema.EXOMISER_VARIANT_SCORE));
+        assertEquals((float) exomiser_gene_pheno_score,
+                callDoc.getFieldValue(VariantsSchema.EXOMISER_GENE_PHENO_SCORE));
+        assertEquals((float) exomiser_gene_variant_score,
+                callDoc.getFieldValue(VariantsSchema.EXOMISER_GENE_VARIANT_SCORE));
+        assertEquals((float) exomiser_gene_combined_score,
+                callDoc.getFieldValue(VariantsSchema.EXOMISER_GENE_COMBINED_SCORE));
+    }
+
+    @Test
+    public void testRecordToDoc() throws Exception {
+        String callsetId = "callset1";
+        long start = (long) 2000;
+        String ref = "CTAG";
+
+        GAVariant variant = new GAVariant();
+        variant.setReferenceName("chrX");
+        variant.setStart(start);
+        variant.setReferenceBases(ref);
+        variant.setAlternateBases(Arrays.asList("A", "T"));
+        VariantUtils.addInfo(variant, GAVariantInfoFields.GENE, "CNST");
+        VariantUtils.addInfo(variant, GAVariantInfoFields.EXAC_AF, 0.5);
+        GACall call = new GACall();
+        call.setGenotype(Arrays.asList(1, 1));
+        VariantUtils.addInfo(call, GACallInfoFields.QUALITY, "10");
+        VariantUtils.addInfo(call, GACallInfoFields.FILTER, "PASS");
+        VariantUtils.addInfo(call, GACallInfoFields.EXOMISER_VARIANT_SCORE, 0.25);
+        variant.setCalls(Collections.singletonList(call));
+
+        VariantRecord record = VariantRecord.fromGAVariant(variant);
+        String hash = SolrVariantUtils.getHash(record);
+        assertEquals(SolrVariantUtils.getHash(variant), hash);
+
+        SolrInputDocument doc = SolrVariantUtils.recordToDoc(record, hash, callsetId);
+        SolrInputDocument callDoc = SolrVariantUtils.recordToCallDoc(record, hash, callsetId, true);
+
+        assertEquals(hash, doc.getFieldValue(VariantsSchema.HASH));
+        assertEquals(VariantsSchema.TYPE_VARIANT, doc.getFieldValue(VariantsSchema.TYPE));
+        assertEquals("chrX", doc.getFieldValue(VariantsSchema.CHROM));
+        assertEquals(start, doc.getFieldValue(VariantsSchema.START));
+        assertEquals(start + ref.length(), doc.getFieldValue(VariantsSchema.END));
+        assertEquals("A", doc.getFieldValue(VariantsSchema.ALT));
+        assertEquals("CNST", doc.getFieldValue(VariantsSchema.GENE));
+        assertThat(doc.containsKey(VariantsSchema.GENE_EFFECT), is(false));
+        assertEquals(0.5f, doc.getFieldValue(VariantsSchema.EXAC_AF));
+        assertEquals(Collections.singletonList(callsetId), doc.getFieldValues(VariantsSchema.CALLSET_IDS));
+        assertEquals(2, doc.getFieldValue(VariantsSchema.AC_TOT));
+        assertEquals(0, doc.getFieldValue(VariantsSchema.GT_HET));
+        assertEquals(1, doc.getFieldValue(VariantsSchema.GT_HOM));
+
+        assertThat(doc.containsKey(VariantsSchema.AC), is(false));
+
+        assertEquals(VariantsSchema.getCallId(hash, callsetId), callDoc.getFieldValue(VariantsSchema.HASH));
+        assertEquals(VariantsSchema.TYPE_CALL, callDoc.getFieldValue(VariantsSchema.TYPE));
+        assertEquals(hash, callDoc.getFieldValue(VariantsSchema.VARIANT));
+        assertEquals(callsetId, callDoc.getFieldValue(VariantsSchema.CALLSET_ID));
+        assertEquals("CNST", callDoc.getFieldValue(VariantsSchema.GENE));
+        assertEquals(true, callDoc.getFieldValue(VariantsSchema.PUBLIC));
+        assertEquals(2, callDoc.getFieldValue(VariantsSchema.AC));
+        assertEquals(10f, callDoc.getFieldValue(VariantsSchema.QUAL));
+        assertEquals("PASS", callDoc.getFieldValue(VariantsSchema.FILTER));
+        assertEquals(0.25f, callDoc.getFieldValue(VariantsSchema.EXOMISER_VARIANT_SCORE));
+        assertThat(callDoc.containsKey(VariantsSchema.EXOMISER_GENE_PHENO_SCORE), is(false));
+
+        GAVariant roundTrip = record.toGAVariant();
+        assertEquals(SolrVariantUtils.getHash(variant), SolrVariantUtils.getHash(roundTrip));
+        assertEquals(call.getGenotype(), roundTrip.getCalls().get(0).getGenotype());
     }
 
     @Test
-    public void testVariantToDocIdempotence() throws Exception {
+    public void testCallDocIdempotence() throws Exception {
         String callsetId = "callset1";
         String chrom = "chrX";
         long position = (long) 2000;
         String ref = "CTAG";
         List<String> alts = Collections.singletonList(TestUtils.randomBases(10));
-        String qual = "10";
+        String qual = "10.5";
         String filter = "PASS";
         double exomiser_variant_score = 0.1;
         double exomiser_gene_pheno_score = 0.2;
@@ -209,9 +294,14 @@ public void testVariantToDocIdempotence() throws Exception {
         VariantUtils.addInfo(call, GACallInfoFields.EXOMISER_GENE_COMBINED_SCORE, exomiser_gene_combined_score);
         variant.setCalls(Collections.singletonList(call));
 
-        SolrDocument doc = SolrVariantUtils.variantToDoc(variant);
-        addVariantToDoc(doc, variant, callsetId, true);
-        GAVariant variant2 = SolrVariantUtils.docToVariant(doc, callsetId);
+        VariantRecord record = VariantRecord.fromGAVariant(variant);
+        SolrInputDocument callDoc = SolrVariantUtils.recordToCallDoc(record, SolrVariantUtils.getHash(record),
+                callsetId, true);
+        SolrDocument doc = new SolrDocument();
+        for (String name : callDoc.getFieldNames()) {
+            doc.setField(name, callDoc.getFieldValue(name));
+        }
+        GAVariant variant2 = SolrVariantUtils.docToVariant(doc);
 
         assertEquals(variant.getReferenceName(), variant2.getReferenceName());
         assertEquals((long) variant.getStart(), (long) variant2.getStart());
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class FileAdopterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String content) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An adopter on a file system without hard links.
+     */
+    private static class NoLinks extends FileAdopter
+    {
+        @Override
+        void link(Path source, Path target) throws IOException {
+            throw new IOException("no links here");
+        }
+    }
+
+    @Test
+    public void testLink() throws Exception {
+        FileAdopter adopter = new FileAdopter();
+        Path source = write("variants");
+        Path target = folder.getRoot().toPath().resolve("stored");
+
+        assertEquals(FileAdopter.Method.LINK, adopter.adopt(source, target));
+        assertTrue(Files.isSameFile(source, target));
+        assertEquals(target, adopter.resolve(target));
+
+        // replacing a stored file
+        assertEquals(FileAdopter.Method.LINK, adopter.adopt(write("other variants"), target));
+        assertEquals("other variants", read(target));
+        assertEquals("variants", read(source));
+        adopter.stop();
+    }
+
+    @Test
+    public void testMove() throws Exception {
+        FileAdopter adopter = new NoLinks();
+        adopter.setMoveAllowed(true);
+        Path source = write("variants");
+        Path target = folder.getRoot().toPath().resolve("stored");
+
+        assertEquals(FileAdopter.Method.MOVE, adopter.adopt(source, target));
+        assertFalse(Files.exists(source));
+        assertEquals("variants", read(target));
+        adopter.stop();
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        FileAdopter adopter = new NoLinks();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("chr1\t").append(i).append('\n');
+        }
+        Path source = write(content.toString());
+        Path target = folder.getRoot().toPath().resolve("stored");
+
+        assertEquals(FileAdopter.Method.COPY, adopter.adopt(source, target));
+        // readable right away, from wherever it is
+        assertEquals(content.toString(), read(adopter.resolve(target)));
+
+        adopter.await(target);
+        assertEquals(target, adopter.resolve(target));
+        assertTrue(adopter.getPendingTargets().isEmpty());
+        assertNull(adopter.getPending(target));
+        assertFalse(Files.isSameFile(source, target));
+        assertEquals(content.toString(), read(target));
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve(".stored")));
+        adopter.stop();
+    }
+}
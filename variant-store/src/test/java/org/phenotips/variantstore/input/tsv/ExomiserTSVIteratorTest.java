@@ -17,15 +17,27 @@
  */
 package org.phenotips.variantstore.input.tsv;
 
+import org.phenotips.variantstore.input.BlockCompression;
+import org.phenotips.variantstore.input.VariantFilter;
 import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.shared.GACallInfoFields;
+import org.phenotips.variantstore.shared.GAVariantInfoFields;
 import org.phenotips.variantstore.shared.ResourceManager;
+import org.phenotips.variantstore.shared.VariantUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.ga4gh.GACall;
+import org.ga4gh.GAVariant;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -34,4 +46,108 @@
 
 public class ExomiserTSVIteratorTest
 {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path tsvs;
+
+    @Before
+    public void before() throws IOException {
+        FileUtils.copyDirectoryToDirectory(Paths.get(getClass().getResource("/tsvs").getPath()).toFile(), folder.getRoot());
+        tsvs = folder.getRoot().toPath().resolve("tsvs");
+    }
+
+    @Test
+    public void testParseVariant() throws Exception {
+        ExomiserTSVIterator iterator = new ExomiserTSVIterator(tsvs.resolve("patient.variants.tsv"),
+                new VariantHeader("someId", true));
+
+        assertTrue(iterator.hasNext());
+        GAVariant variant = iterator.next();
+        assertFalse(iterator.hasNext());
+
+        assertEquals("chr16", variant.getReferenceName());
+        assertEquals(30748690L, (long) variant.getStart());
+        assertEquals(30748691L, (long) variant.getEnd());
+        assertEquals("C", variant.getReferenceBases());
+        assertEquals(Collections.singletonList("T"), variant.getAlternateBases());
+        assertEquals("SRCAP", VariantUtils.getInfo(variant, GAVariantInfoFields.GENE));
+        assertEquals("STOPGAIN", VariantUtils.getInfo(variant, GAVariantInfoFields.GENE_EFFECT));
+
+        GACall call = variant.getCalls().get(0);
+        assertEquals(Arrays.asList(0, 1), call.getGenotype());
+        assertEquals("225.0", VariantUtils.getInfo(call, GACallInfoFields.QUALITY));
+        assertEquals("PASS", VariantUtils.getInfo(call, GACallInfoFields.FILTER));
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        Path empty = folder.newFile("empty.variants.tsv").toPath();
+        assertFalse(new ExomiserTSVIterator(empty, new VariantHeader("someId", true)).hasNext());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        StringBuilder tsv = new StringBuilder("#header\n");
+        tsv.append(row(1, "PASS", "MISSENSE", "0.01"));
+        tsv.append(row(2, "LowQual", "MISSENSE", "0.01"));
+        tsv.append(row(3, "PASS", "SYNONYMOUS", "0.01"));
+        tsv.append(row(4, "PASS", "STOPGAIN", "0.5"));
+        tsv.append(row(5, "PASS", "STOPGAIN", "."));
+        Path path = folder.newFile("filter.variants.tsv").toPath();
+        Files.write(path, tsv.toString().getBytes(StandardCharsets.UTF_8));
+
+        VariantFilter filter = VariantFilter.passOnly();
+        filter.setFunctionalClasses(Arrays.asList("MISSENSE", "STOPGAIN"));
+        filter.setMaxFrequency(0.1);
+
+        ExomiserTSVIterator iterator = new ExomiserTSVIterator(path, new VariantHeader("someId", true), filter);
+        assertEquals(0L, (long) iterator.next().getStart());
+        assertEquals(4L, (long) iterator.next().getStart());
+        assertFalse(iterator.hasNext());
+
+        iterator = new ExomiserTSVIterator(path, new VariantHeader("someId", true));
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(5, count);
+    }
+
+    @Test
+    public void testCompressedRegion() throws Exception {
+        StringBuilder tsv = new StringBuilder("#header\n");
+        for (int pos : new int[] {500, 100, 300, 200, 400}) {
+            tsv.append(row(pos, "PASS", "MISSENSE", "0.01"));
+        }
+        Path path = folder.newFile("region.variants.tsv").toPath();
+        Files.write(path, tsv.toString().getBytes(StandardCharsets.UTF_8));
+        Path compressed = folder.getRoot().toPath().resolve("region.variants.tsv.gz");
+        BlockCompression.compress(path, compressed);
+
+        VariantFilter filter = new VariantFilter();
+        filter.setRegion("chr1", 199, 399);
+        ExomiserTSVIterator iterator = new ExomiserTSVIterator(compressed, new VariantHeader("someId", true), filter);
+        assertEquals(299L, (long) iterator.next().getStart());
+        assertEquals(199L, (long) iterator.next().getStart());
+        assertFalse(iterator.hasNext());
+
+        filter.setRegion("chr2", 0, 1000);
+        assertFalse(new ExomiserTSVIterator(compressed, new VariantHeader("someId", true), filter).hasNext());
+    }
+
+    private String row(int pos, String filter, String functionalClass, String frequency) {
+        String[] fields = new String[ExomiserTSVColumn.values().length];
+        Arrays.fill(fields, ".");
+        fields[ExomiserTSVColumn.CHROM.ordinal()] = "chr1";
+        fields[ExomiserTSVColumn.POS.ordinal()] = String.valueOf(pos);
+        fields[ExomiserTSVColumn.REF.ordinal()] = "A";
+        fields[ExomiserTSVColumn.ALT.ordinal()] = "T";
+        fields[ExomiserTSVColumn.FILTER.ordinal()] = filter;
+        fields[ExomiserTSVColumn.GENOTYPE.ordinal()] = "0/1";
+        fields[ExomiserTSVColumn.FUNCTIONAL_CLASS.ordinal()] = functionalClass;
+        fields[ExomiserTSVColumn.EXAC_NFE_FREQ.ordinal()] = frequency;
+        return StringUtils.join(fields, '\t') + "\n";
+    }
 }
@@ -0,0 +1,170 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input.tsv;
+
+import org.phenotips.variantstore.input.BlockCompression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class MappedTSVReaderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String content) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        try (MappedTSVReader reader = new MappedTSVReader(write("a\tbc\t\t d \t.\n\r\n\nx\ty\r\nlast"))) {
+            assertTrue(reader.nextLine());
+            assertEquals(5, reader.getFieldCount());
+            assertEquals("a", reader.getString(0));
+            assertEquals("bc", reader.getString(1));
+            assertEquals("", reader.getString(2));
+            assertEquals("d", reader.getString(3));
+            assertFalse(reader.isMissing(3));
+            assertTrue(reader.isMissing(4));
+
+            assertTrue(reader.nextLine());
+            assertEquals(2, reader.getFieldCount());
+            assertEquals("y", reader.getString(1));
+
+            assertTrue(reader.nextLine());
+            assertEquals(1, reader.getFieldCount());
+            assertEquals("last", reader.getString(0));
+
+            assertFalse(reader.nextLine());
+            assertFalse(reader.nextLine());
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        try (MappedTSVReader reader = new MappedTSVReader(write(""))) {
+            assertFalse(reader.nextLine());
+        }
+    }
+
+    @Test
+    public void testLinesAcrossRegions() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("chr").append(i).append('\t').append(i * 1000).append('\n');
+        }
+
+        try (MappedTSVReader reader = new MappedTSVReader(write(content.toString()), 16)) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(reader.nextLine());
+                assertEquals("chr" + i, reader.getString(0));
+                assertEquals(i * 1000, reader.getLong(1));
+            }
+            assertFalse(reader.nextLine());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLineLongerThanRegion() throws Exception {
+        try (MappedTSVReader reader = new MappedTSVReader(write("0123456789abcdefghij\n"), 16)) {
+            reader.nextLine();
+        }
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        String[] doubles = {"0", "0.0", "225.0", "-1.5", "+2", "0.8638955", "1e-5", "3.2E+10", ".5", "5.",
+            "0.000000000000000000000000001", "123456789012345678901234", "NaN", "-Infinity", "1e400"};
+        StringBuilder line = new StringBuilder();
+        for (String d : doubles) {
+            line.append(d).append('\t');
+        }
+        line.append("30748691\t-42\t99999999999999999999");
+
+        try (MappedTSVReader reader = new MappedTSVReader(write(line.toString()))) {
+            assertTrue(reader.nextLine());
+            for (int i = 0; i < doubles.length; i++) {
+                assertEquals(doubles[i], Double.parseDouble(doubles[i]), reader.getDouble(i), 0);
+            }
+            assertEquals(30748691L, reader.getLong(doubles.length));
+            assertEquals(-42L, reader.getLong(doubles.length + 1));
+            try {
+                reader.getLong(doubles.length + 2);
+                fail();
+            } catch (NumberFormatException e) {
+                // too big
+            }
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testBadDouble() throws Exception {
+        try (MappedTSVReader reader = new MappedTSVReader(write("1.2.3"))) {
+            reader.nextLine();
+            reader.getDouble(0);
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("chr").append(i).append('\t').append(i * 1000).append('\n');
+        }
+        content.append("a much longer line than the buffer starts at\tlast");
+        InputStream in = new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (MappedTSVReader reader = new MappedTSVReader(in, 4)) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(reader.nextLine());
+                assertEquals("chr" + i, reader.getString(0));
+                assertEquals(i * 1000L, reader.getLong(1));
+            }
+            assertTrue(reader.nextLine());
+            assertEquals("last", reader.getString(1));
+            assertFalse(reader.nextLine());
+        }
+    }
+
+    @Test
+    public void testOpenCompressed() throws Exception {
+        Path compressed = folder.getRoot().toPath().resolve("compressed.tsv.gz");
+        BlockCompression.compress(write("a\tb\nc\td\n"), compressed);
+        assertTrue(BlockCompression.isBlockCompressed(compressed));
+
+        try (MappedTSVReader reader = MappedTSVReader.open(compressed)) {
+            assertTrue(reader.nextLine());
+            assertEquals("b", reader.getString(1));
+            assertTrue(reader.nextLine());
+            assertEquals("c", reader.getString(0));
+            assertFalse(reader.nextLine());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input.tsv;
+
+import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.exomiser6.tsv.Exomiser6TSVColumn;
+import org.phenotips.variantstore.input.exomiser6.tsv.Exomiser6TSVIterator;
+
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Compare parsing an Exomiser 6 TSV with commons-csv against {@link MappedTSVReader}. Not run as part of the tests;
+ * run the main method with the number of lines to generate (default 1000000).
+ *
+ * @version $Id$
+ */
+public final class TSVParseBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final int CHROM = Exomiser6TSVColumn.CHROM.ordinal();
+    private static final int POS = Exomiser6TSVColumn.POS.ordinal();
+    private static final int MAX_FREQUENCY = Exomiser6TSVColumn.MAX_FREQUENCY.ordinal();
+    private static final int SCORE = Exomiser6TSVColumn.EXOMISER_GENE_COMBINED_SCORE.ordinal();
+
+    private TSVParseBenchmark() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args the number of lines to generate
+     * @throws IOException if the file can't be written or read
+     */
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Path file = Files.createTempFile("benchmark", ".variants.tsv");
+        try {
+            generate(file, lines);
+            System.out.println(String.format("%d lines, %d MB", lines, Files.size(file) >> 20));
+
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                double csv = commonsCsv(file);
+                long csvNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                double mapped = mapped(file);
+                long mappedNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int variants = iterator(file);
+                long iteratorNanos = System.nanoTime() - start;
+
+                if (csv != mapped || variants != lines) {
+                    throw new IllegalStateException("parsers disagree");
+                }
+                System.out.println(String.format("round %d: commons-csv %d ms, mapped %d ms (%.1fx),"
+                        + " Exomiser6TSVIterator %d ms", round, csvNanos / 1000000, mappedNanos / 1000000,
+                        (double) csvNanos / mappedNanos, iteratorNanos / 1000000));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void generate(Path file, int lines) throws IOException {
+        Random random = new Random(42);
+        String[] bases = {"A", "C", "G", "T"};
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("#CHROM\tPOS\tREF\tALT\tQUAL\tFILTER\tGENOTYPE\tCOVERAGE\tFUNCTIONAL_CLASS\tHGVS\t"
+                    + "EXOMISER_GENE\tCADD\tPOLYPHEN\tMUTATIONTASTER\tSIFT\tDBSNP_ID\tMAX_FREQUENCY\tDBSNP_FREQUENCY\t"
+                    + "EVS_EA_FREQUENCY\tEVS_AA_FREQUENCY\tEXOMISER_VARIANT_SCORE\tEXOMISER_GENE_PHENO_SCORE\t"
+                    + "EXOMISER_GENE_VARIANT_SCORE\tEXOMISER_GENE_COMBINED_SCORE\n");
+            for (int i = 0; i < lines; i++) {
+                String ref = bases[random.nextInt(4)];
+                String alt = bases[random.nextInt(4)];
+                writer.write(String.format("chr%d\t%d\t%s\t%s\t%.1f\tPASS\t0/1\t%d\tMISSENSE\t"
+                        + "GENE%d:uc002dzg.1:exon29:c.6715%s>%s:p.R2239*\tGENE%d\t%.3f\t%.3f\t%.3f\t%.3f\trs%d\t"
+                        + "%.4f\t.\t.\t.\t%.7f\t%.7f\t%.7f\t%.7f\n",
+                        1 + random.nextInt(22), random.nextInt(200000000), ref, alt, random.nextDouble() * 1000,
+                        random.nextInt(100), i % 20000, ref, alt, i % 20000, random.nextDouble(),
+                        random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextInt(100000000),
+                        random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextDouble(),
+                        random.nextDouble()));
+            }
+        }
+    }
+
+    private static double commonsCsv(Path file) throws IOException {
+        double checksum = 0;
+        try (Reader reader = new FileReader(file.toString())) {
+            boolean header = true;
+            for (CSVRecord record : CSVFormat.TDF.parse(reader)) {
+                if (header) {
+                    header = false;
+                    continue;
+                }
+                checksum += record.get(CHROM).length();
+                checksum += Long.valueOf(record.get(POS));
+                checksum += Double.parseDouble(record.get(MAX_FREQUENCY));
+                checksum += Double.parseDouble(record.get(SCORE));
+            }
+        }
+        return checksum;
+    }
+
+    private static double mapped(Path file) throws IOException {
+        double checksum = 0;
+        try (MappedTSVReader reader = new MappedTSVReader(file)) {
+            reader.nextLine();
+            while (reader.nextLine()) {
+                checksum += reader.getString(CHROM).length();
+                checksum += reader.getLong(POS);
+                checksum += reader.getDouble(MAX_FREQUENCY);
+                checksum += reader.getDouble(SCORE);
+            }
+        }
+        return checksum;
+    }
+
+    private static int iterator(Path file) {
+        Exomiser6TSVIterator iterator = new Exomiser6TSVIterator(file, new VariantHeader("benchmark", true));
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input.vcf;
+
+import org.phenotips.variantstore.input.VariantFilter;
+import org.phenotips.variantstore.input.VariantHeader;
+import org.phenotips.variantstore.input.VariantIterator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class VCFIteratorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path vcfs;
+    private Path indexed;
+    private VariantHeader header = new VariantHeader("sample", true);
+
+    // passing rows of contigs.vcf, one per alt allele
+    private List<Long> expected = Arrays.asList(99L, 249L, 399L, 399L, 899L, 49L, 449L);
+
+    @Before
+    public void before() throws Exception {
+        FileUtils.copyDirectoryToDirectory(Paths.get(getClass().getResource("/vcfs").getPath()).toFile(), folder.getRoot());
+        vcfs = folder.getRoot().toPath().resolve("vcfs");
+
+        // the store compresses and indexes the file
+        VCFManager manager = new VCFManager();
+        manager.init(folder.getRoot().toPath().resolve("store"));
+        manager.addIndividual("sample", vcfs.resolve("contigs.vcf"));
+        manager.stop();
+        indexed = folder.getRoot().toPath().resolve("store/sample.vcf.gz");
+    }
+
+    private List<Long> starts(List<VariantIterator> iterators) {
+        List<Long> starts = new ArrayList<>();
+        for (VariantIterator iterator : iterators) {
+            while (iterator.hasNext()) {
+                starts.add(iterator.nextRecord().getStart());
+            }
+        }
+        return starts;
+    }
+
+    @Test
+    public void testSplitByContig() throws IOException {
+        VCFIterator iterator = new VCFIterator(indexed, header, VariantFilter.passOnly());
+        List<VariantIterator> parts = iterator.split(0);
+        assertEquals(2, parts.size());
+        assertFalse(iterator.hasNext());
+        assertEquals(expected, starts(parts));
+    }
+
+    @Test
+    public void testSplitByRegion() throws IOException {
+        List<VariantIterator> parts = new VCFIterator(indexed, header, VariantFilter.passOnly()).split(300);
+        // 1: [0, 300), [300, 600), [600, 900), [900, end); 2: [0, 300), [300, end)
+        assertEquals(6, parts.size());
+        assertEquals(expected, starts(parts));
+    }
+
+    @Test
+    public void testUnindexedIsNotSplit() throws IOException {
+        VCFIterator iterator = new VCFIterator(vcfs.resolve("contigs.vcf"), header, VariantFilter.passOnly());
+        List<VariantIterator> parts = iterator.split(0);
+        assertEquals(1, parts.size());
+        assertSame(iterator, parts.get(0));
+        assertEquals(expected, starts(parts));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.variantstore.input.vcf;
+
+import org.phenotips.variantstore.input.BlockCompression;
+import org.phenotips.variantstore.input.VariantFilter;
+import org.phenotips.variantstore.input.VariantIterator;
+import org.phenotips.variantstore.input.VariantRecord;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class VCFManagerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path vcfs;
+    private Path store;
+
+    @Before
+    public void before() throws IOException {
+        FileUtils.copyDirectoryToDirectory(Paths.get(getClass().getResource("/vcfs").getPath()).toFile(), folder.getRoot());
+        vcfs = folder.getRoot().toPath().resolve("vcfs");
+        store = folder.getRoot().toPath().resolve("store");
+    }
+
+    private List<Long> starts(VariantIterator iterator) {
+        List<Long> starts = new ArrayList<>();
+        while (iterator.hasNext()) {
+            VariantRecord record = iterator.nextRecord();
+            starts.add(record.getStart());
+        }
+        return starts;
+    }
+
+    @Test
+    public void testStoredCompressedAndIndexed() throws Exception {
+        VCFManager manager = new VCFManager();
+        manager.init(store);
+        manager.addIndividual("P1", vcfs.resolve("family.vcf"));
+        // readable while it is being compressed
+        assertEquals(5, starts(manager.getIteratorForIndividual("P1")).size());
+        manager.stop();
+
+        assertTrue(BlockCompression.isBlockCompressed(store.resolve("P1.vcf.gz")));
+        assertTrue(Files.exists(store.resolve("P1.vcf.gz.tbi")));
+        assertEquals(Collections.singletonList("P1"), manager.getAllIndividuals());
+        assertEquals(5, starts(manager.getIteratorForIndividual("P1")).size());
+
+        VariantFilter filter = new VariantFilter();
+        filter.setRegion("1", 150, 299);
+        assertEquals(Arrays.asList(199L, 199L), starts(manager.getIteratorForIndividual("P1", true, filter)));
+
+        manager.removeIndividual("P1");
+        assertTrue(manager.getAllIndividuals().isEmpty());
+        assertFalse(Files.exists(store.resolve("P1.vcf.gz.tbi")));
+    }
+
+    @Test
+    public void testMultipleSamplesShareAFile() throws Exception {
+        VCFManager manager = new VCFManager();
+        manager.init(store);
+        Map<String, String> samples = new LinkedHashMap<>();
+        samples.put("mother", "P1");
+        samples.put("child", "P3");
+        manager.addIndividuals(samples, vcfs.resolve("family.vcf"));
+        manager.stop();
+
+        assertTrue(Files.isSameFile(store.resolve("P1.vcf.gz"), store.resolve("P3.vcf.gz")));
+        assertTrue(Files.exists(store.resolve("P3.vcf.gz.tbi")));
+
+        VariantFilter filter = VariantFilter.passOnly();
+        filter.setRegion("1", 150, 300);
+        // the mother carries both alleles at 1:200, the child only one of them
+        assertEquals(2, starts(manager.getIteratorForIndividual("P1", true, filter)).size());
+        assertEquals(1, starts(manager.getIteratorForIndividual("P3", true, filter)).size());
+    }
+
+    @Test
+    public void testUnchangedFileIsNotStoredAgain() throws Exception {
+        VCFManager manager = new VCFManager();
+        manager.init(store);
+        assertTrue(manager.addIndividual("P1", vcfs.resolve("family.vcf")));
+        assertFalse(manager.addIndividual("P1", vcfs.resolve("family.vcf")));
+        assertTrue(manager.addIndividual("P1", vcfs.resolve("contigs.vcf")));
+        assertTrue(manager.getAllIndividuals().contains("P1"));
+
+        // the same file, but for one of its samples only
+        Map<String, String> samples = new LinkedHashMap<>();
+        samples.put("mother", "P1");
+        assertTrue(manager.addIndividuals(samples, vcfs.resolve("family.vcf")));
+        assertFalse(manager.addIndividuals(samples, vcfs.resolve("family.vcf")));
+        samples.put("child", "P3");
+        assertTrue(manager.addIndividuals(samples, vcfs.resolve("family.vcf")));
+
+        // a removed individual is stored again
+        manager.removeIndividual("P3");
+        assertTrue(manager.addIndividuals(samples, vcfs.resolve("family.vcf")));
+        manager.stop();
+    }
+}